@@ -7,6 +7,7 @@ import android.os.Bundle;
 import android.test.AndroidTestCase;
 
 import com.github.aloomaio.androidsdk.util.HttpService;
+import com.github.aloomaio.androidsdk.util.RemoteService;
 import com.github.aloomaio.androidsdk.viewcrawler.UpdatesFromMixpanel;
 
 import org.apache.http.NameValuePair;
@@ -14,6 +15,7 @@ import org.json.JSONArray;
 
 import java.io.ByteArrayOutputStream;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -87,7 +89,8 @@ public class DecideFunctionalTest extends AndroidTestCase {
 
         AloomaAPI api = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "TEST TOKEN testSurveyChecks") {
             @Override
-            AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                   Map<String, String> headers, RemoteService.ContentType contentType) {
                 return mMockMessages;
             }
 
@@ -205,7 +208,8 @@ public class DecideFunctionalTest extends AndroidTestCase {
 
         AloomaAPI api = new AloomaAPI(getContext(), mMockPreferences, useToken) {
             @Override
-            AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                   Map<String, String> headers, RemoteService.ContentType contentType) {
                 return mMockMessages;
             }
 
@@ -0,0 +1,77 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import android.test.AndroidTestCase;
+
+import com.github.aloomaio.androidsdk.util.RemoteService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class EventEncoderTest extends AndroidTestCase {
+    public void setUp() throws JSONException {
+        mEncoder = new EventEncoder();
+        mStaticProperties = new JSONObject("{\"alooma_sdk\":\"android\",\"$os\":\"Android\"}");
+        mVolatileProperties = new JSONObject("{\"$wifi\":true}");
+
+        final Map<String, Object> snapshot = new HashMap<String, Object>();
+        snapshot.put("plan", "premium");
+        snapshot.put("screen", "Super");
+        final JSONObject callerProperties = new JSONObject("{\"screen\":\"Checkout\",\"$wifi\":false}");
+        mEvent = new AnalyticsEvent("Purchase", callerProperties, snapshot, "DISTINCT ID",
+                2000, 500L, "TOKEN", AloomaAPI.PRIORITY_NORMAL);
+    }
+
+    public void testFormEncoded() throws JSONException {
+        final JSONObject record = new JSONObject(RecordCodec.decode(
+                mEncoder.encode(mEvent, mStaticProperties, mVolatileProperties, RemoteService.ContentType.URL_FORM_ENCODED)));
+
+        // The event's own properties override the default properties
+        assertEquals("Purchase", record.getString("event"));
+        assertEquals("TOKEN", record.getJSONObject("properties").getString("token"));
+        assertEquals(1, record.getJSONObject("properties").length());
+        assertEquals("android", record.getString("alooma_sdk"));
+        assertFalse(record.getBoolean("$wifi"));
+        assertEquals("Checkout", record.getString("screen"));
+        assertEquals("premium", record.getString("plan"));
+        assertEquals("DISTINCT ID", record.getString("distinct_id"));
+        assertEquals(2, record.getLong("time"));
+        assertEquals(1.5, record.getDouble("$duration"), 0.001);
+        assertEquals(10, record.length());
+    }
+
+    public void testJson() throws JSONException {
+        final JSONObject record = new JSONObject(RecordCodec.decode(
+                mEncoder.encode(mEvent, mStaticProperties, mVolatileProperties, RemoteService.ContentType.JSON)));
+
+        // The default properties override the event's own properties
+        assertEquals(2, record.length());
+        assertEquals("Purchase", record.getString("event"));
+        final JSONObject properties = record.getJSONObject("properties");
+        assertEquals("TOKEN", properties.getString("token"));
+        assertTrue(properties.getBoolean("$wifi"));
+        assertEquals("Checkout", properties.getString("screen"));
+        assertEquals("android", properties.getString("alooma_sdk"));
+        assertEquals(9, properties.length());
+    }
+
+    public void testMatchesBuiltProperties() throws JSONException {
+        // Events built up front give the same record as deferred ones
+        final JSONObject deferredRecord = new JSONObject(RecordCodec.decode(
+                mEncoder.encode(mEvent, mStaticProperties, mVolatileProperties, RemoteService.ContentType.URL_FORM_ENCODED)));
+        final AnalyticsEvent eager = new AnalyticsEvent("Purchase", mEvent.getProperties(), "TOKEN");
+        final JSONObject eagerRecord = new JSONObject(RecordCodec.decode(
+                mEncoder.encode(eager, mStaticProperties, mVolatileProperties, RemoteService.ContentType.URL_FORM_ENCODED)));
+        assertEquals(deferredRecord.length(), eagerRecord.length());
+        for (final String key : new String[] { "plan", "screen", "distinct_id", "$wifi", "alooma_sdk" }) {
+            assertEquals(deferredRecord.get(key), eagerRecord.get(key));
+        }
+    }
+
+    private EventEncoder mEncoder;
+    private JSONObject mStaticProperties;
+    private JSONObject mVolatileProperties;
+    private AnalyticsEvent mEvent;
+}
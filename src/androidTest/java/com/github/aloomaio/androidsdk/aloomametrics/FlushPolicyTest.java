@@ -0,0 +1,82 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import android.content.BroadcastReceiver;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+public class FlushPolicyTest extends AndroidTestCase {
+    public void setUp() {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.alooma.android.AConfig.BulkUploadLimit", 40);
+        metaData.putInt("com.alooma.android.AConfig.FlushInterval", 1000);
+        mConfig = new AConfig(metaData);
+
+        mOnWifi = false;
+        mBattery = new Intent(Intent.ACTION_BATTERY_CHANGED);
+        mBattery.putExtra(BatteryManager.EXTRA_LEVEL, 80);
+        mBattery.putExtra(BatteryManager.EXTRA_SCALE, 100);
+        mBattery.putExtra(BatteryManager.EXTRA_PLUGGED, 0);
+    }
+
+    public void testFixedInterval() {
+        final FlushPolicy policy = new FixedIntervalFlushPolicy(mConfig);
+        assertEquals(1000, policy.getFlushDelay(1, 0));
+        assertEquals(1000, policy.getFlushDelay(39, 60000));
+        assertEquals(0, policy.getFlushDelay(40, 0));
+    }
+
+    public void testAdaptiveOnWifi() {
+        mOnWifi = true;
+        final FlushPolicy policy = makeAdaptivePolicy();
+        assertEquals(1000, policy.getFlushDelay(1, 0));
+        assertEquals(0, policy.getFlushDelay(40, 0));
+    }
+
+    public void testAdaptiveCharging() {
+        mBattery.putExtra(BatteryManager.EXTRA_PLUGGED, BatteryManager.BATTERY_PLUGGED_USB);
+        final FlushPolicy policy = makeAdaptivePolicy();
+        assertEquals(1000, policy.getFlushDelay(1, 0));
+    }
+
+    public void testAdaptiveCellularOnBattery() {
+        final FlushPolicy policy = makeAdaptivePolicy();
+        assertEquals(3000, policy.getFlushDelay(1, 0));
+        assertEquals(5000, policy.getFlushDelay(1, 5000));
+        assertEquals(10000, policy.getFlushDelay(1, 60000));
+        assertEquals(0, policy.getFlushDelay(40, 0));
+    }
+
+    public void testAdaptiveLowBattery() {
+        mBattery.putExtra(BatteryManager.EXTRA_LEVEL, 10);
+        final FlushPolicy policy = makeAdaptivePolicy();
+        assertEquals(5000, policy.getFlushDelay(1, 0));
+    }
+
+    private FlushPolicy makeAdaptivePolicy() {
+        final SystemInformation systemInformation = new SystemInformation(getContext()) {
+            @Override
+            public Boolean isWifiConnected() {
+                return mOnWifi;
+            }
+        };
+
+        final ContextWrapper context = new ContextWrapper(getContext()) {
+            @Override
+            public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+                assertNull(receiver);
+                assertTrue(filter.hasAction(Intent.ACTION_BATTERY_CHANGED));
+                return mBattery;
+            }
+        };
+
+        return new AdaptiveFlushPolicy(context, mConfig, systemInformation);
+    }
+
+    private AConfig mConfig;
+    private boolean mOnWifi;
+    private Intent mBattery;
+}
@@ -7,6 +7,7 @@ import android.test.AndroidTestCase;
 
 import com.github.aloomaio.androidsdk.util.Base64Coder;
 import com.github.aloomaio.androidsdk.util.HttpService;
+import com.github.aloomaio.androidsdk.util.RemoteService;
 
 import org.apache.http.NameValuePair;
 import org.json.JSONArray;
@@ -17,6 +18,7 @@ import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -135,7 +137,8 @@ public class HttpTest extends AndroidTestCase {
 
         mMetrics = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "Test Message Queuing") {
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                 return listener;
             }
         };
@@ -0,0 +1,167 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class JournalEventStoreTest extends AndroidTestCase {
+    public void setUp() {
+        // Small segments, so that the tests roll over to new files
+        mJournal = new JournalEventStore(getContext(), "JournalEventStoreTest", 1000, 1024 * 1024, 200);
+        mJournal.deleteDB();
+    }
+
+    public void tearDown() {
+        mJournal.deleteDB();
+    }
+
+    public void testSendAndReopen() throws JSONException {
+        for (int i = 0; i < 30; i++) {
+            assertEquals(i + 1, mJournal.addJSON(new JSONObject().put("row", i), ADbAdapter.Table.EVENTS));
+        }
+
+        final ADbAdapter.DataBatch first = mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 10, Long.MAX_VALUE);
+        assertEquals(10, first.size());
+        assertTrue(first.hasMore());
+        mJournal.cleanupEvents(first.getLastId(), ADbAdapter.Table.EVENTS);
+        assertNull(mJournal.generateDataBatch(ADbAdapter.Table.PEOPLE, 50, Long.MAX_VALUE));
+
+        // The committed position survives reopening
+        mJournal.close();
+        mJournal = new JournalEventStore(getContext(), "JournalEventStoreTest", 1000, 1024 * 1024, 200);
+        final ADbAdapter.DataBatch rest = mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals(20, rest.size());
+        assertFalse(rest.hasMore());
+        assertEquals(10, new JSONArray(rest.toString()).getJSONObject(0).getInt("row"));
+
+        mJournal.cleanupEvents(rest.getLastId(), ADbAdapter.Table.EVENTS);
+        assertNull(mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE));
+        assertEquals(1, mJournal.addJSON(new JSONObject().put("row", 30), ADbAdapter.Table.EVENTS));
+    }
+
+    public void testRejectionsAndQuarantine() throws JSONException {
+        for (int i = 0; i < 3; i++) {
+            mJournal.addJSON(new JSONObject().put("row", i), ADbAdapter.Table.EVENTS);
+        }
+
+        final ADbAdapter.DataBatch first = mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        mJournal.recordRejection(first.getLastId(), ADbAdapter.Table.EVENTS);
+
+        final ADbAdapter.DataBatch alone = mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":0}]", alone.toString());
+        assertEquals(1, alone.getRejections());
+        assertTrue(alone.hasMore());
+
+        mJournal.quarantineEvents(alone.getLastId(), ADbAdapter.Table.EVENTS);
+        assertEquals("[{\"row\":1}]", mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE).toString());
+
+        mJournal.cleanupEvents(System.currentTimeMillis(), ADbAdapter.Table.EVENTS);
+        assertNull(mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE));
+    }
+
+    public void testQuarantineInLastSegment() throws JSONException {
+        mJournal.addJSON(new JSONObject().put("row", 0), ADbAdapter.Table.EVENTS);
+        mJournal.quarantineEvents(mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE).getLastId(),
+                ADbAdapter.Table.EVENTS);
+
+        // The only segment goes once its quarantined record expires, and positions carry on from where it ended
+        mJournal.cleanupEvents(System.currentTimeMillis(), ADbAdapter.Table.EVENTS);
+        final File events = new File(new File(getContext().getFilesDir(), "JournalEventStoreTest"), "events");
+        assertEquals(Collections.singletonList("committed"), Arrays.asList(events.list()));
+
+        assertEquals(1, mJournal.addJSON(new JSONObject().put("row", 1), ADbAdapter.Table.EVENTS));
+        mJournal.close();
+        mJournal = new JournalEventStore(getContext(), "JournalEventStoreTest", 1000, 1024 * 1024, 200);
+        assertEquals("[{\"row\":1}]", mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE).toString());
+    }
+
+    public void testPriorities() throws JSONException {
+        final int[] priorities = {AloomaAPI.PRIORITY_NORMAL, AloomaAPI.PRIORITY_HIGH, AloomaAPI.PRIORITY_LOW, AloomaAPI.PRIORITY_HIGH};
+        for (int i = 0; i < priorities.length; i++) {
+            assertEquals(i + 1, mJournal.addJSON(Collections.singletonList(new JSONObject().put("row", i)),
+                    ADbAdapter.Table.EVENTS, priorities[i], ADbAdapter.DEFAULT_DESTINATION));
+        }
+
+        // Highest priority first, each priority in the order it was added
+        final String[] expected = {"[{\"row\":1},{\"row\":3}]", "[{\"row\":0}]", "[{\"row\":2}]"};
+        for (final String rows : expected) {
+            final ADbAdapter.DataBatch batch = mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+            assertEquals(rows, batch.toString());
+            mJournal.cleanupEvents(batch, ADbAdapter.Table.EVENTS);
+        }
+        assertNull(mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE));
+
+        // The lowest priority records are evicted first
+        final JournalEventStore limited = new JournalEventStore(getContext(), "JournalEventStoreTest", 5, 1024 * 1024, 200);
+        for (int i = 0; i < 7; i++) {
+            final int priority = i < 3 ? AloomaAPI.PRIORITY_LOW : AloomaAPI.PRIORITY_NORMAL;
+            limited.addJSON(Collections.singletonList(new JSONObject().put("row", i)), ADbAdapter.Table.EVENTS,
+                    priority, ADbAdapter.DEFAULT_DESTINATION);
+        }
+        final ADbAdapter.DataBatch normal = limited.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals(4, normal.size());
+        limited.cleanupEvents(normal, ADbAdapter.Table.EVENTS);
+        final ADbAdapter.DataBatch low = limited.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":2}]", low.toString());
+        assertEquals(AloomaAPI.PRIORITY_LOW, low.getPriority());
+    }
+
+    public void testQueueLimits() throws JSONException {
+        final JournalEventStore limited = new JournalEventStore(getContext(), "JournalEventStoreTest", 5, 1024 * 1024, 200);
+        for (int i = 0; i < 7; i++) {
+            assertTrue(limited.addJSON(new JSONObject().put("row", i), ADbAdapter.Table.EVENTS) <= 5);
+        }
+
+        final JSONArray rows = new JSONArray(limited.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE).toString());
+        assertEquals(5, rows.length());
+        assertEquals(2, rows.getJSONObject(0).getInt("row"));
+
+        // Records bigger than a segment get a segment of their own
+        final String big = new String(new char[1000]).replace('\0', 'x');
+        assertEquals(5, limited.addJSON(new JSONObject().put("big", big), ADbAdapter.Table.EVENTS));
+    }
+
+    public void testDestinations() throws JSONException {
+        mJournal.addJSON(new JSONObject().put("row", 0), ADbAdapter.Table.EVENTS);
+        mJournal.addJSON(Collections.singletonList(new JSONObject().put("row", 1)), ADbAdapter.Table.EVENTS,
+                AloomaAPI.PRIORITY_NORMAL, "https://example.com JSON");
+
+        // Destinations are sent in turns, each in batches of its own
+        final Set<String> sent = new HashSet<String>();
+        for (int i = 0; i < 2; i++) {
+            final ADbAdapter.DataBatch batch = mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, null, 50, Long.MAX_VALUE);
+            assertEquals(1, batch.size());
+            sent.add(batch.getDestination());
+            mJournal.cleanupEvents(batch, ADbAdapter.Table.EVENTS);
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(ADbAdapter.DEFAULT_DESTINATION, "https://example.com JSON")), sent);
+        assertNull(mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, null, 50, Long.MAX_VALUE));
+    }
+
+    public void testUndecodableRecords() throws JSONException {
+        // Written whole, so the CRC matches, but with a trailing byte RecordCodec won't read
+        final byte[] record = RecordCodec.encode(new JSONObject().put("row", 0));
+        final byte[] corrupt = Arrays.copyOf(record, record.length + 1);
+        mJournal.addRecords(Arrays.asList(corrupt, corrupt), ADbAdapter.Table.EVENTS,
+                AloomaAPI.PRIORITY_NORMAL, ADbAdapter.DEFAULT_DESTINATION);
+
+        // Nothing to send, but the batch still moves past them
+        final ADbAdapter.DataBatch empty = mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals(0, empty.size());
+        mJournal.cleanupEvents(empty, ADbAdapter.Table.EVENTS);
+        assertNull(mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE));
+
+        mJournal.addJSON(new JSONObject().put("row", 1), ADbAdapter.Table.EVENTS);
+        assertEquals("[{\"row\":1}]", mJournal.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE).toString());
+    }
+
+    private JournalEventStore mJournal;
+}
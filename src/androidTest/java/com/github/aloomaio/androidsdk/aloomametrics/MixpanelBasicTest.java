@@ -1,19 +1,23 @@
 package com.github.aloomaio.androidsdk.aloomametrics;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Parcel;
 import android.test.AndroidTestCase;
 import android.test.mock.MockContext;
 import android.test.mock.MockPackageManager;
 
 //import com.github.aloomaio.androidsdk.test.BuildConfig;
-import com.github.aloomaio.androidsdk.util.Base64Coder;
 import com.github.aloomaio.androidsdk.util.HttpService;
 import com.github.aloomaio.androidsdk.util.RemoteService;
 
@@ -22,7 +26,11 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -73,21 +81,21 @@ public class MixpanelBasicTest extends AndroidTestCase {
         adapter.addJSON(before, ADbAdapter.Table.PEOPLE);
         adapter.deleteDB();
 
-        String[] emptyEventsData = adapter.generateDataString(ADbAdapter.Table.EVENTS);
+        String[] emptyEventsData = adapter.generateDataString(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
         assertEquals(emptyEventsData, null);
-        String[] emptyPeopleData = adapter.generateDataString(ADbAdapter.Table.PEOPLE);
+        String[] emptyPeopleData = adapter.generateDataString(ADbAdapter.Table.PEOPLE, 50, Long.MAX_VALUE);
         assertEquals(emptyPeopleData, null);
 
         adapter.addJSON(after, ADbAdapter.Table.EVENTS);
         adapter.addJSON(after, ADbAdapter.Table.PEOPLE);
 
         try {
-            String[] someEventsData = adapter.generateDataString(ADbAdapter.Table.EVENTS);
+            String[] someEventsData = adapter.generateDataString(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
             JSONArray someEvents = new JSONArray(someEventsData[1]);
             assertEquals(someEvents.length(), 1);
             assertEquals(someEvents.getJSONObject(0).get("added"), "after");
 
-            String[] somePeopleData = adapter.generateDataString(ADbAdapter.Table.PEOPLE);
+            String[] somePeopleData = adapter.generateDataString(ADbAdapter.Table.PEOPLE, 50, Long.MAX_VALUE);
             JSONArray somePeople = new JSONArray(somePeopleData[1]);
             assertEquals(somePeople.length(), 1);
             assertEquals(somePeople.getJSONObject(0).get("added"), "after");
@@ -96,6 +104,148 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testQueueLimits() throws JSONException {
+        final ADbAdapter rowLimited = new ADbAdapter(getContext(), "RowLimitTestDB", 5, Long.MAX_VALUE);
+        rowLimited.deleteDB();
+        for (int i = 0; i < 7; i++) {
+            assertTrue(rowLimited.addJSON(new JSONObject().put("row", i), ADbAdapter.Table.EVENTS) <= 5);
+        }
+        final JSONArray rows = new JSONArray(rowLimited.generateDataString(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE)[1]);
+        assertEquals(5, rows.length());
+        assertEquals(2, rows.getJSONObject(0).getInt("row"));
+        assertEquals(6, rows.getJSONObject(4).getInt("row"));
+        rowLimited.deleteDB();
+
+        // {"row":N} is 9 bytes when stored
+        final ADbAdapter byteLimited = new ADbAdapter(getContext(), "ByteLimitTestDB", 1000, 100);
+        byteLimited.deleteDB();
+        for (int i = 0; i < 11; i++) {
+            byteLimited.addJSON(new JSONObject().put("row", i), ADbAdapter.Table.EVENTS);
+        }
+        assertEquals(11, byteLimited.addJSON(new JSONObject().put("big", new String(new char[200])), ADbAdapter.Table.EVENTS));
+        assertEquals(11, byteLimited.addJSON(new JSONObject().put("row", 11), ADbAdapter.Table.EVENTS));
+        final JSONArray bytes = new JSONArray(byteLimited.generateDataString(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE)[1]);
+        assertEquals(11, bytes.length());
+        assertEquals(1, bytes.getJSONObject(0).getInt("row"));
+        assertEquals(11, bytes.getJSONObject(10).getInt("row"));
+        byteLimited.deleteDB();
+    }
+
+    public void testPriorities() throws JSONException {
+        final ADbAdapter adapter = new ADbAdapter(getContext(), "PriorityTestDB", 4, Long.MAX_VALUE);
+        adapter.deleteDB();
+        adapter.addJSON(Collections.singletonList(new JSONObject().put("row", "low")), ADbAdapter.Table.EVENTS, AloomaAPI.PRIORITY_LOW);
+        adapter.addJSON(new JSONObject().put("row", "normal"), ADbAdapter.Table.EVENTS);
+        adapter.addJSON(Collections.singletonList(new JSONObject().put("row", "high")), ADbAdapter.Table.EVENTS, AloomaAPI.PRIORITY_HIGH);
+
+        // Each batch holds one priority, highest first
+        final ADbAdapter.DataBatch high = adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":\"high\"}]", high.toString());
+        assertEquals(AloomaAPI.PRIORITY_HIGH, high.getPriority());
+        assertTrue(high.hasMore());
+
+        // Sending it leaves the older, lower priority rows alone
+        adapter.cleanupEvents(high, ADbAdapter.Table.EVENTS);
+        assertEquals("[{\"row\":\"normal\"}]", adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE).toString());
+
+        // A full table evicts the lowest priority rows first, even when they're newer
+        for (int i = 0; i < 3; i++) {
+            adapter.addJSON(new JSONObject().put("row", i), ADbAdapter.Table.EVENTS);
+        }
+        final JSONArray rows = new JSONArray(adapter.generateDataString(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE)[1]);
+        assertEquals(4, rows.length());
+        assertEquals("normal", rows.getJSONObject(0).getString("row"));
+        adapter.deleteDB();
+    }
+
+    public void testDestinations() throws JSONException {
+        final ADbAdapter adapter = new ADbAdapter(getContext(), "DestinationTestDB");
+        adapter.deleteDB();
+        adapter.addJSON(new JSONObject().put("row", 0), ADbAdapter.Table.EVENTS);
+        adapter.addJSON(Collections.singletonList(new JSONObject().put("row", 1)), ADbAdapter.Table.EVENTS,
+                AloomaAPI.PRIORITY_NORMAL, "other");
+        adapter.addJSON(new JSONObject().put("row", 2), ADbAdapter.Table.EVENTS);
+
+        // Each batch holds one destination, and destinations that can't be sent to are left alone
+        final ADbAdapter.DataBatch first = adapter.generateDataBatch(ADbAdapter.Table.EVENTS, null, 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":0},{\"row\":2}]", first.toString());
+        assertEquals(ADbAdapter.DEFAULT_DESTINATION, first.getDestination());
+        assertTrue(first.hasMore());
+        assertNull(adapter.generateDataBatch(ADbAdapter.Table.EVENTS, Collections.singletonList("missing"), 50, Long.MAX_VALUE));
+
+        // Rows for destinations that weren't asked for aren't more to send
+        final ADbAdapter.DataBatch only = adapter.generateDataBatch(ADbAdapter.Table.EVENTS,
+                Collections.singletonList(ADbAdapter.DEFAULT_DESTINATION), 50, Long.MAX_VALUE);
+        assertEquals(first.toString(), only.toString());
+        assertFalse(only.hasMore());
+
+        // Sending it leaves the other destination's rows alone, even the older ones
+        adapter.cleanupEvents(first, ADbAdapter.Table.EVENTS);
+        final ADbAdapter.DataBatch other = adapter.generateDataBatch(ADbAdapter.Table.EVENTS, Collections.singletonList("other"), 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":1}]", other.toString());
+        assertEquals("other", other.getDestination());
+        assertFalse(other.hasMore());
+        adapter.deleteDB();
+    }
+
+    public void testUndecodableRows() throws JSONException {
+        final ADbAdapter adapter = new ADbAdapter(getContext(), "UndecodableTestDB");
+        adapter.deleteDB();
+        final byte[] record = RecordCodec.encode(new JSONObject().put("row", 0));
+        final byte[] corrupt = Arrays.copyOf(record, record.length + 1);
+        adapter.addRecords(Collections.singletonList(corrupt), ADbAdapter.Table.EVENTS,
+                AloomaAPI.PRIORITY_NORMAL, ADbAdapter.DEFAULT_DESTINATION);
+
+        // A batch with nothing to send, that still removes the row it couldn't read
+        final ADbAdapter.DataBatch empty = adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals(0, empty.size());
+        adapter.cleanupEvents(empty, ADbAdapter.Table.EVENTS);
+        assertNull(adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE));
+
+        adapter.addJSON(new JSONObject().put("row", 1), ADbAdapter.Table.EVENTS);
+        assertEquals("[{\"row\":1}]", adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE).toString());
+        adapter.deleteDB();
+    }
+
+    public void testMoveRecords() throws JSONException {
+        final ADbAdapter legacy = new ADbAdapter(getContext(), "LegacyTestDB");
+        final ADbAdapter shared = new ADbAdapter(getContext(), "SharedTestDB");
+        legacy.deleteDB();
+        shared.deleteDB();
+        legacy.addJSON(new JSONObject().put("row", 0), ADbAdapter.Table.EVENTS);
+        legacy.addJSON(Collections.singletonList(new JSONObject().put("row", 1)), ADbAdapter.Table.EVENTS,
+                AloomaAPI.PRIORITY_HIGH, "other");
+        legacy.addJSON(new JSONObject().put("row", 2), ADbAdapter.Table.PEOPLE);
+
+        // Records without a destination are given one, the rest keep theirs
+        final AnalyticsMessages.Destination destination = new AnalyticsMessages.Destination("example.com", true,
+                null, RemoteService.ContentType.JSON);
+        assertTrue(AnalyticsMessages.moveRecords(legacy, shared, destination));
+        assertFalse(getContext().getDatabasePath("LegacyTestDB").exists());
+        assertNull(shared.generateDataBatch(ADbAdapter.Table.EVENTS, Collections.singletonList(ADbAdapter.DEFAULT_DESTINATION), 50, Long.MAX_VALUE));
+
+        final ADbAdapter.DataBatch other = shared.generateDataBatch(ADbAdapter.Table.EVENTS, Collections.singletonList("other"), 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":1}]", other.toString());
+        assertEquals(AloomaAPI.PRIORITY_HIGH, other.getPriority());
+        final ADbAdapter.DataBatch events = shared.generateDataBatch(ADbAdapter.Table.EVENTS, Collections.singletonList(destination.getKey()), 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":0}]", events.toString());
+        final ADbAdapter.DataBatch people = shared.generateDataBatch(ADbAdapter.Table.PEOPLE, Collections.singletonList(destination.getKey()), 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":2}]", people.toString());
+        shared.deleteDB();
+    }
+
+    public void testDestinationCopiesHeaders() {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-Test", "1");
+        final AnalyticsMessages.Destination destination = new AnalyticsMessages.Destination("example.com", true,
+                headers, RemoteService.ContentType.JSON);
+        final String key = destination.getKey();
+
+        headers.put("X-Test", "2");
+        assertEquals(key, destination.getKey());
+        assertEquals("1", destination.getHeaders().get("X-Test"));
+    }
+
     public void testLooperDestruction() {
 
         final BlockingQueue<JSONObject> messages = new LinkedBlockingQueue<JSONObject>();
@@ -117,7 +267,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
         };
         AloomaAPI mixpanel = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "TEST TOKEN testLooperDisaster") {
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                 return explodingMessages;
             }
         };
@@ -141,6 +292,134 @@ public class MixpanelBasicTest extends AndroidTestCase {
         }
     }
 
+    public void testHardKillUnregistersReceiver() throws InterruptedException {
+        final BlockingQueue<BroadcastReceiver> registered = new LinkedBlockingQueue<BroadcastReceiver>();
+        final BlockingQueue<BroadcastReceiver> unregistered = new LinkedBlockingQueue<BroadcastReceiver>();
+        final Context context = new ContextWrapper(getContext()) {
+            @Override
+            public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter, String permission, Handler scheduler) {
+                registered.add(receiver);
+                return super.registerReceiver(receiver, filter, permission, scheduler);
+            }
+
+            @Override
+            public void unregisterReceiver(BroadcastReceiver receiver) {
+                unregistered.add(receiver);
+                super.unregisterReceiver(receiver);
+            }
+        };
+
+        final AnalyticsMessages messages = new AnalyticsMessages(context) {
+            @Override
+            protected ADbAdapter makeDbAdapter(Context context) {
+                return new ADbAdapter(getContext(), "Test.db");
+            }
+        };
+        // A kill sent before the worker is up would be dropped
+        final BroadcastReceiver receiver = registered.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull(receiver);
+        while (messages.isDead()) {
+            Thread.sleep(10);
+        }
+        messages.hardKill();
+        assertSame(receiver, unregistered.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        Thread.sleep(500);
+        assertTrue(messages.isDead());
+    }
+
+    public void testBatchWithBadRecord() throws InterruptedException {
+        final BlockingQueue<String> sent = new LinkedBlockingQueue<String>();
+        final HttpService mockPoster = new HttpService() {
+            @Override
+            public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs,
+                                         Map<String, String> headers, RemoteService.ContentType contentType,
+                                         RemoteService.RequestBody body) throws IOException {
+                if (null == body) {
+                    return TestUtils.bytes("{}");
+                }
+
+                boolean bad = false;
+                final StringBuilder names = new StringBuilder();
+                try {
+                    final JSONArray batch = new JSONArray(readBody(body));
+                    for (int i = 0; i < batch.length(); i++) {
+                        final String name = batch.getJSONObject(i).getString("event");
+                        names.append(0 == i ? "" : ",").append(name);
+                        bad = bad || name.equals("bad");
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException("Malformed data passed to test mock", e);
+                }
+                sent.add(names.toString());
+
+                if (bad) {
+                    throw new RemoteService.HttpErrorException("Refused", 400, null);
+                }
+                return TestUtils.bytes("1\n");
+            }
+        };
+
+        final AConfig mockConfig = new AConfig(new Bundle()) {
+            @Override
+            public int getFlushInterval() {
+                return -1;
+            }
+
+            @Override
+            public int getMaxRetryDelay() {
+                return 100;
+            }
+
+            @Override
+            public int getMaxBatchRejections() {
+                return 10;
+            }
+
+            @Override
+            public boolean getDisableAppOpenEvent() { return true; }
+        };
+
+        final ADbAdapter adapter = new ADbAdapter(getContext(), "BadRecordTestDB");
+        adapter.deleteDB();
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            protected ADbAdapter makeDbAdapter(Context context) {
+                return adapter;
+            }
+
+            @Override
+            protected AConfig getConfig(Context context) {
+                return mockConfig;
+            }
+
+            @Override
+            protected HttpService getPoster() {
+                return mockPoster;
+            }
+        };
+
+        final AloomaAPI metrics = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "Test Bad Record") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
+                return listener;
+            }
+        };
+        metrics.track("before", null);
+        metrics.track("bad", null);
+        metrics.track("after", null);
+        metrics.flush();
+
+        // The refused batch is sent a record at a time, and the bad record is set aside
+        // the first time it's refused on its own, rather than after every allowed rejection
+        assertEquals("before,bad,after", sent.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("before", sent.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("bad", sent.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertEquals("after", sent.poll(POLL_WAIT_SECONDS, TimeUnit.SECONDS));
+        assertNull(sent.poll(1, TimeUnit.SECONDS));
+        adapter.deleteDB();
+    }
+
     public void testPeopleOperations() throws JSONException {
         final List<JSONObject> messages = new ArrayList<JSONObject>();
 
@@ -153,7 +432,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         AloomaAPI mixpanel = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "TEST TOKEN testIdentifyAfterSet") {
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                 return listener;
             }
         };
@@ -214,7 +494,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         AloomaAPI mixpanel = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "TEST TOKEN testIdentifyAfterSet") {
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                 return listener;
             }
         };
@@ -294,9 +575,10 @@ public class MixpanelBasicTest extends AndroidTestCase {
         final HttpService mockPoster = new HttpService() {
             @Override
             public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs,
-                                         Map<String, String> headers, RemoteService.ContentType contentType, String data) {
+                                         Map<String, String> headers, RemoteService.ContentType contentType,
+                                         RemoteService.RequestBody body) throws IOException {
                 final boolean isIdentified = isIdentifiedRef.get();
-                if (null == nameValuePairs) {
+                if (null == body) {
                     if (isIdentified) {
                         assertEquals("DECIDE_ENDPOINT?version=1&lib=android&token=Test+Message+Queuing&distinct_id=new+person", endpointUrl);
                     } else {
@@ -305,8 +587,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
                     return TestUtils.bytes("{}");
                 }
 
-                assertEquals(nameValuePairs.get(0).getName(), "data");
-                final String decoded = Base64Coder.decodeString(nameValuePairs.get(0).getValue());
+                // Batches are written straight from the database, and only encoded by the real HttpService
+                final String decoded = readBody(body);
 
                 try {
                     messages.put("SENT FLUSH " + endpointUrl);
@@ -369,7 +651,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         AloomaAPI metrics = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "Test Message Queuing") {
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                  return listener;
             }
         };
@@ -474,7 +757,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
             }
 
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                  return listener;
             }
         }
@@ -548,7 +832,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
             }
 
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                  return listener;
             }
         }
@@ -636,7 +921,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
                 AloomaAPI mixpanel = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "TEST TOKEN") {
                     @Override
-                    protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+                    protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                                     Map<String, String> headers, RemoteService.ContentType contentType) {
                         return analyticsMessages;
                     }
                 };
@@ -656,6 +942,57 @@ public class MixpanelBasicTest extends AndroidTestCase {
         assertTrue(found.getJSONObject("properties").has("$bluetooth_version"));
     }
 
+    public void testTimeNullEventName() throws JSONException {
+        final List<AnalyticsEvent> messages = new ArrayList<AnalyticsEvent>();
+        final AnalyticsMessages listener = new AnalyticsMessages(getContext()) {
+            @Override
+            public void publishMessage(AnalyticsEvent heard) {
+                messages.add(heard);
+            }
+        };
+
+        final AloomaAPI api = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "NULL EVENT NAME TOKEN") {
+            @Override
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
+                return listener;
+            }
+        };
+
+        // Timings are kept in a map that can't hold a null name
+        api.timeEvent(null);
+        api.timeEvent("timed");
+        api.track(null, null);
+        api.track("timed", null);
+
+        assertEquals(2, messages.size());
+        assertFalse(messages.get(0).getProperties().has("$duration"));
+        assertTrue(messages.get(1).getProperties().has("$duration"));
+    }
+
+    public void testDeferredEventProperties() throws JSONException {
+        final Map<String, Object> snapshot = new HashMap<String, Object>();
+        snapshot.put("super", "super value");
+        snapshot.put("overridden", "super value");
+        snapshot.put("distinct_id", "super distinct id");
+
+        final JSONObject callerProperties = new JSONObject();
+        callerProperties.put("overridden", "caller value");
+
+        final AnalyticsEvent event = new AnalyticsEvent("deferred", callerProperties, snapshot,
+                "DISTINCT ID", 10500, 4000L, "TOKEN", AloomaAPI.PRIORITY_NORMAL);
+        final JSONObject props = event.getProperties();
+
+        assertEquals("deferred", event.getEventName());
+        assertEquals("TOKEN", event.getToken());
+        assertEquals("super value", props.getString("super"));
+        assertEquals("caller value", props.getString("overridden"));
+        assertEquals("DISTINCT ID", props.getString("distinct_id"));
+        assertEquals(10, props.getLong("time"));
+        assertEquals(6.5, props.getDouble("$duration"), 0.001);
+        assertSame(props, event.getProperties());
+    }
+
     public void testConfiguration() {
         final ApplicationInfo appInfo = new ApplicationInfo();
         appInfo.metaData = new Bundle();
@@ -799,10 +1136,14 @@ public class MixpanelBasicTest extends AndroidTestCase {
         final HttpService mockPoster = new HttpService() {
             @Override
             public byte[] performRequest(String endpointUrl, List<NameValuePair> nameValuePairs,
-                                         Map<String, String> headers, RemoteService.ContentType contentType, String data) {
+                                         Map<String, String> headers, RemoteService.ContentType contentType,
+                                         RemoteService.RequestBody body) throws IOException {
+                if (null == body) {
+                    // Decide checks have nothing to send
+                    return TestUtils.bytes("{}");
+                }
                 try {
-                    assertEquals(nameValuePairs.get(0).getName(), "data");
-                    final String jsonData = Base64Coder.decodeString(nameValuePairs.get(0).getValue());
+                    final String jsonData = readBody(body);
                     JSONArray msg = new JSONArray(jsonData);
                     JSONObject event = msg.getJSONObject(0);
                     JSONObject properties = event.getJSONObject("properties");
@@ -826,7 +1167,8 @@ public class MixpanelBasicTest extends AndroidTestCase {
 
         AloomaAPI metrics = new TestUtils.CleanAloomaAPI(getContext(), mMockPreferences, "Test Message Queuing") {
             @Override
-            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
+            protected AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                             Map<String, String> headers, RemoteService.ContentType contentType) {
                  return listener;
             }
         };
@@ -836,6 +1178,12 @@ public class MixpanelBasicTest extends AndroidTestCase {
         metrics.alias("new id", "old id");
     }
 
+    private static String readBody(RemoteService.RequestBody body) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        return out.toString("UTF-8");
+    }
+
     private Future<SharedPreferences> mMockPreferences;
 
     private static final int POLL_WAIT_SECONDS = 5;
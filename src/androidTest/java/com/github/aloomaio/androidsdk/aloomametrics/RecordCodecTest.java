@@ -0,0 +1,50 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+public class RecordCodecTest extends AndroidTestCase {
+    public void testRoundTrip() throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("time", 1234567890L);
+        properties.put("distinct_id", "abc");
+        properties.put("$duration", 1.5);
+        properties.put("whole", 3.0);
+        properties.put("negative", -42);
+        properties.put("smallest", Long.MIN_VALUE);
+        properties.put("float", 1.1f);
+        properties.put("flag", true);
+        properties.put("nothing", JSONObject.NULL);
+        properties.put("list", new JSONArray().put(1).put("x").put(new JSONObject().put("$set", false)));
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "Quotes \" slashes </ and \u00fcn\u00efcode \uD83D\uDE00");
+        event.put("properties", properties);
+
+        final byte[] encoded = RecordCodec.encode(event);
+        assertEquals(event.toString(), RecordCodec.decode(encoded));
+        assertTrue(encoded.length < event.toString().length());
+    }
+
+    public void testCorruptRecords() throws JSONException {
+        final byte[] encoded = RecordCodec.encode(new JSONObject().put("event", "truncated"));
+        try {
+            RecordCodec.decode(Arrays.copyOf(encoded, encoded.length - 1));
+            fail("Decoded a truncated record");
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+
+        try {
+            RecordCodec.decode(new byte[] {(byte) 0x7F});
+            fail("Decoded an unknown tag");
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
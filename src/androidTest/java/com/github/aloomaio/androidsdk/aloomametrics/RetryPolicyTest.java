@@ -0,0 +1,101 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import android.test.AndroidTestCase;
+
+import com.github.aloomaio.androidsdk.util.RemoteService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Random;
+
+public class RetryPolicyTest extends AndroidTestCase {
+    public void testBackoffCeilingDoubles() {
+        final RetryPolicy policy = new RetryPolicy(1000, 10000, 3, new FixedRandom(0.999999));
+        assertEquals(999, policy.getRetryDelay(1, -1));
+        assertEquals(1999, policy.getRetryDelay(2, -1));
+        assertEquals(3999, policy.getRetryDelay(3, -1));
+        assertEquals(7999, policy.getRetryDelay(4, -1));
+        assertEquals(9999, policy.getRetryDelay(5, -1));
+        assertEquals(9999, policy.getRetryDelay(500, -1));
+    }
+
+    public void testEqualJitter() {
+        final RetryPolicy policy = new RetryPolicy(1000, 10000, 3, new FixedRandom(0.0));
+        assertEquals(500, policy.getRetryDelay(1, -1));
+        assertEquals(4000, policy.getRetryDelay(4, -1));
+        assertEquals(5000, policy.getRetryDelay(500, -1));
+
+        final RetryPolicy halfway = new RetryPolicy(1000, 10000, 3, new FixedRandom(0.5));
+        assertEquals(6000, halfway.getRetryDelay(4, -1));
+    }
+
+    public void testRetryAfter() {
+        final RetryPolicy policy = new RetryPolicy(1000, 10000, 3, new FixedRandom(0.0));
+        assertEquals(5000, policy.getRetryDelay(1, 5000));
+        assertEquals(10000, policy.getRetryDelay(1, 60 * 60 * 1000));
+    }
+
+    public void testQuarantine() {
+        final RetryPolicy policy = new RetryPolicy(1000, 10000, 3);
+        assertFalse(policy.shouldQuarantine(2));
+        assertTrue(policy.shouldQuarantine(3));
+    }
+
+    public void testHttpErrorException() {
+        assertEquals(120000, new RemoteService.HttpErrorException("", 503, "120").getRetryAfterMillis());
+        assertEquals(-1, new RemoteService.HttpErrorException("", 503, null).getRetryAfterMillis());
+        assertEquals(-1, new RemoteService.HttpErrorException("", 503, "soon").getRetryAfterMillis());
+        assertEquals(0, new RemoteService.HttpErrorException("", 503, "Wed, 21 Oct 2015 07:28:00 GMT").getRetryAfterMillis());
+
+        assertTrue(new RemoteService.HttpErrorException("", 400, null).isRequestRejected());
+        assertTrue(new RemoteService.HttpErrorException("", 413, null).isRequestRejected());
+        assertFalse(new RemoteService.HttpErrorException("", 403, null).isRequestRejected());
+        assertFalse(new RemoteService.HttpErrorException("", 429, null).isRequestRejected());
+        assertFalse(new RemoteService.HttpErrorException("", 500, null).isRequestRejected());
+    }
+
+    public void testRejectedRowsAreIsolatedAndQuarantined() throws JSONException {
+        final ADbAdapter adapter = new ADbAdapter(getContext(), "RetryPolicyTest.db");
+        adapter.deleteDB();
+        for (int i = 0; i < 3; i++) {
+            adapter.addJSON(new JSONObject().put("row", i), ADbAdapter.Table.EVENTS);
+        }
+
+        final ADbAdapter.DataBatch first = adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals(3, first.size());
+        assertEquals(0, first.getRejections());
+        adapter.recordRejection(first.getLastId(), ADbAdapter.Table.EVENTS);
+
+        // Each refused row is sent on its own
+        final ADbAdapter.DataBatch alone = adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals(1, alone.size());
+        assertEquals(1, alone.getRejections());
+        assertTrue(alone.hasMore());
+        assertEquals("[{\"row\":0}]", alone.toString());
+
+        adapter.quarantineEvents(alone.getLastId(), ADbAdapter.Table.EVENTS);
+        final ADbAdapter.DataBatch next = adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE);
+        assertEquals("[{\"row\":1}]", next.toString());
+
+        // Sending later rows doesn't delete the quarantined one, only expiring does
+        adapter.cleanupEvents(String.valueOf(Long.MAX_VALUE), ADbAdapter.Table.EVENTS);
+        assertNull(adapter.generateDataBatch(ADbAdapter.Table.EVENTS, 50, Long.MAX_VALUE));
+        assertEquals(1, adapter.addJSON(new JSONObject().put("row", 3), ADbAdapter.Table.EVENTS));
+
+        adapter.deleteDB();
+    }
+
+    private static class FixedRandom extends Random {
+        public FixedRandom(double value) {
+            mValue = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+
+        private final double mValue;
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.aloomaio.androidsdk.java_websocket.drafts;
+
+import android.test.AndroidTestCase;
+
+import com.github.aloomaio.androidsdk.java_websocket.WebSocket;
+import com.github.aloomaio.androidsdk.java_websocket.framing.Framedata;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class Draft_10Test extends AndroidTestCase {
+    public void testMask() {
+        final byte[] data = makeData(1003);
+        final int maskkey = 0x12345678;
+
+        final ByteBuffer masked = ByteBuffer.allocate(data.length);
+        Draft_10.mask(ByteBuffer.wrap(data), masked, data.length, maskkey);
+        assertEquals(data.length, masked.position());
+        for (int i = 0; i < data.length; i++) {
+            final byte key = (byte) (maskkey >>> (24 - 8 * (i % 4)));
+            assertEquals(data[i] ^ key, masked.get(i));
+        }
+
+        // Masking again, in place and without backing arrays, gives back the data
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(masked.array());
+        direct.flip();
+        Draft_10.mask(direct.duplicate(), direct.duplicate(), data.length, maskkey);
+        final byte[] unmasked = new byte[data.length];
+        direct.get(unmasked);
+        assertTrue(Arrays.equals(data, unmasked));
+
+        // Only length bytes are taken, from the positions of the buffers
+        final ByteBuffer source = ByteBuffer.wrap(data);
+        source.position(5);
+        final ByteBuffer target = ByteBuffer.allocate(20);
+        target.position(10);
+        Draft_10.mask(source, target, 8, 0);
+        assertEquals(13, source.position());
+        assertEquals(18, target.position());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(data, 5, 13), Arrays.copyOfRange(target.array(), 10, 18)));
+    }
+
+    public void testSplitFrames() throws Exception {
+        final Draft_10 sender = new Draft_10();
+        sender.setParseMode(WebSocket.Role.CLIENT);
+        final Draft_10 receiver = new Draft_10();
+        receiver.setParseMode(WebSocket.Role.SERVER);
+
+        final List<byte[]> sent = new ArrayList<byte[]>();
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        for (final int length : new int[] { 10, 200, 70000, 3, 5000 }) {
+            final byte[] data = makeData(length);
+            sent.add(data);
+            for (final Framedata frame : sender.createFrames(ByteBuffer.wrap(data), true)) {
+                final ByteBuffer buffer = sender.createBinaryFrame(frame);
+                wire.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                sender.releaseBuffer(buffer);
+            }
+        }
+
+        // Every frame header and payload ends up split between reads, one way or another
+        for (final int piece : new int[] { 1, 7, 100, 4096 }) {
+            final byte[] bytes = wire.toByteArray();
+            final List<byte[]> received = new ArrayList<byte[]>();
+            for (int offset = 0; offset < bytes.length; offset += piece) {
+                final byte[] read = Arrays.copyOfRange(bytes, offset, Math.min(bytes.length, offset + piece));
+                for (final Framedata frame : receiver.translateFrame(ByteBuffer.wrap(read))) {
+                    final ByteBuffer payload = frame.getPayloadData();
+                    final byte[] data = new byte[payload.remaining()];
+                    payload.get(data);
+                    received.add(data);
+                }
+            }
+            assertEquals(sent.size(), received.size());
+            for (int i = 0; i < sent.size(); i++) {
+                assertTrue(Arrays.equals(sent.get(i), received.get(i)));
+            }
+        }
+    }
+
+    private static byte[] makeData(int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + 7);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,199 @@
+package com.github.aloomaio.androidsdk.java_websocket.drafts;
+
+import android.test.AndroidTestCase;
+
+import com.github.aloomaio.androidsdk.java_websocket.WebSocket;
+import com.github.aloomaio.androidsdk.java_websocket.exceptions.InvalidDataException;
+import com.github.aloomaio.androidsdk.java_websocket.exceptions.LimitExedeedException;
+import com.github.aloomaio.androidsdk.java_websocket.framing.Framedata;
+import com.github.aloomaio.androidsdk.java_websocket.framing.FramedataImpl1;
+import com.github.aloomaio.androidsdk.java_websocket.handshake.HandshakeImpl1Client;
+import com.github.aloomaio.androidsdk.java_websocket.handshake.HandshakeImpl1Server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class PerMessageDeflateTest extends AndroidTestCase {
+    public void testNegotiation() throws Exception {
+        if (!PerMessageDeflate.isSupported()) {
+            return; // Never offered before API 19
+        }
+
+        assertNotNull(negotiate("permessage-deflate; server_max_window_bits=10"));
+        assertNull(negotiate("permessage-deflate; client_max_window_bits=10"));
+        assertNull(negotiate("x-webkit-deflate-frame"));
+        assertNull(negotiate("permessage-deflate, permessage-deflate"));
+    }
+
+    public void testFragmentedMessage() throws Exception {
+        if (!PerMessageDeflate.isSupported()) {
+            return;
+        }
+
+        final Draft_10 sender = negotiate("permessage-deflate");
+        final Draft_10 receiver = negotiate("permessage-deflate");
+        final byte[] message = makeMessage(200 * 1024);
+
+        // Three fragments, with a ping between the first two, which is never compressed
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        write(sender, sender.continuousFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(message, 0, 1000), false), wire);
+        final FramedataImpl1 ping = new FramedataImpl1(Framedata.Opcode.PING);
+        ping.setFin(true);
+        ping.setPayload(ByteBuffer.wrap(new byte[] { 1, 2 }));
+        write(sender, Arrays.<Framedata>asList(ping), wire);
+        write(sender, sender.continuousFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(message, 1000, message.length - 2000), false), wire);
+        write(sender, sender.continuousFrame(Framedata.Opcode.TEXT, ByteBuffer.wrap(message, message.length - 1000, 1000), true), wire);
+        assertTrue(wire.size() < message.length / 4);
+
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        final List<Framedata> controls = new ArrayList<Framedata>();
+        read(receiver, wire.toByteArray(), messages, controls);
+        assertEquals(1, messages.size());
+        assertTrue(Arrays.equals(message, messages.get(0)));
+        assertEquals(1, controls.size());
+        assertEquals(Framedata.Opcode.PING, controls.get(0).getOpcode());
+    }
+
+    public void testEmptyMessage() throws Exception {
+        if (!PerMessageDeflate.isSupported()) {
+            return;
+        }
+
+        final Draft_10 sender = negotiate("permessage-deflate");
+        final Draft_10 receiver = negotiate("permessage-deflate");
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        write(sender, sender.createFrames("", false), wire);
+        write(sender, sender.createFrames("after", false), wire);
+
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        read(receiver, wire.toByteArray(), messages, new ArrayList<Framedata>());
+        assertEquals(2, messages.size());
+        assertEquals("", new String(messages.get(0), "UTF-8"));
+        assertEquals("after", new String(messages.get(1), "UTF-8"));
+    }
+
+    public void testNoContextTakeover() throws Exception {
+        if (!PerMessageDeflate.isSupported()) {
+            return;
+        }
+
+        final String extensions = "permessage-deflate; client_no_context_takeover; server_no_context_takeover";
+        final Draft_10 sender = negotiate(extensions);
+        final Draft_10 receiver = negotiate(extensions);
+        final String message = new String(makeMessage(10 * 1024), "UTF-8");
+
+        // Without the context of the first message, the second one compresses the same way
+        final ByteArrayOutputStream first = new ByteArrayOutputStream();
+        write(sender, sender.createFrames(message, false), first);
+        final ByteArrayOutputStream second = new ByteArrayOutputStream();
+        write(sender, sender.createFrames(message, false), second);
+        assertEquals(first.size(), second.size());
+
+        final List<byte[]> messages = new ArrayList<byte[]>();
+        read(receiver, first.toByteArray(), messages, new ArrayList<Framedata>());
+        read(receiver, second.toByteArray(), messages, new ArrayList<Framedata>());
+        assertEquals(2, messages.size());
+        assertEquals(message, new String(messages.get(1), "UTF-8"));
+    }
+
+    public void testMessageSizeLimit() throws Exception {
+        if (!PerMessageDeflate.isSupported()) {
+            return;
+        }
+
+        final PerMessageDeflate sender = PerMessageDeflate.fromResponse("permessage-deflate");
+        final PerMessageDeflate receiver = PerMessageDeflate.fromResponse("permessage-deflate", 4096);
+
+        // Up to the limit is fine, even over several frames
+        final int first = receiver.decompress(copy(sender.compress(ByteBuffer.allocate(2048), false)), false).remaining();
+        final int second = receiver.decompress(copy(sender.compress(ByteBuffer.allocate(2048), true)), true).remaining();
+        assertEquals(4096, first + second);
+
+        // A few hundred bytes that inflate to a megabyte aren't
+        final ByteBuffer bomb = copy(sender.compress(ByteBuffer.allocate(1024 * 1024), true));
+        assertTrue(bomb.remaining() < 2048);
+        try {
+            receiver.decompress(bomb, true);
+            fail("Inflated past the limit");
+        } catch (final LimitExedeedException e) {
+            // Expected
+        }
+    }
+
+    // A client draft that has accepted the server's answer to its offer
+    private static Draft_10 negotiate(String extensions) throws Exception {
+        final Draft_10 client = new Draft_10();
+        client.setParseMode(WebSocket.Role.CLIENT);
+        final HandshakeImpl1Client request = new HandshakeImpl1Client();
+        request.setResourceDescriptor("/");
+        client.postProcessHandshakeRequestAsClient(request);
+        assertEquals(PerMessageDeflate.EXTENSION, request.getFieldValue("Sec-WebSocket-Extensions"));
+
+        final Draft_10 server = new Draft_10();
+        server.setParseMode(WebSocket.Role.SERVER);
+        final HandshakeImpl1Server response = new HandshakeImpl1Server();
+        server.postProcessHandshakeResponseAsServer(request, response);
+        response.put("Sec-WebSocket-Extensions", extensions);
+        if (client.acceptHandshakeAsClient(request, response) != Draft.HandshakeState.MATCHED) {
+            return null;
+        }
+        return client;
+    }
+
+    private static void write(Draft_10 draft, List<Framedata> frames, ByteArrayOutputStream wire) {
+        for (final Framedata frame : frames) {
+            final ByteBuffer buffer = draft.createBinaryFrame(frame);
+            wire.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            draft.releaseBuffer(buffer);
+        }
+    }
+
+    // Reads the wire in small pieces, so that frames are split between reads
+    private static void read(Draft_10 draft, byte[] wire, List<byte[]> messages, List<Framedata> controls)
+            throws InvalidDataException {
+        final ByteArrayOutputStream message = new ByteArrayOutputStream();
+        for (int offset = 0; offset < wire.length; offset += 1000) {
+            final byte[] piece = Arrays.copyOfRange(wire, offset, Math.min(wire.length, offset + 1000));
+            for (final Framedata frame : draft.translateFrame(ByteBuffer.wrap(piece))) {
+                if (frame.getOpcode() == Framedata.Opcode.PING) {
+                    controls.add(frame);
+                    continue;
+                }
+                final ByteBuffer payload = frame.getPayloadData();
+                final byte[] bytes = new byte[payload.remaining()];
+                payload.get(bytes);
+                message.write(bytes, 0, bytes.length);
+                if (frame.isFin()) {
+                    messages.add(message.toByteArray());
+                    message.reset();
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer);
+        copy.flip();
+        return copy;
+    }
+
+    // Something like a snapshot, repetitive enough to compress well
+    private static byte[] makeMessage(int length) {
+        final StringBuilder message = new StringBuilder(length);
+        int i = 0;
+        while (message.length() < length) {
+            message.append("{\"hashCode\":").append(i++ % 1000).append(",\"classes\":[\"android.widget.TextView\"]},");
+        }
+        message.setLength(length);
+        try {
+            return message.toString().getBytes("UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF not supported on this platform?", e);
+        }
+    }
+}
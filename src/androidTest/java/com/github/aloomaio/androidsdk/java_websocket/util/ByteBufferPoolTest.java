@@ -0,0 +1,68 @@
+package com.github.aloomaio.androidsdk.java_websocket.util;
+
+import android.test.AndroidTestCase;
+
+import java.nio.ByteBuffer;
+
+public class ByteBufferPoolTest extends AndroidTestCase {
+    public void testReuse() {
+        final ByteBufferPool pool = new ByteBufferPool(2, 1024);
+        final ByteBuffer first = pool.take(100);
+        assertEquals(0, first.position());
+        assertEquals(100, first.limit());
+
+        first.position(50);
+        pool.release(first);
+        final ByteBuffer second = pool.take(80);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(80, second.limit());
+
+        // Too small buffers aren't handed out, and aren't lost either
+        pool.release(second);
+        final ByteBuffer bigger = pool.take(200);
+        assertNotSame(first, bigger);
+        assertEquals(200, bigger.limit());
+        assertSame(first, pool.take(10));
+    }
+
+    public void testUnpooledBuffers() {
+        final ByteBufferPool pool = new ByteBufferPool(2, 1024);
+        pool.release(pool.take(2048));
+        pool.release(ByteBuffer.allocate(512));
+        pool.release(ByteBuffer.allocate(2048));
+        pool.release(ByteBuffer.allocateDirect(512));
+        final ByteBuffer sliced = ByteBuffer.allocate(512);
+        sliced.position(10);
+        pool.release(sliced.slice());
+
+        final ByteBuffer taken = pool.take(100);
+        assertTrue(taken.hasArray());
+        assertEquals(100, taken.capacity());
+    }
+
+    public void testReleasedOnce() {
+        final ByteBufferPool pool = new ByteBufferPool(2, 1024);
+        final ByteBuffer taken = pool.take(100);
+        pool.release(taken);
+        pool.release(taken);
+
+        // Only handed out again once, however often it was given back
+        assertSame(taken, pool.take(10));
+        assertNotSame(taken, pool.take(10));
+    }
+
+    public void testKeepsBiggest() {
+        final ByteBufferPool pool = new ByteBufferPool(2, 1024);
+        final ByteBuffer small = pool.take(100);
+        final ByteBuffer medium = pool.take(500);
+        final ByteBuffer large = pool.take(1000);
+        pool.release(small);
+        pool.release(large);
+        pool.release(medium);
+
+        assertSame(large, pool.take(600));
+        assertSame(medium, pool.take(10));
+        assertNotSame(small, pool.take(10));
+    }
+}
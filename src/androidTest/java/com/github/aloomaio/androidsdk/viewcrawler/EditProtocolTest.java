@@ -73,6 +73,40 @@ public class EditProtocolTest extends AndroidTestCase {
         assertEquals(prop3.targetClass, ImageView.class);
     }
 
+    public void testScreenshotConfig() throws EditProtocol.BadInstructionsException, JSONException {
+        final JSONObject config = mSnapshotConfig.getJSONObject("config");
+        config.put("screenshot_format", "webp");
+        config.put("screenshot_quality", 80);
+        config.put("screenshot_tile_size", 64);
+        assertNotNull(mProtocol.readSnapshotConfig(mSnapshotConfig));
+
+        config.put("screenshot_format", "gif");
+        try {
+            mProtocol.readSnapshotConfig(mSnapshotConfig);
+            fail("Exception was not thrown for an unknown screenshot format");
+        } catch (final EditProtocol.BadInstructionsException e) {
+            // OK!
+        }
+
+        config.put("screenshot_format", "jpeg");
+        config.put("screenshot_quality", 101);
+        try {
+            mProtocol.readSnapshotConfig(mSnapshotConfig);
+            fail("Exception was not thrown for a screenshot quality over 100");
+        } catch (final EditProtocol.BadInstructionsException e) {
+            // OK!
+        }
+
+        config.put("screenshot_quality", 80);
+        config.put("screenshot_tile_size", 50000);
+        try {
+            mProtocol.readSnapshotConfig(mSnapshotConfig);
+            fail("Exception was not thrown for a screenshot tile size over the maximum");
+        } catch (final EditProtocol.BadInstructionsException e) {
+            // OK!
+        }
+    }
+
     public void testReadPaths() throws JSONException {
         {
             final List<Pathfinder.PathElement> p = mProtocol.readPath(mJustClassPath, mResourceIds);
@@ -1,6 +1,11 @@
 package com.github.aloomaio.androidsdk.viewcrawler;
 
 
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
 import android.test.AndroidTestCase;
 import android.util.JsonWriter;
 import android.util.SparseArray;
@@ -153,6 +158,109 @@ public class ViewSnapshotTest extends AndroidTestCase {
         assertEquals(adhoc3Desc.getInt("id"), TestView.BUTTON_ID);
     }
 
+    public void testChangedViews() throws IOException, JSONException {
+        final Map<Integer, String> nodes = new HashMap<Integer, String>();
+
+        // Nothing to compare to, so every view is new
+        JSONObject delta = snapshotChangedViews(nodes);
+        assertEquals(mRootView.mAllViews.size(), delta.getJSONArray("objects").length());
+        assertEquals(0, delta.getJSONArray("removed").length());
+
+        delta = snapshotChangedViews(nodes);
+        assertEquals(0, delta.getJSONArray("objects").length());
+        assertEquals(0, delta.getJSONArray("removed").length());
+
+        mRootView.mTextView1.setText("Changed");
+        delta = snapshotChangedViews(nodes);
+        assertEquals(1, delta.getJSONArray("objects").length());
+        assertEquals(mRootView.mTextView1.hashCode(), delta.getJSONArray("objects").getJSONObject(0).getInt("hashCode"));
+        assertEquals("Changed", delta.getJSONArray("objects").getJSONObject(0).getString("text"));
+
+        // Removing a view changes its parent's subviews
+        final ViewGroup parent = (ViewGroup) mRootView.mAdHocButton3.getParent();
+        parent.removeView(mRootView.mAdHocButton3);
+        delta = snapshotChangedViews(nodes);
+        assertEquals(1, delta.getJSONArray("objects").length());
+        assertEquals(parent.hashCode(), delta.getJSONArray("objects").getJSONObject(0).getInt("hashCode"));
+        assertEquals(1, delta.getJSONArray("removed").length());
+        assertEquals(mRootView.mAdHocButton3.hashCode(), delta.getJSONArray("removed").getInt(0));
+    }
+
+    public void testScreenshotTiles() throws IOException, JSONException {
+        // Three columns of 100 pixel tiles, the last 50 wide, and two rows, the last 30 high
+        final Bitmap source = Bitmap.createBitmap(250, 130, Bitmap.Config.RGB_565);
+        source.eraseColor(Color.WHITE);
+        final ViewSnapshot.CachedBitmap screenshot = new ViewSnapshot.CachedBitmap();
+        final ViewSnapshot.RootState state = new ViewSnapshot.RootState();
+        final List<byte[]> images = new ArrayList<byte[]>();
+
+        // Nothing to compare to, so every tile is sent, edge tiles cut to the size of the bitmap
+        screenshot.recreate(250, 130, source.getDensity(), source);
+        JSONObject tiles = writeTiles(screenshot, state, images);
+        assertEquals(250, tiles.getInt("width"));
+        assertEquals(130, tiles.getInt("height"));
+        assertEquals(100, tiles.getInt("tile_size"));
+        assertTiles(tiles, new int[][] { {0, 0}, {100, 0}, {200, 0}, {0, 100}, {100, 100}, {200, 100} });
+        final Bitmap corner = decodeTile(tiles, 5, images);
+        assertEquals(50, corner.getWidth());
+        assertEquals(30, corner.getHeight());
+
+        images.clear();
+        tiles = writeTiles(screenshot, state, images);
+        assertTiles(tiles, new int[0][]);
+        assertTrue(images.isEmpty());
+
+        // A change across the bottom of the middle and right columns, partial tiles included
+        final Paint paint = new Paint();
+        paint.setColor(Color.RED);
+        new Canvas(source).drawRect(150, 110, 220, 120, paint);
+        screenshot.recreate(250, 130, source.getDensity(), source);
+        tiles = writeTiles(screenshot, state, images);
+        assertTiles(tiles, new int[][] { {100, 100}, {200, 100} });
+        final Bitmap changed = decodeTile(tiles, 1, images);
+        assertEquals(Color.RED, changed.getPixel(10, 15));
+        assertEquals(Color.WHITE, changed.getPixel(30, 15));
+
+        // Once the size changes, old tiles can't be compared, so everything is sent again
+        final Bitmap wider = Bitmap.createBitmap(260, 130, Bitmap.Config.RGB_565);
+        wider.eraseColor(Color.WHITE);
+        screenshot.recreate(260, 130, wider.getDensity(), wider);
+        tiles = writeTiles(screenshot, state, images);
+        assertTiles(tiles, new int[][] { {0, 0}, {100, 0}, {200, 0}, {0, 100}, {100, 100}, {200, 100} });
+        assertEquals(60, decodeTile(tiles, 2, images).getWidth());
+    }
+
+    private JSONObject writeTiles(ViewSnapshot.CachedBitmap screenshot, ViewSnapshot.RootState state,
+                                  List<byte[]> images) throws IOException, JSONException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        screenshot.writeTilesJSON(Bitmap.CompressFormat.PNG, 100, 100, state, images, out);
+        return new JSONObject(new String(out.toByteArray()));
+    }
+
+    private void assertTiles(JSONObject tiles, int[][] corners) throws JSONException {
+        final JSONArray sent = tiles.getJSONArray("tiles");
+        assertEquals(corners.length, sent.length());
+        for (int i = 0; i < corners.length; i++) {
+            assertEquals(corners[i][0], sent.getJSONObject(i).getInt("x"));
+            assertEquals(corners[i][1], sent.getJSONObject(i).getInt("y"));
+        }
+    }
+
+    private Bitmap decodeTile(JSONObject tiles, int index, List<byte[]> images) throws JSONException {
+        final byte[] image = images.get(tiles.getJSONArray("tiles").getJSONObject(index).getInt("image"));
+        return BitmapFactory.decodeByteArray(image, 0, image.length);
+    }
+
+    private JSONObject snapshotChangedViews(Map<Integer, String> nodes) throws IOException, JSONException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final OutputStreamWriter writer = new OutputStreamWriter(out);
+        writer.write("{");
+        mSnapshot.snapshotChangedViews(writer, mRootView, nodes);
+        writer.write("}");
+        writer.flush();
+        return new JSONObject(new String(out.toByteArray()));
+    }
+
     private ViewSnapshot mSnapshot;
     private TestView mRootView;
 }
@@ -56,13 +56,25 @@ public class AConfig {
         }
 
         mBulkUploadLimit = metaData.getInt("com.alooma.android.AConfig.BulkUploadLimit", 40); // 40 records default
+        mBulkUploadByteLimit = metaData.getInt("com.alooma.android.AConfig.BulkUploadByteLimit", 256 * 1024); // 256k default
+        mFlushByteBudget = metaData.getInt("com.alooma.android.AConfig.FlushByteBudget", 4 * 1024 * 1024); // 4M default
+        mFlushTimeBudget = metaData.getInt("com.alooma.android.AConfig.FlushTimeBudget", 30 * 1000); // 30 seconds default
         mFlushInterval = metaData.getInt("com.alooma.android.AConfig.FlushInterval", 60 * 1000); // one minute default
+        mMaxRetryDelay = metaData.getInt("com.alooma.android.AConfig.MaxRetryDelay", 30 * 60 * 1000); // 30 minutes default
+        mMaxBatchRejections = metaData.getInt("com.alooma.android.AConfig.MaxBatchRejections", 3);
         mDataExpiration = metaData.getInt("com.alooma.android.AConfig.DataExpiration",  1000 * 60 * 60 * 24 * 5); // 5 days default
+        mMaxQueueRows = metaData.getInt("com.alooma.android.AConfig.MaxQueueRows", 10000);
+        mMaxQueueBytes = metaData.getInt("com.alooma.android.AConfig.MaxQueueBytes", 10 * 1024 * 1024); // 10M default
         mDisableFallback = metaData.getBoolean("com.alooma.android.AConfig.DisableFallback", true);
         mResourcePackageName = metaData.getString("com.alooma.android.AConfig.ResourcePackageName"); // default is null
         mDisableGestureBindingUI = metaData.getBoolean("com.alooma.android.AConfig.DisableGestureBindingUI", false);
         mDisableEmulatorBindingUI = metaData.getBoolean("com.alooma.android.AConfig.DisableEmulatorBindingUI", false);
         mDisableAppOpenEvent = metaData.getBoolean("com.alooma.android.AConfig.DisableAppOpenEvent", true);
+        mGzipRequests = metaData.getBoolean("com.alooma.android.AConfig.GzipRequests", false);
+        mDeferEventConstruction = metaData.getBoolean("com.alooma.android.AConfig.DeferEventConstruction", false);
+        mAdaptiveFlush = metaData.getBoolean("com.alooma.android.AConfig.AdaptiveFlush", false);
+        mEventJournal = metaData.getBoolean("com.alooma.android.AConfig.EventJournal", false);
+        mJournalSegmentBytes = metaData.getInt("com.alooma.android.AConfig.JournalSegmentBytes", 1024 * 1024); // 1M default
 
          // Disable if EITHER of these is present and false, otherwise enable
         final boolean surveysAutoCheck = metaData.getBoolean("com.alooma.android.AConfig.AutoCheckForSurveys", true);
@@ -118,12 +130,24 @@ public class AConfig {
                 "aloomaSDK configured with:\n" +
                 "    AutoShowMixpanelUpdates " + getAutoShowMixpanelUpdates() + "\n" +
                 "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
+                "    BulkUploadByteLimit " + getBulkUploadByteLimit() + "\n" +
+                "    FlushByteBudget " + getFlushByteBudget() + "\n" +
+                "    FlushTimeBudget " + getFlushTimeBudget() + "\n" +
                 "    FlushInterval " + getFlushInterval() + "\n" +
+                "    MaxRetryDelay " + getMaxRetryDelay() + "\n" +
+                "    MaxBatchRejections " + getMaxBatchRejections() + "\n" +
                 "    DataExpiration " + getDataExpiration() + "\n" +
+                "    MaxQueueRows " + getMaxQueueRows() + "\n" +
+                "    MaxQueueBytes " + getMaxQueueBytes() + "\n" +
                 "    DisableFallback " + getDisableFallback() + "\n" +
                 "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                 "    DisableDeviceUIBinding " + getDisableGestureBindingUI() + "\n" +
                 "    DisableEmulatorUIBinding " + getDisableEmulatorBindingUI() + "\n" +
+                "    GzipRequests " + getGzipRequests() + "\n" +
+                "    DeferEventConstruction " + getDeferEventConstruction() + "\n" +
+                "    AdaptiveFlush " + getAdaptiveFlush() + "\n" +
+                "    EventJournal " + getEventJournal() + "\n" +
+                "    JournalSegmentBytes " + getJournalSegmentBytes() + "\n" +
                 "    EnableDebugLogging " + DEBUG + "\n" +
                 "    TestMode " + getTestMode() + "\n" +
                 "    EventsEndpoint " + getEventsEndpoint() + "\n" +
@@ -142,16 +166,52 @@ public class AConfig {
         return mBulkUploadLimit;
     }
 
+    // Max size in bytes of a single upload. A record larger than this is still sent on its own.
+    public int getBulkUploadByteLimit() {
+        return mBulkUploadByteLimit;
+    }
+
+    // Max bytes sent back-to-back by a single flush before the rest waits for the next one.
+    public int getFlushByteBudget() {
+        return mFlushByteBudget;
+    }
+
+    // Max milliseconds a single flush keeps sending back-to-back uploads.
+    public int getFlushTimeBudget() {
+        return mFlushTimeBudget;
+    }
+
     // Target max milliseconds between flushes. This is advisory.
     public int getFlushInterval() {
         return mFlushInterval;
     }
 
+    // Longest we'll back off after failed flushes, in milliseconds. Failures double the backoff from FlushInterval up to this.
+    public int getMaxRetryDelay() {
+        return mMaxRetryDelay;
+    }
+
+    // Quarantine a batch after the server has refused it this many times, rather than keep sending it.
+    // A record refused on its own after being refused with others is quarantined straight away.
+    public int getMaxBatchRejections() {
+        return mMaxBatchRejections;
+    }
+
     // Throw away records that are older than this in milliseconds. Should be below the server side age limit for events.
     public int getDataExpiration() {
         return mDataExpiration;
     }
 
+    // Most records kept waiting to be sent, per table. The oldest records are evicted to stay under this.
+    public int getMaxQueueRows() {
+        return mMaxQueueRows;
+    }
+
+    // Most bytes of records kept waiting to be sent, per table. The oldest records are evicted to stay under this.
+    public int getMaxQueueBytes() {
+        return mMaxQueueBytes;
+    }
+
     public boolean getDisableFallback() {
         return mDisableFallback;
     }
@@ -168,6 +228,33 @@ public class AConfig {
         return mDisableAppOpenEvent;
     }
 
+    // Send request bodies with Content-Encoding: gzip. Hosts that answer 415 get plain bodies afterwards.
+    public boolean getGzipRequests() {
+        return mGzipRequests;
+    }
+
+    // Build event properties on the worker thread rather than in track(). Properties objects
+    // passed to track() must not be modified afterwards when this is set.
+    public boolean getDeferEventConstruction() {
+        return mDeferEventConstruction;
+    }
+
+    // Flush less often on cellular and battery, so uploads wake the radio fewer times
+    public boolean getAdaptiveFlush() {
+        return mAdaptiveFlush;
+    }
+
+    // Queue records in memory-mapped journal files rather than SQLite. Records queued
+    // in one store are not carried over when switching to the other.
+    public boolean getEventJournal() {
+        return mEventJournal;
+    }
+
+    // Size of each journal file when EventJournal is set. Files are deleted once all of their records are sent.
+    public int getJournalSegmentBytes() {
+        return mJournalSegmentBytes;
+    }
+
     public boolean getTestMode() {
         return mTestMode;
     }
@@ -244,13 +331,25 @@ public class AConfig {
     }
 
     private final int mBulkUploadLimit;
+    private final int mBulkUploadByteLimit;
+    private final int mFlushByteBudget;
+    private final int mFlushTimeBudget;
     private final int mFlushInterval;
+    private final int mMaxRetryDelay;
+    private final int mMaxBatchRejections;
     private final int mDataExpiration;
+    private final int mMaxQueueRows;
+    private final int mMaxQueueBytes;
     private final boolean mDisableFallback;
     private final boolean mTestMode;
     private final boolean mDisableGestureBindingUI;
     private final boolean mDisableEmulatorBindingUI;
     private final boolean mDisableAppOpenEvent;
+    private final boolean mGzipRequests;
+    private final boolean mDeferEventConstruction;
+    private final boolean mAdaptiveFlush;
+    private final boolean mEventJournal;
+    private final int mJournalSegmentBytes;
     private final String mEventsEndpoint;
     private final String mEventsFallbackEndpoint;
     private final String mPeopleEndpoint;
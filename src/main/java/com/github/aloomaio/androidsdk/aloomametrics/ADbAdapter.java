@@ -1,19 +1,34 @@
 package com.github.aloomaio.androidsdk.aloomametrics;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteFullException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
+import com.github.aloomaio.androidsdk.util.RemoteService;
+
 /**
  * SQLite database adapter for AloomaAPI.
  *
@@ -21,13 +36,29 @@ import android.util.Log;
  * by a single thread.
  *
  */
-/* package */ class ADbAdapter {
+/* package */ class ADbAdapter implements EventStore {
     private static final String LOGTAG = "AloomaAPI.Database";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 9;
+    // Files SQLite keeps next to the database, depending on its journal mode
+    private static final String[] DATABASE_FILE_SUFFIXES = { "-journal", "-wal", "-shm" };
     public static final String KEY_DATA = "data";
     public static final String KEY_CREATED_AT = "created_at";
+    public static final String KEY_REJECTIONS = "rejections";
+    public static final String KEY_QUARANTINED = "quarantined";
+    public static final String KEY_FORMAT = "format";
+    public static final String KEY_PRIORITY = "priority";
+    public static final String KEY_DESTINATION = "destination";
+
+    // Records added without a destination, including every record stored before
+    // destinations were, belong to the destination of whoever opened the store.
+    public static final String DEFAULT_DESTINATION = "";
 
     private final MPDatabaseHelper mDatabaseHelper;
+    private final int mMaxRows;
+    private final long mMaxBytes;
+    private final int[] mRowCounts;
+    private final long[] mByteCounts;
+    private final SQLiteStatement[] mInsertStatements;
 
     public enum Table {
         EVENTS ("events"),
@@ -44,23 +75,60 @@ import android.util.Log;
         private final String mTableName;
     }
 
+    // Eviction frees this fraction of the limits beyond what the insert needs
+    private static final int EVICTION_SLACK_DIVISOR = 100;
+
+    // Freed on top of the records being added when the disk is full
+    private static final long DISK_FULL_HEADROOM_BYTES = 64 * 1024;
+
     private static final String CREATE_EVENTS_TABLE =
        "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
-        KEY_CREATED_AT + " INTEGER NOT NULL);";
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_REJECTIONS + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_QUARANTINED + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_FORMAT + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_PRIORITY + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_DESTINATION + " TEXT NOT NULL DEFAULT '');";
     private static final String CREATE_PEOPLE_TABLE =
        "CREATE TABLE " + Table.PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
         KEY_DATA + " STRING NOT NULL, " +
-        KEY_CREATED_AT + " INTEGER NOT NULL);";
+        KEY_CREATED_AT + " INTEGER NOT NULL, " +
+        KEY_REJECTIONS + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_QUARANTINED + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_FORMAT + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_PRIORITY + " INTEGER NOT NULL DEFAULT 0, " +
+        KEY_DESTINATION + " TEXT NOT NULL DEFAULT '');";
     private static final String EVENTS_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
         " (" + KEY_CREATED_AT + ");";
     private static final String PEOPLE_TIME_INDEX =
         "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.PEOPLE.getName() +
         " (" + KEY_CREATED_AT + ");";
+    // Index names are shared by all of the tables in a database
+    private static final String EVENTS_PRIORITY_INDEX =
+        "CREATE INDEX IF NOT EXISTS events_priority_idx ON " + Table.EVENTS.getName() +
+        " (" + KEY_PRIORITY + " DESC, " + KEY_CREATED_AT + ");";
+    private static final String PEOPLE_PRIORITY_INDEX =
+        "CREATE INDEX IF NOT EXISTS people_priority_idx ON " + Table.PEOPLE.getName() +
+        " (" + KEY_PRIORITY + " DESC, " + KEY_CREATED_AT + ");";
 
     public ADbAdapter(Context context, String dbName) {
+        this(context, dbName, AConfig.getInstance(context).getMaxQueueRows(), AConfig.getInstance(context).getMaxQueueBytes());
+    }
+
+    /**
+     * @param maxRows the most unsent records to keep in each table
+     * @param maxBytes the most bytes of records to keep in each table, counting quarantined records
+     */
+    public ADbAdapter(Context context, String dbName, int maxRows, long maxBytes) {
         mDatabaseHelper = new MPDatabaseHelper(context, dbName);
+        mMaxRows = maxRows;
+        mMaxBytes = maxBytes;
+        mRowCounts = new int[Table.values().length];
+        mByteCounts = new long[Table.values().length];
+        mInsertStatements = new SQLiteStatement[Table.values().length];
+        forgetRowCounts();
     }
 
     /**
@@ -71,54 +139,234 @@ import android.util.Log;
      * @return the number of rows in the table, or -1 on failure
      */
     public int addJSON(JSONObject j, Table table) {
+        return addJSON(Collections.singletonList(j), table);
+    }
+
+    /**
+     * Adds JSON strings representing events with properties or person records
+     * to the SQLiteDatabase, all in a single transaction. If the table would go over its
+     * row or byte limit, the oldest records are evicted to make room.
+     * @param records the JSON to record, in order
+     * @param table the table to insert into, either "events" or "people"
+     * @return the number of rows in the table, or -1 on failure
+     */
+    public int addJSON(List<JSONObject> records, Table table) {
+        return addJSON(records, table, AloomaAPI.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Adds records as addJSON(records, table) does, with a priority. Higher priority records
+     * are sent first, and when the table is full, lower priority records are evicted first.
+     * @param priority one of the AloomaAPI.PRIORITY_ values
+     */
+    public int addJSON(List<JSONObject> records, Table table, int priority) {
+        return addJSON(records, table, priority, DEFAULT_DESTINATION);
+    }
+
+    /**
+     * Adds records as addJSON(records, table, priority) does, to be sent to a particular
+     * destination. Records for different destinations are never sent in the same batch.
+     * @param destination the key of the destination, see AnalyticsMessages.Destination
+     */
+    public int addJSON(List<JSONObject> records, Table table, int priority, String destination) {
+        final List<byte[]> encoded = new ArrayList<byte[]>(records.size());
+        for (final JSONObject j : records) {
+            try {
+                encoded.add(RecordCodec.encode(j));
+            } catch (final JSONException e) {
+                Log.e(LOGTAG, "Could not encode a record for table " + table.getName() + ", dropping it.", e);
+            }
+        }
+        return addRecords(encoded, table, priority, destination);
+    }
+
+    /**
+     * Adds records as addJSON(records, table, priority, destination) does, for records
+     * already in the compact form of RecordCodec.
+     */
+    public int addRecords(List<byte[]> records, Table table, int priority, String destination) {
         final String tableName = table.getName();
 
-        Cursor c = null;
+        final List<byte[]> rows = new ArrayList<byte[]>(records.size());
+        long bytes = 0;
+        for (final byte[] row : records) {
+            final long rowBytes = row.length;
+            if (rowBytes > mMaxBytes) {
+                Log.w(LOGTAG, "Dropping a " + rowBytes + " byte record, larger than the whole " + tableName + " table is allowed to be.");
+                continue;
+            }
+            rows.add(row);
+            bytes += rowBytes;
+        }
+
         int count = -1;
 
         try {
             final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+            try {
+                insertRows(db, table, rows, bytes, priority, destination);
+            } catch (final SQLiteException e) {
+                if (!isDiskFull(e)) {
+                    throw e;
+                }
 
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            db.insert(tableName, null, cv);
+                // Rows we delete leave free pages in the database file, which the retry can reuse
+                Log.w(LOGTAG, "Disk is full, evicting the oldest records from " + tableName + " to make room.", e);
+                evict(db, table, 0, bytes + DISK_FULL_HEADROOM_BYTES);
+                insertRows(db, table, rows, bytes, priority, destination);
+            }
 
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName, null);
-            c.moveToFirst();
-            count = c.getInt(0);
+            count = getRowCount(db, table);
         } catch (final SQLiteException e) {
+            if (isDiskFull(e)) {
+                // Unlike the other errors below, this one isn't the database's fault
+                Log.e(LOGTAG, "Disk is full, dropping " + rows.size() + " Mixpanel records for table " + tableName + ".", e);
+                forgetRowCounts();
+                return count;
+            }
+
             Log.e(LOGTAG, "Could not add Mixpanel data to table " + tableName + ". Re-initializing database.", e);
 
             // We assume that in general, the results of a SQL exception are
             // unrecoverable, and could be associated with an oversized or
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
-            }
             mDatabaseHelper.deleteDatabase();
+        }
+        return count;
+    }
+
+    private void insertRows(SQLiteDatabase db, Table table, List<byte[]> rows, long bytes, int priority, String destination) {
+        final int index = table.ordinal();
+        boolean committed = false;
+
+        db.beginTransaction();
+        try {
+            makeRoom(db, table, rows.size(), bytes);
+
+            final SQLiteStatement insert = getInsertStatement(db, table);
+            final long now = System.currentTimeMillis();
+            for (final byte[] row : rows) {
+                insert.bindBlob(1, row);
+                insert.bindLong(2, now);
+                insert.bindLong(3, RecordCodec.FORMAT_COMPACT);
+                insert.bindLong(4, priority);
+                insert.bindString(5, destination);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } finally {
+            db.endTransaction();
+            if (!committed) {
+                // Evictions were counted, but rolled back
+                forgetRowCounts();
+            }
+        }
+
+        mRowCounts[index] += rows.size();
+        mByteCounts[index] += bytes;
+    }
+
+    // Evicts enough of the lowest priority, oldest records that the given rows fit under the table's limits,
+    // plus some slack so that a full table isn't sorted again on every insert.
+    private void makeRoom(SQLiteDatabase db, Table table, int incomingRows, long incomingBytes) {
+        final int excessRows = getRowCount(db, table) + incomingRows - mMaxRows;
+        final long excessBytes = getByteCount(db, table) + incomingBytes - mMaxBytes;
+        if (excessRows <= 0 && excessBytes <= 0) {
+            return;
+        }
+
+        final int minRows = excessRows > 0 ? excessRows + mMaxRows / EVICTION_SLACK_DIVISOR : 0;
+        final long minBytes = excessBytes > 0 ? excessBytes + mMaxBytes / EVICTION_SLACK_DIVISOR : 0;
+        Log.w(LOGTAG, "Table " + table.getName() + " is full, evicting the oldest records.");
+        evict(db, table, minRows, minBytes);
+    }
+
+    // Deletes quarantined records, then the lowest priority oldest records, until at least minRows unsent
+    // records and minBytes bytes have been deleted (or the table is empty.)
+    private void evict(SQLiteDatabase db, Table table, int minRows, long minBytes) {
+        final StringBuilder ids = new StringBuilder();
+        int rowsFreed = 0;
+        long bytesFreed = 0;
+
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT _id, LENGTH(CAST(" + KEY_DATA + " AS BLOB)), " + KEY_QUARANTINED +
+                    " FROM " + table.getName() +
+                    " ORDER BY " + KEY_QUARANTINED + " DESC, " + KEY_PRIORITY + " ASC, " + KEY_CREATED_AT + " ASC", null);
+            while ((rowsFreed < minRows || bytesFreed < minBytes) && c.moveToNext()) {
+                if (ids.length() > 0) {
+                    ids.append(',');
+                }
+                ids.append(c.getLong(0));
+                bytesFreed += c.getLong(1);
+                if (c.getInt(2) == 0) {
+                    rowsFreed++;
+                }
+            }
         } finally {
             if (c != null) {
                 c.close();
             }
-            mDatabaseHelper.close();
         }
-        return count;
+
+        if (ids.length() > 0) {
+            deleteRows(db, table, "_id IN (" + ids + ")");
+        }
+    }
+
+    // Deletes the rows matching where, keeping the cached counts in step.
+    private int deleteRows(SQLiteDatabase db, Table table, String where) {
+        final int index = table.ordinal();
+        if (mRowCounts[index] >= 0) {
+            Cursor c = null;
+            try {
+                c = db.rawQuery("SELECT TOTAL(" + KEY_QUARANTINED + " = 0), TOTAL(LENGTH(CAST(" + KEY_DATA + " AS BLOB)))" +
+                        " FROM " + table.getName() + " WHERE " + where, null);
+                c.moveToFirst();
+                mRowCounts[index] = Math.max(0, mRowCounts[index] - c.getInt(0));
+                mByteCounts[index] = Math.max(0, mByteCounts[index] - c.getLong(1));
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
+        return db.delete(table.getName(), where, null);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static boolean isDiskFull(SQLiteException e) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && e instanceof SQLiteFullException;
     }
 
     /**
-     * Removes events with an _id <= last_id from table
+     * Removes events with an _id <= last_id from table. Quarantined events are left alone.
      * @param last_id the last id to delete
      * @param table the table to remove events from, either "events" or "people"
      */
     public void cleanupEvents(String last_id, Table table) {
+        cleanupSent("_id <= " + last_id, table);
+    }
+
+    /**
+     * Removes the events of a sent batch. Events of other priorities are left alone,
+     * even if they were added earlier.
+     * @param batch a batch returned by generateDataBatch
+     * @param table the table the batch came from, either "events" or "people"
+     */
+    public void cleanupEvents(DataBatch batch, Table table) {
+        cleanupSent(getBatchSelection(batch), table);
+    }
+
+    private void cleanupSent(String selection, Table table) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
-            db.delete(tableName, "_id <= " + last_id, null);
+            deleteRows(db, table, selection + " AND " + KEY_QUARANTINED + " = 0");
         } catch (final SQLiteException e) {
             Log.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -127,8 +375,6 @@ import android.util.Log;
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
             mDatabaseHelper.deleteDatabase();
-        } finally {
-            mDatabaseHelper.close();
         }
     }
 
@@ -142,7 +388,7 @@ import android.util.Log;
 
         try {
             final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            deleteRows(db, table, KEY_CREATED_AT + " <= " + time);
         } catch (final SQLiteException e) {
             Log.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
 
@@ -151,50 +397,290 @@ import android.util.Log;
             // otherwise unusable DB. Better to bomb it and get back on track
             // than to leave it junked up (and maybe filling up the disk.)
             mDatabaseHelper.deleteDatabase();
-        } finally {
-            mDatabaseHelper.close();
         }
     }
 
+    /**
+     * Counts one more refusal by the server against the unsent events with an _id <= last_id.
+     * The next batch will send each of these events on its own, so that a single bad event
+     * can't keep the rest from being sent.
+     * @param last_id the last id of the refused batch
+     * @param table the table the batch came from, either "events" or "people"
+     */
+    public void recordRejection(String last_id, Table table) {
+        countRejection("_id <= " + last_id, table);
+    }
+
+    /**
+     * Counts one more refusal by the server against the events of a batch.
+     * @param batch a batch returned by generateDataBatch
+     * @param table the table the batch came from, either "events" or "people"
+     */
+    public void recordRejection(DataBatch batch, Table table) {
+        countRejection(getBatchSelection(batch), table);
+    }
+
+    private void countRejection(String selection, Table table) {
+        final String tableName = table.getName();
+
+        try {
+            final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+            db.execSQL("UPDATE " + tableName + " SET " + KEY_REJECTIONS + " = " + KEY_REJECTIONS + " + 1" +
+                    " WHERE " + selection + " AND " + KEY_QUARANTINED + " = 0");
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "Could not count refused Mixpanel records in " + tableName + ". Re-initializing database.", e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            mDatabaseHelper.deleteDatabase();
+        }
+    }
+
+    /**
+     * Sets aside the unsent events with an _id <= last_id, so they are no longer sent.
+     * They stay in the table until they expire.
+     * @param last_id the last id to quarantine
+     * @param table the table to quarantine events in, either "events" or "people"
+     */
+    public void quarantineEvents(String last_id, Table table) {
+        quarantine("_id <= " + last_id, table);
+    }
+
+    /**
+     * Sets aside the events of a batch, so they are no longer sent.
+     * @param batch a batch returned by generateDataBatch
+     * @param table the table the batch came from, either "events" or "people"
+     */
+    public void quarantineEvents(DataBatch batch, Table table) {
+        quarantine(getBatchSelection(batch), table);
+    }
+
+    private void quarantine(String selection, Table table) {
+        final String tableName = table.getName();
+
+        try {
+            final SQLiteDatabase db = mDatabaseHelper.getWritableDatabase();
+            final ContentValues quarantined = new ContentValues();
+            quarantined.put(KEY_QUARANTINED, 1);
+            final int updated = db.update(tableName, quarantined,
+                    selection + " AND " + KEY_QUARANTINED + " = 0", null);
+            if (mRowCounts[table.ordinal()] >= 0) {
+                mRowCounts[table.ordinal()] = Math.max(0, mRowCounts[table.ordinal()] - updated);
+            }
+        } catch (final SQLiteException e) {
+            Log.e(LOGTAG, "Could not quarantine Mixpanel records in " + tableName + ". Re-initializing database.", e);
+
+            // We assume that in general, the results of a SQL exception are
+            // unrecoverable, and could be associated with an oversized or
+            // otherwise unusable DB. Better to bomb it and get back on track
+            // than to leave it junked up (and maybe filling up the disk.)
+            mDatabaseHelper.deleteDatabase();
+        }
+    }
+
+    // A batch is the oldest unsent rows of its priority and destination, so it is every such row up to its last id
+    private static String getBatchSelection(DataBatch batch) {
+        return "_id <= " + batch.getLastId() + " AND " + KEY_PRIORITY + " = " + batch.getPriority() +
+                " AND " + KEY_DESTINATION + " = " + DatabaseUtils.sqlEscapeString(batch.getDestination());
+    }
+
     public void deleteDB() {
         mDatabaseHelper.deleteDatabase();
     }
 
+    /**
+     * Closes the underlying database. The adapter keeps its database open between
+     * calls, so this should be called when the adapter won't be used for a while
+     * (or memory is tight.) The database will be reopened by the next call.
+     */
+    public void close() {
+        mDatabaseHelper.close();
+    }
+
+    private SQLiteStatement getInsertStatement(SQLiteDatabase db, Table table) {
+        final int index = table.ordinal();
+        if (null == mInsertStatements[index]) {
+            mInsertStatements[index] = db.compileStatement("INSERT INTO " + table.getName() +
+                    " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_FORMAT + ", " + KEY_PRIORITY + ", " + KEY_DESTINATION + ")" +
+                    " VALUES (?, ?, ?, ?, ?)");
+        }
+        return mInsertStatements[index];
+    }
+
+    // Row and byte counts are kept up to date as rows are added and removed, and only
+    // counted with a query the first time they're needed. Quarantined rows count towards
+    // the bytes, but not the rows.
+    private int getRowCount(SQLiteDatabase db, Table table) {
+        countRows(db, table);
+        return mRowCounts[table.ordinal()];
+    }
+
+    private long getByteCount(SQLiteDatabase db, Table table) {
+        countRows(db, table);
+        return mByteCounts[table.ordinal()];
+    }
+
+    private void countRows(SQLiteDatabase db, Table table) {
+        final int index = table.ordinal();
+        if (mRowCounts[index] < 0) {
+            Cursor c = null;
+            try {
+                c = db.rawQuery("SELECT TOTAL(" + KEY_QUARANTINED + " = 0), TOTAL(LENGTH(CAST(" + KEY_DATA + " AS BLOB)))" +
+                        " FROM " + table.getName(), null);
+                c.moveToFirst();
+                mRowCounts[index] = c.getInt(0);
+                mByteCounts[index] = c.getLong(1);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+    }
+
+    private void forgetRowCounts() {
+        Arrays.fill(mRowCounts, -1);
+        Arrays.fill(mByteCounts, -1);
+    }
+
 
     /**
      * Returns the data string to send to Mixpanel and the maximum ID of the row that
      * we're sending, so we know what rows to delete when a track request was successful.
      *
      * @param table the table to read the JSON from, either "events" or "people"
+     * @param rowLimit the maximum number of records to include
+     * @param byteLimit the maximum size of the data string in UTF-8 bytes. A single record larger
+     *     than this limit will still be returned on its own.
      * @return String array containing the maximum ID and the data string
      * representing the events, or null if none could be successfully retrieved.
      */
-    public String[] generateDataString(Table table) {
+    public String[] generateDataString(Table table, int rowLimit, long byteLimit) {
+        final DataBatch batch = generateDataBatch(table, rowLimit, byteLimit);
+        if (null == batch) {
+            return null;
+        }
+
+        final String[] ret = {batch.getLastId(), batch.toString()};
+        return ret;
+    }
+
+    /**
+     * Returns the next batch of stored records to send to Alooma. Rows are kept in
+     * their stored, already serialized form and are written straight to the request
+     * body, without being parsed or joined into a single string.
+     *
+     * @param table the table to read the JSON from, either "events" or "people"
+     * @param rowLimit the maximum number of records to include
+     * @param byteLimit the maximum size of the batch in UTF-8 bytes. A single record larger
+     *     than this limit will still be returned on its own.
+     * @return the batch, or null if no records could be successfully retrieved. Records the
+     *     server has refused before are always returned in a batch of their own. If none of
+     *     the records read could be decoded, the batch is empty, and only there to be cleaned up.
+     */
+    public DataBatch generateDataBatch(Table table, int rowLimit, long byteLimit) {
+        return generateDataBatch(table, null, rowLimit, byteLimit);
+    }
+
+    /**
+     * Returns the next batch of records for one of the given destinations, as
+     * generateDataBatch(table, rowLimit, byteLimit) does. Every record in a batch has the
+     * same priority and destination. The destination with the oldest of the highest
+     * priority records goes first.
+     *
+     * @param destinations the keys of the destinations that can be sent to, or null for all of them
+     */
+    public DataBatch generateDataBatch(Table table, Collection<String> destinations, int rowLimit, long byteLimit) {
         Cursor c = null;
-        String data = null;
-        String last_id = null;
+        DataBatch batch = null;
         final String tableName = table.getName();
 
+        final StringBuilder unsent = new StringBuilder(KEY_QUARANTINED + " = 0");
+        if (null != destinations) {
+            if (destinations.isEmpty()) {
+                return null;
+            }
+            unsent.append(" AND " + KEY_DESTINATION + " IN (");
+            for (final String destination : destinations) {
+                if (unsent.charAt(unsent.length() - 1) != '(') {
+                    unsent.append(',');
+                }
+                unsent.append(DatabaseUtils.sqlEscapeString(destination));
+            }
+            unsent.append(')');
+        }
+
         try {
             final SQLiteDatabase db = mDatabaseHelper.getReadableDatabase();
-            c = db.rawQuery("SELECT * FROM " + tableName  +
-                    " ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50", null);
-            final JSONArray arr = new JSONArray();
 
+            // Each batch holds a single priority and destination, so that it can be acknowledged by its last id
+            final int priority;
+            final String destination;
+            c = db.rawQuery("SELECT " + KEY_PRIORITY + ", " + KEY_DESTINATION + " FROM " + tableName +
+                    " WHERE " + unsent +
+                    " ORDER BY " + KEY_PRIORITY + " DESC, " + KEY_CREATED_AT + " ASC LIMIT 1", null);
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            priority = c.getInt(0);
+            destination = c.getString(1);
+            c.close();
+
+            c = db.rawQuery("SELECT _id, " + KEY_DATA + ", " + KEY_REJECTIONS + ", " + KEY_FORMAT +
+                    " FROM " + tableName  +
+                    " WHERE " + KEY_QUARANTINED + " = 0 AND " + KEY_PRIORITY + " = " + priority +
+                    " AND " + KEY_DESTINATION + " = ?" +
+                    " ORDER BY " + KEY_CREATED_AT + " ASC LIMIT " + rowLimit, new String[] { destination });
+
+            final int idColumn = c.getColumnIndex("_id");
+            final int dataColumn = c.getColumnIndex(KEY_DATA);
+            final int rejectionsColumn = c.getColumnIndex(KEY_REJECTIONS);
+            final int formatColumn = c.getColumnIndex(KEY_FORMAT);
+            final List<String> rows = new ArrayList<String>(c.getCount());
+            long batchBytes = 2; // '[' and ']'
+            String lastId = null;
+            int rejections = 0;
+            int read = 0;
+            boolean hasMore = c.getCount() >= rowLimit;
             while (c.moveToNext()) {
-                if (c.isLast()) {
-                    last_id = c.getString(c.getColumnIndex("_id"));
+                final String row = readRow(c, dataColumn, formatColumn);
+                if (null == row) {
+                    // Deleted along with the rest of the batch
+                    lastId = c.getString(idColumn);
+                    read++;
+                    continue;
+                }
+
+                final int rowRejections = c.getInt(rejectionsColumn);
+                final long rowBytes = DataBatch.utf8Length(row) + (rows.isEmpty() ? 0 : 1);
+                if (!rows.isEmpty() && (rowRejections > 0 || batchBytes + rowBytes > byteLimit)) {
+                    hasMore = true;
+                    break;
                 }
-                try {
-                    final JSONObject j = new JSONObject(c.getString(c.getColumnIndex(KEY_DATA)));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+
+                rows.add(row);
+                batchBytes += rowBytes;
+                lastId = c.getString(idColumn);
+                read++;
+
+                if (rowRejections > 0) {
+                    rejections = rowRejections;
+                    hasMore = hasMore || !c.isLast();
+                    break;
                 }
             }
 
-            if (arr.length() > 0) {
-                data = arr.toString();
+            if (lastId != null) {
+                // Other priorities and destinations may be waiting behind this batch. Only rows
+                // that could go in the next batch count, or draining would go round for nothing.
+                if (!hasMore) {
+                    final long waiting = null == destinations ? getRowCount(db, table) :
+                            DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + tableName + " WHERE " + unsent, null);
+                    hasMore = waiting > read;
+                }
+                batch = new DataBatch(lastId, rows, batchBytes, hasMore, rejections, priority, destination);
             }
         } catch (final SQLiteException e) {
             Log.e(LOGTAG, "Could not pull records for Mixpanel out of database " + tableName + ". Waiting to send.", e);
@@ -203,20 +689,160 @@ import android.util.Log;
             // let things ride in hopes the issue clears up.
             // (A bit more likely, since we're opening the DB for read and not write.)
             // A corrupted or disk-full DB will be cleaned up on the next write or clear call.
-            last_id = null;
-            data = null;
+            batch = null;
         } finally {
-            mDatabaseHelper.close();
             if (c != null) {
                 c.close();
             }
         }
 
-        if (last_id != null && data != null) {
-            final String[] ret = {last_id, data};
-            return ret;
+        return batch;
+    }
+
+    // Rows are stored compactly, but sent as the JSON text of the record. Rows written by
+    // versions before the compact format are already JSON text. Returns null for a row
+    // that can't be decoded.
+    private static String readRow(Cursor c, int dataColumn, int formatColumn) {
+        if (c.getInt(formatColumn) != RecordCodec.FORMAT_COMPACT) {
+            return c.getString(dataColumn);
+        }
+
+        try {
+            return RecordCodec.decode(c.getBlob(dataColumn));
+        } catch (final IllegalArgumentException e) {
+            Log.e(LOGTAG, "Could not decode a stored Mixpanel record, dropping it.", e);
+            return null;
         }
-        return null;
+    }
+
+    /**
+     * A batch of stored records, written as a JSON array of the records.
+     */
+    /* package */ static class DataBatch implements RemoteService.RequestBody {
+        public DataBatch(String lastId, List<String> rows, long contentLength, boolean hasMore,
+                         int rejections, int priority, String destination) {
+            mLastId = lastId;
+            mRows = rows;
+            mContentLength = contentLength;
+            mHasMore = hasMore;
+            mRejections = rejections;
+            mPriority = priority;
+            mDestination = destination;
+        }
+
+        /**
+         * @return the maximum ID of the rows in this batch
+         */
+        public String getLastId() {
+            return mLastId;
+        }
+
+        /**
+         * @return the number of records in the batch. Batches of records that couldn't be
+         *     decoded have none, and should be cleaned up without being sent.
+         */
+        public int size() {
+            return mRows.size();
+        }
+
+        /**
+         * @return the JSON of each record in the batch
+         */
+        public List<String> getRows() {
+            return mRows;
+        }
+
+        /**
+         * @return true if the batch was cut short by its row or byte limit, so more
+         *     records may be waiting in the table.
+         */
+        public boolean hasMore() {
+            return mHasMore;
+        }
+
+        /**
+         * @return the number of times the server has refused the rows in this batch
+         */
+        public int getRejections() {
+            return mRejections;
+        }
+
+        /**
+         * @return the priority of every row in this batch, one of the AloomaAPI.PRIORITY_ values
+         */
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return the key of the destination of every row in this batch
+         */
+        public String getDestination() {
+            return mDestination;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mContentLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            final Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write('[');
+            for (int i = 0; i < mRows.size(); i++) {
+                if (i > 0) {
+                    writer.write(',');
+                }
+                writer.write(mRows.get(i));
+            }
+            writer.write(']');
+            writer.flush(); // Don't close, out belongs to the caller
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder((int) mContentLength);
+            builder.append('[');
+            for (int i = 0; i < mRows.size(); i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                builder.append(mRows.get(i));
+            }
+            builder.append(']');
+            return builder.toString();
+        }
+
+        // Number of bytes in the UTF-8 encoding of s, matching what OutputStreamWriter will produce
+        /* package */ static long utf8Length(String s) {
+            long length = 0;
+            final int count = s.length();
+            for (int i = 0; i < count; i++) {
+                final char ch = s.charAt(i);
+                if (ch < 0x80) {
+                    length += 1;
+                } else if (ch < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(ch) && i + 1 < count && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+                    length += 1; // Unpaired surrogates are replaced with '?'
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        private final String mLastId;
+        private final List<String> mRows;
+        private final long mContentLength;
+        private final boolean mHasMore;
+        private final int mRejections;
+        private final int mPriority;
+        private final String mDestination;
     }
 
     private class MPDatabaseHelper extends SQLiteOpenHelper {
@@ -228,11 +854,48 @@ import android.util.Log;
         }
 
         /**
-         * Completely deletes the DB file from the file system.
+         * Completely deletes the DB file from the file system, along with its write-ahead log and journals.
          */
         public void deleteDatabase() {
             close();
-            mDatabaseFile.delete();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                deleteDatabaseFiles(mDatabaseFile);
+            } else {
+                mDatabaseFile.delete();
+                for (final String suffix : DATABASE_FILE_SUFFIXES) {
+                    new File(mDatabaseFile.getPath() + suffix).delete();
+                }
+            }
+            forgetRowCounts();
+        }
+
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        private void deleteDatabaseFiles(File file) {
+            SQLiteDatabase.deleteDatabase(file);
+        }
+
+        // Compiled statements belong to the open connection, so they're released with it.
+        @Override
+        public synchronized void close() {
+            for (int i = 0; i < mInsertStatements.length; i++) {
+                if (null != mInsertStatements[i]) {
+                    mInsertStatements[i].close();
+                    mInsertStatements[i] = null;
+                }
+            }
+            super.close();
+        }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+
+            // The database stays open for the life of the worker, so let writes
+            // append to the log rather than rewriting (and syncing) the main file.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
         }
 
         @Override
@@ -244,10 +907,44 @@ import android.util.Log;
             db.execSQL(CREATE_PEOPLE_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
             db.execSQL(PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_PRIORITY_INDEX);
+            db.execSQL(PEOPLE_PRIORITY_INDEX);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion >= 5) {
+                if (AConfig.DEBUG) {
+                    Log.v(LOGTAG, "Upgrading app, migrating Mixpanel events DB from version " + oldVersion);
+                }
+                if (oldVersion < 6) {
+                    for (final Table table : Table.values()) {
+                        db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_REJECTIONS + " INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_QUARANTINED + " INTEGER NOT NULL DEFAULT 0");
+                    }
+                }
+                if (oldVersion < 7) {
+                    // Existing rows keep their JSON text, and are read back as such
+                    for (final Table table : Table.values()) {
+                        db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_FORMAT + " INTEGER NOT NULL DEFAULT 0");
+                    }
+                }
+                if (oldVersion < 8) {
+                    for (final Table table : Table.values()) {
+                        db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_PRIORITY + " INTEGER NOT NULL DEFAULT 0");
+                    }
+                    db.execSQL(EVENTS_PRIORITY_INDEX);
+                    db.execSQL(PEOPLE_PRIORITY_INDEX);
+                }
+                if (oldVersion < 9) {
+                    // Existing rows go to the default destination
+                    for (final Table table : Table.values()) {
+                        db.execSQL("ALTER TABLE " + table.getName() + " ADD COLUMN " + KEY_DESTINATION + " TEXT NOT NULL DEFAULT ''");
+                    }
+                }
+                return;
+            }
+
             if (AConfig.DEBUG) {
                 Log.v(LOGTAG, "Upgrading app, replacing Mixpanel events DB");
             }
@@ -257,6 +954,8 @@ import android.util.Log;
             db.execSQL(CREATE_PEOPLE_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
             db.execSQL(PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_PRIORITY_INDEX);
+            db.execSQL(PEOPLE_PRIORITY_INDEX);
         }
     }
 
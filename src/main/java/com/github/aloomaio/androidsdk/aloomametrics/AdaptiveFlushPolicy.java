@@ -0,0 +1,100 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Flushes on the configured interval while the device is on wifi or charging, and waits
+ * longer between flushes on cellular and battery, so that events go out in fewer, larger
+ * requests. Every request over cellular keeps the radio in its high power state for several
+ * seconds after it finishes, however little it sent.
+ *
+ * <p>A full batch is always sent right away, since waiting won't make the request any bigger.
+ */
+/* package */ class AdaptiveFlushPolicy implements FlushPolicy {
+    public AdaptiveFlushPolicy(Context context, AConfig config, SystemInformation systemInformation) {
+        mContext = context;
+        mSystemInformation = systemInformation;
+        mFlushInterval = config.getFlushInterval();
+        mBulkUploadLimit = config.getBulkUploadLimit();
+        mDeviceStateReadAt = -1;
+    }
+
+    @Override
+    public long getFlushDelay(int queueDepth, long averageFlushInterval) {
+        if (queueDepth >= mBulkUploadLimit) {
+            return 0;
+        }
+
+        if (mFlushInterval <= 0) {
+            // Flushing on every record, or not on a timer at all
+            return mFlushInterval;
+        }
+
+        readDeviceState();
+        if (mOnWifi || mCharging) {
+            return mFlushInterval;
+        }
+
+        // Keep to the pace flushes have actually been going at, if that's slower
+        // than the stretched interval, but never wait longer than the cap.
+        final long stretched = mFlushInterval * (mBatteryLow ? LOW_BATTERY_MULTIPLIER : CELLULAR_MULTIPLIER);
+        final long delay = Math.min(Math.max(stretched, averageFlushInterval), mFlushInterval * MAX_MULTIPLIER);
+        if (AConfig.DEBUG) {
+            Log.v(LOGTAG, "Not on wifi or charging" + (mBatteryLow ? " and battery is low" : "") +
+                    ", deferring flush for " + delay + " ms");
+        }
+        return delay;
+    }
+
+    // Both reads go to system services, so they're only repeated once in a while
+    private void readDeviceState() {
+        final long now = SystemClock.elapsedRealtime();
+        if (mDeviceStateReadAt >= 0 && now - mDeviceStateReadAt < DEVICE_STATE_TTL) {
+            return;
+        }
+        mDeviceStateReadAt = now;
+
+        final Boolean onWifi = mSystemInformation.isWifiConnected();
+        mOnWifi = null != onWifi && onWifi.booleanValue();
+
+        // ACTION_BATTERY_CHANGED is sticky, so this returns the last broadcast without registering anything
+        Intent battery = null;
+        try {
+            battery = mContext.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        } catch (final RuntimeException e) {
+            Log.w(LOGTAG, "Can't read battery state, flushing as if charging", e);
+        }
+
+        if (null == battery) {
+            mCharging = true;
+            mBatteryLow = false;
+        } else {
+            mCharging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            final int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            final int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            mBatteryLow = level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+        }
+    }
+
+    private final Context mContext;
+    private final SystemInformation mSystemInformation;
+    private final long mFlushInterval;
+    private final int mBulkUploadLimit;
+    private long mDeviceStateReadAt;
+    private boolean mOnWifi;
+    private boolean mCharging;
+    private boolean mBatteryLow;
+
+    private static final long DEVICE_STATE_TTL = 60 * 1000;
+    private static final int CELLULAR_MULTIPLIER = 3;
+    private static final int LOW_BATTERY_MULTIPLIER = 5;
+    private static final int MAX_MULTIPLIER = 10;
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private static final String LOGTAG = "AloomaAPI.AdaptiveFlushPolicy";
+}
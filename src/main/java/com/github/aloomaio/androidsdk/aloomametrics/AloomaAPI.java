@@ -41,6 +41,8 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -116,6 +118,23 @@ public class AloomaAPI {
      */
     public static final String VERSION = AConfig.VERSION;
 
+    /**
+     * Priority of events that can wait behind all others, and are the first to be
+     * dropped when the queue is full. For example, scrolls and impressions.
+     */
+    public static final int PRIORITY_LOW = -1;
+
+    /**
+     * Priority of events tracked without one.
+     */
+    public static final int PRIORITY_NORMAL = 0;
+
+    /**
+     * Priority of events that should be sent ahead of all others, and kept the longest
+     * when the queue is full. For example, purchases.
+     */
+    public static final int PRIORITY_HIGH = 1;
+
     // Maps each token to a singleton AloomaAPI instance
     private static final Map<String, Map<Context, AloomaAPI>> sInstanceMap = new HashMap<String, Map<Context, AloomaAPI>>();
     private static final SharedPreferencesLoader sPrefsLoader = new SharedPreferencesLoader();
@@ -137,7 +156,8 @@ public class AloomaAPI {
     private final TrackingDebug mTrackingDebug;
     private final DecideMessages mDecideMessages;
     private final Map<String, String> mDeviceInfo;
-    private final Map<String, Long> mEventTimings;
+    // Read by every call to track(), from any thread, and rarely written
+    private final ConcurrentMap<String, Long> mEventTimings;
 
     AloomaAPI(Context context, Future<SharedPreferences> referrerPreferences, String token) {
         this(context, referrerPreferences, token, null, false,
@@ -152,9 +172,9 @@ public class AloomaAPI {
               String aloomaHost, boolean forceSSL, Map<String, String> headers, RemoteService.ContentType contentType) {
         mToken = token;
         mContext = context;
-        mEventTimings = new HashMap<String, Long>();
+        mEventTimings = new ConcurrentHashMap<String, Long>();
         mPeople = new PeopleImpl();
-        mMessages = AnalyticsMessages.getInstance(mContext, aloomaHost, forceSSL, headers, contentType);
+        mMessages = getAnalyticsMessages(aloomaHost, forceSSL, headers, contentType);
         mConfig = getConfig();
 
 
@@ -398,10 +418,13 @@ public class AloomaAPI {
      * @param eventName the name of the event to track with timing.
      */
     public void timeEvent(final String eventName) {
-        final long writeTime = System.currentTimeMillis();
-        synchronized (mEventTimings) {
-            mEventTimings.put(eventName, writeTime);
+        if (null == eventName) {
+            // ConcurrentHashMap has no null keys, and there's no event to match it anyway
+            Log.w(LOGTAG, "timeEvent called with a null event name, nothing will be timed.");
+            return;
         }
+        final long writeTime = System.currentTimeMillis();
+        mEventTimings.put(eventName, writeTime);
     }
 
     /**
@@ -420,58 +443,49 @@ public class AloomaAPI {
     // This MAY CHANGE IN FUTURE RELEASES, so minimize code that assumes thread safety
     // (and perhaps document that code here).
     public void track(String eventName, JSONObject properties) {
-        final Long eventBegin;
-        synchronized (mEventTimings) {
-            eventBegin = mEventTimings.get(eventName);
-            mEventTimings.remove(eventName);
-        }
-
-        try {
-            final JSONObject messageProps = new JSONObject();
-
-            final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
-            for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
-                final String key = entry.getKey();
-                final String value = entry.getValue();
-                messageProps.put(key, value);
-            }
-
-            final JSONObject superProperties = mPersistentIdentity.getSuperProperties();
-            final Iterator<?> superIter = superProperties.keys();
-            while (superIter.hasNext()) {
-                final String key = (String) superIter.next();
-                messageProps.put(key, superProperties.get(key));
-            }
-
-            // Don't allow super properties or referral properties to override these fields,
-            // but DO allow the caller to override them in their given properties.
-            final double timeSecondsDouble = (System.currentTimeMillis()) / 1000.0;
-            final long timeSeconds = (long) timeSecondsDouble;
-            messageProps.put("time", timeSeconds);
-            messageProps.put("distinct_id", getDistinctId());
-
-            if (null != eventBegin) {
-                final double eventBeginDouble = ((double) eventBegin) / 1000.0;
-                final double secondsElapsed = timeSecondsDouble - eventBeginDouble;
-                messageProps.put("$duration", secondsElapsed);
-            }
+        track(eventName, properties, PRIORITY_NORMAL);
+    }
 
-            if (null != properties) {
-                final Iterator<?> propIter = properties.keys();
-                while (propIter.hasNext()) {
-                    final String key = (String) propIter.next();
-                    messageProps.put(key, properties.get(key));
-                }
+    /**
+     * Track an event with a priority.
+     *
+     * <p>Queued events are sent highest priority first, so that important events aren't held
+     * up behind a backlog of less important ones after the device has been offline. When the
+     * queue is full, the lowest priority events are dropped first.
+     *
+     * @param eventName The name of the event to send
+     * @param properties A JSONObject containing the key value pairs of the properties to include in this event.
+     *                   Pass null if no extra properties exist.
+     * @param priority {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}
+     */
+    public void track(String eventName, JSONObject properties, int priority) {
+        // Most apps time few events or none, so don't lock the map to find nothing in it.
+        // Events without a name can't have been timed.
+        final Long eventBegin = (null == eventName || mEventTimings.isEmpty()) ? null : mEventTimings.remove(eventName);
+
+        final long timeMillis = System.currentTimeMillis();
+        final Map<String, Object> snapshot = mPersistentIdentity.getEventPropertiesSnapshot();
+        final String distinctId = getDistinctId();
+
+        final AnalyticsEvent event;
+        if (mConfig.getDeferEventConstruction()) {
+            // The properties are merged on the worker thread, the first time they're asked for
+            event = new AnalyticsEvent(eventName, properties, snapshot, distinctId, timeMillis, eventBegin, mToken, priority);
+        } else {
+            try {
+                final JSONObject messageProps =
+                        AnalyticsEvent.buildProperties(properties, snapshot, distinctId, timeMillis, eventBegin);
+                event = new AnalyticsEvent(eventName, messageProps, mToken, priority);
+            } catch (final JSONException e) {
+                Log.e(LOGTAG, "Exception tracking event " + eventName, e);
+                return;
             }
+        }
 
-            final AnalyticsEvent event = new AnalyticsEvent(eventName, messageProps, mToken);
-            mMessages.publishMessage(event);
+        mMessages.publishMessage(event);
 
-            if (null != mTrackingDebug) {
-                mTrackingDebug.reportTrack(eventName);
-            }
-        } catch (final JSONException e) {
-            Log.e(LOGTAG, "Exception tracking event " + eventName, e);
+        if (null != mTrackingDebug) {
+            mTrackingDebug.reportTrack(eventName);
         }
     }
 
@@ -1126,8 +1140,9 @@ public class AloomaAPI {
     // Conveniences for testing. These methods should not be called by
     // non-test client code.
 
-    /* package */ AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL) {
-        return AnalyticsMessages.getInstance(mContext, aloomaHost, forceSSL, null, RemoteService.ContentType.URL_FORM_ENCODED);
+    /* package */ AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                         Map<String, String> headers, RemoteService.ContentType contentType) {
+        return AnalyticsMessages.getInstance(mContext, aloomaHost, forceSSL, headers, contentType);
     }
 
     /* package */ AConfig getConfig() {
@@ -1408,7 +1423,10 @@ public class AloomaAPI {
                     }
                 }
 
-                this.append("$transactions", transactionValue);
+                // Like append("$transactions", transactionValue), but revenue goes ahead of other records
+                final JSONObject appended = new JSONObject();
+                appended.put("$transactions", transactionValue);
+                recordPeopleMessage(stdPeopleMessage("$append", appended), PRIORITY_HIGH);
             } catch (final JSONException e) {
                 Log.e(LOGTAG, "Exception creating new charge", e);
             }
@@ -1788,8 +1806,13 @@ public class AloomaAPI {
     ////////////////////////////////////////////////////
 
     private void recordPeopleMessage(JSONObject message) {
+        recordPeopleMessage(message, PRIORITY_NORMAL);
+    }
+
+    // Records waiting for an identity lose their priority
+    private void recordPeopleMessage(JSONObject message, int priority) {
         if (message.has("$distinct_id")) {
-           mMessages.publishMessage(message);
+           mMessages.publishMessage(message, priority);
         } else {
            mPersistentIdentity.storeWaitingPeopleRecord(message);
         }
@@ -1,12 +1,51 @@
 package com.github.aloomaio.androidsdk.aloomametrics;
 
+import android.util.Log;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.Iterator;
+import java.util.Map;
+
 public class AnalyticsEvent {
     public AnalyticsEvent(String eventName, JSONObject properties, String token) {
+        this(eventName, properties, token, AloomaAPI.PRIORITY_NORMAL);
+    }
+
+    /* package */ AnalyticsEvent(String eventName, JSONObject properties, String token, int priority) {
         this.eventName = eventName;
         this.properties = properties;
         this.token = token;
+        this.priority = priority;
+        this.callerProperties = null;
+        this.eventPropertiesSnapshot = null;
+        this.distinctId = null;
+        this.timeMillis = 0;
+        this.eventBegin = null;
+    }
+
+    /**
+     * Captures just what track() was called with. The message properties are put together
+     * later, by the first call to getProperties(), which is made on the AnalyticsMessages worker.
+     *
+     * @param callerProperties the properties passed to track(). The caller must not change
+     *     this object after the call, since it is read on another thread.
+     * @param eventPropertiesSnapshot the referrer and super properties when track() was called
+     * @param eventBegin the time passed to timeEvent() for this event, or null
+     */
+    /* package */ AnalyticsEvent(String eventName, JSONObject callerProperties,
+                                 Map<String, Object> eventPropertiesSnapshot, String distinctId,
+                                 long timeMillis, Long eventBegin, String token, int priority) {
+        this.eventName = eventName;
+        this.properties = null;
+        this.token = token;
+        this.priority = priority;
+        this.callerProperties = callerProperties;
+        this.eventPropertiesSnapshot = eventPropertiesSnapshot;
+        this.distinctId = distinctId;
+        this.timeMillis = timeMillis;
+        this.eventBegin = eventBegin;
     }
 
     public String getEventName() {
@@ -14,6 +53,15 @@ public class AnalyticsEvent {
     }
 
     public JSONObject getProperties() {
+        if (null == properties && isDeferred()) {
+            try {
+                properties = buildProperties(callerProperties, eventPropertiesSnapshot,
+                        distinctId, timeMillis, eventBegin);
+            } catch (final JSONException e) {
+                Log.e(LOGTAG, "Exception building properties for event " + eventName, e);
+                properties = new JSONObject();
+            }
+        }
         return properties;
     }
 
@@ -21,7 +69,90 @@ public class AnalyticsEvent {
         return token;
     }
 
+    /**
+     * @return one of the AloomaAPI.PRIORITY_ values
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return true if the properties haven't been put together yet. The EventEncoder writes
+     *     them straight from what track() was called with, without building them at all.
+     */
+    /* package */ boolean isDeferred() {
+        return null == properties && null != eventPropertiesSnapshot;
+    }
+
+    /* package */ JSONObject getCallerProperties() {
+        return callerProperties;
+    }
+
+    /* package */ Map<String, Object> getEventPropertiesSnapshot() {
+        return eventPropertiesSnapshot;
+    }
+
+    /* package */ String getDistinctId() {
+        return distinctId;
+    }
+
+    /* package */ long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /* package */ Long getEventBegin() {
+        return eventBegin;
+    }
+
+    /* package */ static JSONObject buildProperties(JSONObject callerProperties, Map<String, Object> eventPropertiesSnapshot,
+                                                   String distinctId, long timeMillis, Long eventBegin)
+            throws JSONException {
+        final JSONObject messageProps = new JSONObject();
+
+        // Referrer properties, overridden by super properties
+        for (final Map.Entry<String, Object> entry : eventPropertiesSnapshot.entrySet()) {
+            messageProps.put(entry.getKey(), entry.getValue());
+        }
+
+        // Don't allow super properties or referral properties to override these fields,
+        // but DO allow the caller to override them in their given properties.
+        messageProps.put("time", getTimeSeconds(timeMillis));
+        messageProps.put("distinct_id", distinctId);
+
+        if (null != eventBegin) {
+            messageProps.put("$duration", getDurationSeconds(timeMillis, eventBegin));
+        }
+
+        if (null != callerProperties) {
+            final Iterator<?> propIter = callerProperties.keys();
+            while (propIter.hasNext()) {
+                final String key = (String) propIter.next();
+                messageProps.put(key, callerProperties.get(key));
+            }
+        }
+
+        return messageProps;
+    }
+
+    /* package */ static long getTimeSeconds(long timeMillis) {
+        return (long) (timeMillis / 1000.0);
+    }
+
+    /* package */ static double getDurationSeconds(long timeMillis, long eventBegin) {
+        return timeMillis / 1000.0 - ((double) eventBegin) / 1000.0;
+    }
+
     private final String eventName;
-    private final JSONObject properties;
+    private JSONObject properties;
     private final String token;
+    private final int priority;
+
+    // Only set for events whose properties haven't been built yet
+    private final JSONObject callerProperties;
+    private final Map<String, Object> eventPropertiesSnapshot;
+    private final String distinctId;
+    private final long timeMillis;
+    private final Long eventBegin;
+
+    private static final String LOGTAG = "AloomaAPI.AnalyticsEvent";
 }
@@ -1,13 +1,23 @@
 package com.github.aloomaio.androidsdk.aloomametrics;
 
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Configuration;
+import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.Pair;
 
 import com.github.aloomaio.androidsdk.util.HttpService;
 import com.github.aloomaio.androidsdk.util.RemoteService;
@@ -19,14 +29,23 @@ import org.apache.http.message.BasicNameValuePair;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Manage communication of events with the internal database and the Mixpanel servers.
@@ -37,6 +56,8 @@ import java.util.Map;
 /* package */ class AnalyticsMessages {
     private static final String LOGTAG = "AnalyticsMessages";
     private static final Map<String, Map<Context, AnalyticsMessages>> sInstanceMap = new HashMap<>();
+    // The instance whose worker every other instance for the same Context shares
+    private static final Map<Context, AnalyticsMessages> sWorkerMap = new HashMap<>();
 
     // Messages for our thread
     private static int ENQUEUE_PEOPLE = 0; // submit events and people data
@@ -45,17 +66,30 @@ import java.util.Map;
     private static int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
     private static int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
     private static int REGISTER_FOR_GCM = 13; // Register for GCM using Google Play Services
+    private static int CLOSE_DATABASE = 14; // Release the database connection, for example when memory is low
+    private static int ADD_DESTINATION = 15; // Send records for another destination from this worker
 
     // Used across thread boundaries
     private final MessageHandlerThread mWorker;
     private final Context mContext;
     private final AConfig mConfig;
-    private final String mAloomaHost;
-    private final Map<String, String> mHeaders;
-    private final RemoteService.ContentType mContentType;
-    private String mSchema;
+    private final Destination mDestination;
 
-    private final String DEFAULT_ALOOMA_HOST = "inputs.alooma.com";
+    private static final String DEFAULT_ALOOMA_HOST = "inputs.alooma.com";
+
+    // The store shared by every destination of a Context
+    private static final String STORE_NAME = "alooma_events";
+    // Stores of older versions, named for the host of the instance that opened them. Their
+    // records are moved into the shared store when a destination for that host is first added.
+    private static final String LEGACY_DEFAULT_HOST_STORE_NAME = "alooma";
+    private static final String LEGACY_OTHER_HOST_STORE_NAME = "rover";
+    private static final int LEGACY_BATCH_ROWS = 500;
+
+    // Longest we'll go without re-reading carrier, wifi and bluetooth state
+    private static final long VOLATILE_PROPERTIES_TTL = 60 * 1000;
+
+    // First retry delay when FlushInterval doesn't give a sensible one
+    private static final long DEFAULT_RETRY_BASE_DELAY = 60 * 1000;
 
     /**
      * Do not call directly. You should call AnalyticsMessages.getInstance()
@@ -72,15 +106,30 @@ import java.util.Map;
         mContext = context;
 
         mConfig = getConfig(context);
+        mDestination = new Destination((null == aloomaHost) ? DEFAULT_ALOOMA_HOST : aloomaHost,
+                forceSSL, headers, contentType);
         mWorker = new MessageHandlerThread("com.alooma.android.AnalyticsWorker");
 
-        mAloomaHost = (null == aloomaHost) ? DEFAULT_ALOOMA_HOST : aloomaHost;
-        mSchema = forceSSL ? "https" : "http";
-        mHeaders = headers;
-        mContentType = contentType;
-
         // Start worker thread
         mWorker.start();
+
+        registerMemoryCallbacks();
+    }
+
+    /**
+     * Sends records for destination through the worker, database and flushes of shared.
+     * Do not call directly. You should call AnalyticsMessages.getInstance()
+     */
+    /* package */ AnalyticsMessages(final AnalyticsMessages shared, final Destination destination) {
+        mContext = shared.mContext;
+        mConfig = shared.mConfig;
+        mDestination = destination;
+        mWorker = shared.mWorker;
+
+        final Message m = Message.obtain();
+        m.what = ADD_DESTINATION;
+        m.obj = destination;
+        mWorker.runMessage(m);
     }
 
     public static AnalyticsMessages getInstance(final Context messageContext) {
@@ -90,7 +139,10 @@ import java.util.Map;
 
     /**
      * Returns a singleton AnalyticsMessages instance with configurable forceSSL attribute.
-     * Different aloomaHost values will return new instances.
+     * Different aloomaHost, headers and contentType values will return new instances, but
+     * all of the instances for a Context share one worker thread, database and flush schedule.
+     * Because of that, hardKill() on any of them, or an unexpected exception on the worker,
+     * stops sending for all of them.
      */
     public static AnalyticsMessages getInstance(final Context messageContext,
                                                 String aloomaHost,
@@ -100,15 +152,25 @@ import java.util.Map;
         synchronized (sInstanceMap) {
             final Context appContext = messageContext.getApplicationContext();
 
-            Map <Context, AnalyticsMessages> instances = sInstanceMap.get(aloomaHost);
+            final Destination destination = new Destination((null == aloomaHost) ? DEFAULT_ALOOMA_HOST : aloomaHost,
+                    forceSSL, headers, contentType);
+            final String destinationKey = destination.getKey();
+
+            Map <Context, AnalyticsMessages> instances = sInstanceMap.get(destinationKey);
             if (instances == null) {
                 instances = new HashMap<>();
-                sInstanceMap.put(aloomaHost, instances);
+                sInstanceMap.put(destinationKey, instances);
             }
 
             AnalyticsMessages instance = instances.get(appContext);
             if (instance == null) {
-                instance = new AnalyticsMessages(appContext, aloomaHost, forceSSL, headers, contentType);
+                final AnalyticsMessages shared = sWorkerMap.get(appContext);
+                if (shared == null) {
+                    instance = new AnalyticsMessages(appContext, aloomaHost, forceSSL, headers, contentType);
+                    sWorkerMap.put(appContext, instance);
+                } else {
+                    instance = new AnalyticsMessages(shared, destination);
+                }
                 instances.put(appContext, instance);
             }
 
@@ -118,16 +180,24 @@ import java.util.Map;
 
     // All methods must be Thread safe.
     public void publishMessage(final AnalyticsEvent event) {
-        final Message m = Message.obtain();
-        m.what = ENQUEUE_EVENTS;
-        m.obj = event;
-        mWorker.runMessage(m);
+        mWorker.enqueueEvent(event, mDestination);
     }
 
     public void publishMessage(final JSONObject peopleJson) {
+        publishMessage(peopleJson, AloomaAPI.PRIORITY_NORMAL);
+    }
+
+    public void publishMessage(final JSONObject peopleJson, int priority) {
+        if (!mDestination.acceptsPeople()) {
+            // People records only have an endpoint on the default host, from AConfig
+            Log.w(LOGTAG, "Dropping a people record, " + mDestination.getHost() + " has no people endpoint.");
+            return;
+        }
+
         final Message m = Message.obtain();
         m.what = ENQUEUE_PEOPLE;
-        m.obj = peopleJson;
+        m.obj = Pair.create(peopleJson, mDestination.getKey());
+        m.arg1 = priority;
         mWorker.runMessage(m);
     }
 
@@ -151,6 +221,16 @@ import java.util.Map;
         mWorker.runMessage(m);
     }
 
+    public void closeDatabase() {
+        final Message m = Message.obtain();
+        m.what = CLOSE_DATABASE;
+        mWorker.runMessage(m);
+    }
+
+    /**
+     * Stops the worker and deletes every stored record. The worker and store are shared by every
+     * destination of the Context, so this drops the records of all of them, not just this one's.
+     */
     public void hardKill() {
         final Message m = Message.obtain();
         m.what = KILL_WORKER;
@@ -169,7 +249,91 @@ import java.util.Map;
     }
 
     protected HttpService getPoster() {
-        return new HttpService();
+        return new HttpService(mConfig.getGzipRequests());
+    }
+
+    protected EventStore makeDbAdapter(Context context) {
+        if (mConfig.getEventJournal()) {
+            return new JournalEventStore(context, STORE_NAME + ".journal", mConfig.getMaxQueueRows(),
+                    mConfig.getMaxQueueBytes(), mConfig.getJournalSegmentBytes());
+        }
+
+        return new ADbAdapter(context, STORE_NAME + ".db", mConfig.getMaxQueueRows(), mConfig.getMaxQueueBytes());
+    }
+
+    /**
+     * Moves the unsent records of from into to, then deletes from. Records stored without a
+     * destination, as every record was before destinations were stored, are given the key of
+     * destination. Quarantined records are dropped.
+     * @return false if a record couldn't be added to to, in which case from is kept, holding
+     *     the records that haven't been moved yet.
+     */
+    /* package */ static boolean moveRecords(EventStore from, EventStore to, Destination destination) {
+        for (final ADbAdapter.Table table : ADbAdapter.Table.values()) {
+            String lastId = null;
+            ADbAdapter.DataBatch batch;
+            while (null != (batch = from.generateDataBatch(table, null, LEGACY_BATCH_ROWS, Long.MAX_VALUE))) {
+                if (batch.getLastId().equals(lastId)) {
+                    // The batch couldn't be removed, don't go round again
+                    from.close();
+                    return false;
+                }
+                lastId = batch.getLastId();
+
+                final List<JSONObject> records = new ArrayList<JSONObject>(batch.size());
+                for (final String row : batch.getRows()) {
+                    try {
+                        records.add(new JSONObject(row));
+                    } catch (final JSONException e) {
+                        Log.e(LOGTAG, "Could not read a stored record, dropping it.", e);
+                    }
+                }
+                final String key = batch.getDestination().isEmpty() ? destination.getKey() : batch.getDestination();
+                if (!records.isEmpty() && -1 == to.addJSON(records, table, batch.getPriority(), key)) {
+                    from.close();
+                    return false;
+                }
+                from.cleanupEvents(batch, table);
+            }
+        }
+
+        from.deleteDB();
+        from.close();
+        return true;
+    }
+
+    // Called on the worker thread
+    /* package */ FlushPolicy makeFlushPolicy(Context context, SystemInformation systemInformation) {
+        if (mConfig.getAdaptiveFlush()) {
+            return new AdaptiveFlushPolicy(context, mConfig, systemInformation);
+        }
+        return new FixedIntervalFlushPolicy(mConfig);
+    }
+
+    // The worker keeps its database open between messages. Let it go when the system asks us to trim memory.
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void registerMemoryCallbacks() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+                @Override
+                public void onTrimMemory(int level) {
+                    final boolean runningLow = level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN;
+                    if (runningLow || level >= TRIM_MEMORY_BACKGROUND) {
+                        closeDatabase();
+                    }
+                }
+
+                @Override
+                public void onLowMemory() {
+                    closeDatabase();
+                }
+
+                @Override
+                public void onConfigurationChanged(Configuration newConfig) {
+                    // Nothing to do
+                }
+            });
+        }
     }
 
     // Sends a message if and only if we are running with alooma Message log enabled.
@@ -187,15 +351,17 @@ import java.util.Map;
     }
 
     // MessageHandlerThread will manage the (at most single) IO thread associated with
-    // this AnalyticsMessages instance. NOTE: The returned worker will run FOREVER, unless you send a hard kill
+    // this AnalyticsMessages instance, and any instances that share it. NOTE: The returned worker will run FOREVER, unless you send a hard kill
     // (which you really shouldn't)
     private class MessageHandlerThread extends HandlerThread{
         private final Object mHandlerLock = new Object();
         private Handler mHandler;
+        private Map<Destination, List<AnalyticsEvent>> mPendingEvents = new LinkedHashMap<Destination, List<AnalyticsEvent>>();
         private long mFlushCount = 0;
         private long mAveFlushFrequency = 0;
         private long mLastFlushTime = -1;
         private SystemInformation mSystemInformation;
+        private ExecutorService mUploadExecutor;
 
         public MessageHandlerThread(String name) {
             super(name, Thread.MIN_PRIORITY);
@@ -203,8 +369,7 @@ import java.util.Map;
 
         @Override
         protected void onLooperPrepared() {
-            String databaseName = mAloomaHost.equals(DEFAULT_ALOOMA_HOST) ? "alooma.db" : "rover.db";
-            mHandler = new AnalyticsMessageHandler(getLooper(), new ADbAdapter(mContext, databaseName));
+            mHandler = new AnalyticsMessageHandler(getLooper(), makeDbAdapter(mContext));
         }
 
         public boolean isDead() {
@@ -213,6 +378,41 @@ import java.util.Map;
             }
         }
 
+        /**
+         * Events are handed to the worker through a shared list, so that a burst of events
+         * that arrives while the worker is busy is written to the database in one transaction.
+         * Only the first event added to an empty list sends an ENQUEUE_EVENTS message.
+         */
+        public void enqueueEvent(AnalyticsEvent event, Destination destination) {
+            synchronized(mHandlerLock) {
+                if (mHandler == null) {
+                    // We died under suspicious circumstances. Don't try to send any more events.
+                    logAboutMessageToAlooma("Dead alooma worker dropping an event: " + event.getEventName());
+                } else {
+                    final boolean sendMessage = mPendingEvents.isEmpty();
+                    List<AnalyticsEvent> events = mPendingEvents.get(destination);
+                    if (null == events) {
+                        events = new ArrayList<AnalyticsEvent>();
+                        mPendingEvents.put(destination, events);
+                    }
+                    events.add(event);
+                    if (sendMessage) {
+                        final Message m = Message.obtain();
+                        m.what = ENQUEUE_EVENTS;
+                        mHandler.sendMessage(m);
+                    }
+                }
+            }
+        }
+
+        private Map<Destination, List<AnalyticsEvent>> takePendingEvents() {
+            synchronized(mHandlerLock) {
+                final Map<Destination, List<AnalyticsEvent>> ret = mPendingEvents;
+                mPendingEvents = new LinkedHashMap<Destination, List<AnalyticsEvent>>();
+                return ret;
+            }
+        }
+
         public void runMessage(Message msg) {
             synchronized(mHandlerLock) {
                 if (mHandler == null) {
@@ -224,6 +424,83 @@ import java.util.Map;
             }
         }
 
+        /**
+         * A batch on its way to the server. Built and applied on the worker thread, and may be
+         * run on an upload thread in between.
+         */
+        private class Upload implements Runnable {
+            public Upload(ADbAdapter.Table table, Destination destination, String url, ADbAdapter.DataBatch batch) {
+                mTable = table;
+                mDestination = destination;
+                mUrl = url;
+                mBatch = batch;
+            }
+
+            @Override
+            public void run() {
+                final List<NameValuePair> params = new ArrayList<NameValuePair>(1);
+                if (AConfig.DEBUG) {
+                    params.add(new BasicNameValuePair("verbose", "1"));
+                }
+
+                try {
+                    mResponse = getPoster().performRequest(mUrl, params,
+                            mDestination.getHeaders(), mDestination.getContentType(), mBatch);
+                } catch (final OutOfMemoryError e) {
+                    mError = e;
+                } catch (final IOException e) {
+                    mError = e;
+                }
+            }
+
+            public ADbAdapter.Table getTable() {
+                return mTable;
+            }
+
+            public Destination getDestination() {
+                return mDestination;
+            }
+
+            public String getUrl() {
+                return mUrl;
+            }
+
+            public ADbAdapter.DataBatch getBatch() {
+                return mBatch;
+            }
+
+            public byte[] getResponse() {
+                return mResponse;
+            }
+
+            public Throwable getError() {
+                return mError;
+            }
+
+            public void setError(Throwable error) {
+                mError = error;
+            }
+
+            public long getRetryAfterMillis() {
+                if (mError instanceof RemoteService.HttpErrorException) {
+                    return ((RemoteService.HttpErrorException) mError).getRetryAfterMillis();
+                }
+                return -1;
+            }
+
+            private final ADbAdapter.Table mTable;
+            private final Destination mDestination;
+            private final String mUrl;
+            private final ADbAdapter.DataBatch mBatch;
+            private byte[] mResponse;
+            private Throwable mError;
+        }
+
+        private class Backoff {
+            public int failures = 0;
+            public long notBefore = 0;
+        }
+
         private void updateFlushFrequency() {
             final long now = System.currentTimeMillis();
             final long newFlushCount = mFlushCount + 1;
@@ -242,18 +519,42 @@ import java.util.Map;
         }
 
         private class AnalyticsMessageHandler extends Handler {
-            private ADbAdapter mDbAdapter;
+            private EventStore mDbAdapter;
             private final DecideChecker mDecideChecker;
+            private final EventEncoder mEventEncoder;
+            private final FlushPolicy mFlushPolicy;
+            private final RetryPolicy mRetryPolicy;
             private final long mFlushInterval;
             private final boolean mDisableFallback;
-
-            public AnalyticsMessageHandler(Looper looper, ADbAdapter dbAdapter) {
+            private JSONObject mStaticDefaultProperties;
+            private JSONObject mVolatileDefaultProperties;
+            private long mVolatilePropertiesReadAt;
+            private boolean mVolatilePropertiesStale;
+            private BroadcastReceiver mDevicePropertyReceiver;
+            // Failures and backoff, by table and destination key, so a failing endpoint only holds back its own records
+            private final Map<String, Backoff> mBackoffs;
+            // When the pending retry flush is due, or 0 if there is none. There is at most one, marked by mRetryFlush.
+            private long mRetryFlushAt;
+            private final Object mRetryFlush = new Object();
+            // Every destination this worker sends to, by key
+            private final Map<String, Destination> mDestinations;
+
+            public AnalyticsMessageHandler(Looper looper, EventStore dbAdapter) {
                 super(looper);
                 mDbAdapter = dbAdapter;
+                mDestinations = new LinkedHashMap<String, Destination>();
+                mBackoffs = new HashMap<String, Backoff>();
+                mDestinations.put(mDestination.getKey(), mDestination);
                 mDecideChecker = new DecideChecker(mContext, mConfig);
+                mEventEncoder = new EventEncoder();
                 mDisableFallback = mConfig.getDisableFallback();
                 mFlushInterval = mConfig.getFlushInterval();
+                mRetryPolicy = new RetryPolicy(mFlushInterval > 0 ? mFlushInterval : DEFAULT_RETRY_BASE_DELAY,
+                        mConfig.getMaxRetryDelay(), mConfig.getMaxBatchRejections());
                 mSystemInformation = new SystemInformation(mContext);
+                mFlushPolicy = makeFlushPolicy(mContext, mSystemInformation);
+                registerDevicePropertyReceiver();
+                moveLegacyRecords(mDestination);
             }
 
             @Override
@@ -262,26 +563,58 @@ import java.util.Map;
                     int queueDepth = -1;
 
                     if (msg.what == ENQUEUE_PEOPLE) {
-                        final JSONObject message = (JSONObject) msg.obj;
+                        @SuppressWarnings("unchecked")
+                        final Pair<JSONObject, String> record = (Pair<JSONObject, String>) msg.obj;
+                        final JSONObject message = record.first;
 
                         logAboutMessageToAlooma("Queuing people record for sending later");
                         logAboutMessageToAlooma("    " + message.toString());
 
-                        queueDepth = mDbAdapter.addJSON(message, ADbAdapter.Table.PEOPLE);
+                        queueDepth = mDbAdapter.addJSON(Collections.singletonList(message), ADbAdapter.Table.PEOPLE,
+                                msg.arg1, record.second);
                     }
                     else if (msg.what == ENQUEUE_EVENTS) {
-                        final AnalyticsEvent eventDescription = (AnalyticsEvent) msg.obj;
-                        try {
-                            final JSONObject message = prepareEventObject(eventDescription, mContentType);
-                            logAboutMessageToAlooma("Queuing event for sending later");
-                            logAboutMessageToAlooma("    " + message.toString());
-                            queueDepth = mDbAdapter.addJSON(message, ADbAdapter.Table.EVENTS);
-                        } catch (final JSONException e) {
-                            Log.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                        final Map<Destination, List<AnalyticsEvent>> pending = takePendingEvents();
+                        for (final Map.Entry<Destination, List<AnalyticsEvent>> entry : pending.entrySet()) {
+                            final Destination destination = entry.getKey();
+                            final List<AnalyticsEvent> events = entry.getValue();
+                            addDestination(destination);
+
+                            List<byte[]> records = new ArrayList<byte[]>(events.size());
+                            int priority = AloomaAPI.PRIORITY_NORMAL;
+                            for (final AnalyticsEvent eventDescription : events) {
+                                // Events are stored in runs of the same priority, usually just the one
+                                if (eventDescription.getPriority() != priority && !records.isEmpty()) {
+                                    queueDepth = mDbAdapter.addRecords(records, ADbAdapter.Table.EVENTS, priority, destination.getKey());
+                                    records = new ArrayList<byte[]>(events.size());
+                                }
+                                priority = eventDescription.getPriority();
+
+                                try {
+                                    final byte[] record = mEventEncoder.encode(eventDescription, getStaticDefaultEventProperties(),
+                                            getVolatileDefaultEventProperties(), destination.getContentType());
+                                    logAboutMessageToAlooma("Queuing event for sending later");
+                                    if (AConfig.DEBUG) {
+                                        logAboutMessageToAlooma("    " + RecordCodec.decode(record));
+                                    }
+                                    records.add(record);
+                                } catch (final JSONException e) {
+                                    Log.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                                }
+                            }
+                            if (!records.isEmpty()) {
+                                queueDepth = mDbAdapter.addRecords(records, ADbAdapter.Table.EVENTS, priority, destination.getKey());
+                            }
                         }
                     }
+                    else if (msg.what == ADD_DESTINATION) {
+                        addDestination((Destination) msg.obj);
+                    }
                     else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToAlooma("Flushing queue due to scheduled or forced flush");
+                        if (msg.obj == mRetryFlush) {
+                            mRetryFlushAt = 0;
+                        }
                         updateFlushFrequency();
                         sendAllData(mDbAdapter);
                         mDecideChecker.runDecideChecks(getPoster());
@@ -296,10 +629,19 @@ import java.util.Map;
                         mDecideChecker.addDecideCheck(check);
                         mDecideChecker.runDecideChecks(getPoster());
                     }
+                    else if (msg.what == CLOSE_DATABASE) {
+                        logAboutMessageToAlooma("Closing database connection");
+                        mDbAdapter.close();
+                    }
                     else if (msg.what == KILL_WORKER) {
                         Log.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized(mHandlerLock) {
                             mDbAdapter.deleteDB();
+                            mPendingEvents.clear();
+                            unregisterDevicePropertyReceiver();
+                            if (null != mUploadExecutor) {
+                                mUploadExecutor.shutdown();
+                            }
                             mHandler = null;
                             Looper.myLooper().quit();
                         }
@@ -309,27 +651,29 @@ import java.util.Map;
 
                     ///////////////////////////
 
-                    if (queueDepth >= mConfig.getBulkUploadLimit()) {
-                        logAboutMessageToAlooma("Flushing queue due to bulk upload limit");
+                    final long flushDelay = queueDepth > 0 ? mFlushPolicy.getFlushDelay(queueDepth, mAveFlushFrequency) : -1;
+                    if (flushDelay == 0) {
+                        logAboutMessageToAlooma("Flushing queue due to flush policy, queue depth " + queueDepth);
                         updateFlushFrequency();
                         sendAllData(mDbAdapter);
                         mDecideChecker.runDecideChecks(getPoster());
-                    } else if (queueDepth > 0 && !hasMessages(FLUSH_QUEUE)) {
+                    } else if (flushDelay > 0 && !hasMessages(FLUSH_QUEUE)) {
                         // The !hasMessages(FLUSH_QUEUE) check is a courtesy for the common case
                         // of delayed flushes already enqueued from inside of this thread.
                         // Callers outside of this thread can still send
                         // a flush right here, so we may end up with two flushes
                         // in our queue, but we're OK with that.
 
-                        logAboutMessageToAlooma("Queue depth " + queueDepth + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
-                            sendEmptyMessageDelayed(FLUSH_QUEUE, mFlushInterval);
-                        }
+                        logAboutMessageToAlooma("Queue depth " + queueDepth + " - Adding flush in " + flushDelay);
+                        sendEmptyMessageDelayed(FLUSH_QUEUE, flushDelay);
                     }
                 } catch (final RuntimeException e) {
+                    // The worker is shared, so every destination stops here. Their records stay in the store.
                     Log.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
                         mHandler = null;
+                        mDbAdapter.close();
+                        unregisterDevicePropertyReceiver();
                         try {
                             Looper.myLooper().quit();
                             Log.e(LOGTAG, "Alooma will not process any more analytics messages", e);
@@ -340,7 +684,41 @@ import java.util.Map;
                 }
             }
 
-            private JSONObject getDefaultEventProperties() throws JSONException {
+            private void addDestination(Destination destination) {
+                if (!mDestinations.containsKey(destination.getKey())) {
+                    logAboutMessageToAlooma("Sending records for " + destination.getKey() + " from this worker");
+                    mDestinations.put(destination.getKey(), destination);
+                    moveLegacyRecords(destination);
+                }
+            }
+
+            // Older versions kept the records of each host in a store of its own, which had no
+            // destinations. They belong to the first destination added for that host.
+            private void moveLegacyRecords(Destination destination) {
+                final String name = destination.getHost().equals(DEFAULT_ALOOMA_HOST) ?
+                        LEGACY_DEFAULT_HOST_STORE_NAME : LEGACY_OTHER_HOST_STORE_NAME;
+
+                final File database = mContext.getDatabasePath(name + ".db");
+                if (database.exists()) {
+                    logAboutMessageToAlooma("Moving records of " + database + " to " + destination.getKey());
+                    moveRecords(new ADbAdapter(mContext, database.getName(), mConfig.getMaxQueueRows(), mConfig.getMaxQueueBytes()),
+                            mDbAdapter, destination);
+                }
+
+                final File journal = new File(mContext.getFilesDir(), name + ".journal");
+                if (journal.exists()) {
+                    logAboutMessageToAlooma("Moving records of " + journal + " to " + destination.getKey());
+                    moveRecords(new JournalEventStore(mContext, journal.getName(), mConfig.getMaxQueueRows(),
+                            mConfig.getMaxQueueBytes(), mConfig.getJournalSegmentBytes()), mDbAdapter, destination);
+                }
+            }
+
+            // Properties that can't change while the process is running. Computed once.
+            private JSONObject getStaticDefaultEventProperties() throws JSONException {
+                if (null != mStaticDefaultProperties) {
+                    return mStaticDefaultProperties;
+                }
+
                 final JSONObject ret = new JSONObject();
 
                 ret.put("alooma_sdk", "android");
@@ -401,6 +779,25 @@ import java.util.Map;
                 if (null != hasTelephony)
                     ret.put("$has_telephone", hasTelephony.booleanValue());
 
+                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
+                if (bluetoothVersion != null)
+                    ret.put("$bluetooth_version", bluetoothVersion);
+
+                mStaticDefaultProperties = ret;
+                return ret;
+            }
+
+            // Properties that follow the state of the device. These are re-read when a connectivity
+            // or bluetooth broadcast arrives, or when they are older than VOLATILE_PROPERTIES_TTL.
+            private JSONObject getVolatileDefaultEventProperties() throws JSONException {
+                final long now = SystemClock.elapsedRealtime();
+                if (null != mVolatileDefaultProperties && !mVolatilePropertiesStale &&
+                        now - mVolatilePropertiesReadAt < VOLATILE_PROPERTIES_TTL) {
+                    return mVolatileDefaultProperties;
+                }
+
+                final JSONObject ret = new JSONObject();
+
                 final String carrier = mSystemInformation.getCurrentNetworkOperator();
                 if (null != carrier)
                     ret.put("$carrier", carrier);
@@ -413,116 +810,360 @@ import java.util.Map;
                 if (isBluetoothEnabled != null)
                     ret.put("$bluetooth_enabled", isBluetoothEnabled);
 
-                final String bluetoothVersion = mSystemInformation.getBluetoothVersion();
-                if (bluetoothVersion != null)
-                    ret.put("$bluetooth_version", bluetoothVersion);
-
+                mVolatileDefaultProperties = ret;
+                mVolatilePropertiesReadAt = now;
+                mVolatilePropertiesStale = false;
                 return ret;
             }
 
-            private JSONObject prepareEventObject(AnalyticsEvent eventDescription, RemoteService.ContentType contentType) throws JSONException {
-                final JSONObject eventObj = new JSONObject();
-                final JSONObject eventProperties = eventDescription.getProperties();
-                final JSONObject defaultEventProperties = getDefaultEventProperties();
+            private void registerDevicePropertyReceiver() {
+                final IntentFilter filter = new IntentFilter();
+                filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+                filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+
+                final BroadcastReceiver receiver = new BroadcastReceiver() {
+                    @Override
+                    public void onReceive(Context context, Intent intent) {
+                        mVolatilePropertiesStale = true;
+                    }
+                };
+                try {
+                    // Delivered on this handler, so no synchronization is needed around the flag
+                    mContext.registerReceiver(receiver, filter, null, this);
+                    mDevicePropertyReceiver = receiver;
+                } catch (final RuntimeException e) {
+                    Log.w(LOGTAG, "Can't listen for connectivity changes, device properties will be refreshed periodically", e);
+                }
+            }
 
-                JSONObject props;
+            // The receiver holds on to this handler, and through it the worker, so it must go when the worker does
+            private void unregisterDevicePropertyReceiver() {
+                if (null == mDevicePropertyReceiver) {
+                    return;
+                }
                 try {
-                    props = eventObj.getJSONObject("properties");
-                } catch (JSONException ex) {
-                    props = new JSONObject();
+                    mContext.unregisterReceiver(mDevicePropertyReceiver);
+                } catch (final IllegalArgumentException e) {
+                    Log.w(LOGTAG, "Device property receiver was already unregistered", e);
+                }
+                mDevicePropertyReceiver = null;
+            }
+
+            private void sendAllData(EventStore dbAdapter) {
+                final HttpService poster = getPoster();
+                if (poster.isOnline(mContext)) {
+                    logAboutMessageToAlooma("Sending records to alooma");
+                    drainTables(dbAdapter);
+                } else {
+                    logAboutMessageToAlooma("Not flushing data to alooma because the device is not connected to the internet.");
                 }
-                props.put("token", eventDescription.getToken());
 
-                if (eventProperties != null) {
-                    for (final Iterator<?> iter = eventProperties.keys(); iter.hasNext();) {
-                        final String key = (String) iter.next();
-                        if (contentType == RemoteService.ContentType.JSON){
-                            props.put(key, eventProperties.get(key));
+                // Backoffs still running need a flush when they end, whether or not anything was sent now
+                scheduleRetryFlush();
+            }
+
+            // Sends batches from every table until the tables are empty or this flush has used up
+            // its byte or time budget. Each round reads one batch from each table that has records,
+            // uploads the batches in parallel, then applies the results. A failed send only stops
+            // its own table and destination, until the end of their backoff.
+            // Only the uploads leave this thread, the database is only used from here.
+            private void drainTables(EventStore dbAdapter) {
+                final long deadline = SystemClock.elapsedRealtime() + mConfig.getFlushTimeBudget();
+                long bytesSent = 0;
+                int batchesSent = 0;
+
+                List<ADbAdapter.Table> pending = Arrays.asList(ADbAdapter.Table.values());
+                while (!pending.isEmpty() &&
+                       bytesSent < mConfig.getFlushByteBudget() &&
+                       SystemClock.elapsedRealtime() < deadline) {
+                    final List<Upload> uploads = new ArrayList<Upload>(pending.size());
+                    final List<ADbAdapter.Table> skipped = new ArrayList<ADbAdapter.Table>();
+                    for (final ADbAdapter.Table table : pending) {
+                        final List<String> destinations = getSendableDestinations(table);
+                        if (destinations.isEmpty()) {
+                            continue;
+                        }
+                        final ADbAdapter.DataBatch batch = dbAdapter.generateDataBatch(table, destinations,
+                                mConfig.getBulkUploadLimit(), mConfig.getBulkUploadByteLimit());
+                        if (null == batch) {
+                            continue;
+                        }
+                        if (0 == batch.size()) {
+                            // Nothing in it could be read, there's nothing to send
+                            dbAdapter.cleanupEvents(batch, table);
+                            skipped.add(table);
+                            continue;
+                        }
+                        final Destination destination = mDestinations.get(batch.getDestination());
+                        uploads.add(new Upload(table, destination, getEndpoint(table, destination), batch));
+                    }
+
+                    runUploads(uploads);
+
+                    pending = skipped;
+                    for (final Upload upload : uploads) {
+                        final ADbAdapter.DataBatch sent = applyUpload(dbAdapter, upload);
+                        if (null == sent) {
+                            backOff(upload.getTable(), upload.getDestination(), upload.getRetryAfterMillis());
+                            // Other destinations of the table can still be sent
+                            pending.add(upload.getTable());
                         } else {
-                            defaultEventProperties.put(key, eventProperties.get(key));
+                            getBackoff(upload.getTable(), upload.getDestination()).failures = 0;
+                            bytesSent += sent.getContentLength();
+                            batchesSent++;
+                            if (sent.hasMore()) {
+                                pending.add(upload.getTable());
+                            }
                         }
                     }
                 }
-                for (final Iterator<?> iter = defaultEventProperties.keys(); iter.hasNext();) {
-                    final String key = (String) iter.next();
-                    if (contentType == RemoteService.ContentType.JSON){
-                        props.put(key, defaultEventProperties.get(key));
-                    } else {
-                        eventObj.put(key, defaultEventProperties.get(key));
+
+                if (!pending.isEmpty() && bytesSent > 0) {
+                    logAboutMessageToAlooma("Flush budget used after " + batchesSent + " batches, " +
+                            "the rest will be sent with the next flush.");
+                    if (!hasMessages(FLUSH_QUEUE) && mFlushInterval >= 0) {
+                        sendEmptyMessageDelayed(FLUSH_QUEUE, mFlushInterval);
                     }
                 }
+            }
 
-                eventObj.put("event", eventDescription.getEventName());
-                eventObj.put("properties", props);
-                return eventObj;
+            // The keys of the destinations the table can be sent to now. Records for destinations
+            // that haven't been added since the app started wait for them.
+            private List<String> getSendableDestinations(ADbAdapter.Table table) {
+                final long now = SystemClock.elapsedRealtime();
+                final List<String> sendable = new ArrayList<String>(mDestinations.size());
+                for (final Map.Entry<String, Destination> entry : mDestinations.entrySet()) {
+                    final Destination destination = entry.getValue();
+                    if (table == ADbAdapter.Table.PEOPLE && !destination.acceptsPeople()) {
+                        // Left to expire
+                        continue;
+                    }
+                    final Backoff backoff = mBackoffs.get(getBackoffKey(table, destination));
+                    if (null == backoff || now >= backoff.notBefore) {
+                        sendable.add(entry.getKey());
+                    }
+                }
+                return sendable;
             }
 
-            private void sendAllData(ADbAdapter dbAdapter) {
-                final HttpService poster = getPoster();
-                if (!poster.isOnline(mContext)) {
-                    logAboutMessageToAlooma("Not flushing data to alooma because the device is not connected to the internet.");
-                    return;
+            private String getEndpoint(ADbAdapter.Table table, Destination destination) {
+                if (table == ADbAdapter.Table.PEOPLE) {
+                    return mConfig.getPeopleEndpoint();
                 }
 
-                logAboutMessageToAlooma("Sending records to alooma");
-                sendData(dbAdapter, ADbAdapter.Table.EVENTS,
-                        mSchema + "://" + mAloomaHost + "/track?ip=1", mHeaders, mContentType);
+                return destination.getUrl() + "/track?ip=1";
             }
 
-            private void sendData(ADbAdapter dbAdapter, ADbAdapter.Table table, String url,
-                                  Map<String, String> headers, RemoteService.ContentType contentType) {
-                final HttpService poster = getPoster();
-                final String[] eventsData = dbAdapter.generateDataString(table);
+            // The first upload runs on this thread, any others on the upload executor.
+            private void runUploads(List<Upload> uploads) {
+                final List<Future<?>> running = new ArrayList<Future<?>>(uploads.size());
+                for (int i = 1; i < uploads.size(); i++) {
+                    running.add(getUploadExecutor().submit(uploads.get(i)));
+                }
 
-                if (eventsData != null) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
+                if (!uploads.isEmpty()) {
+                    uploads.get(0).run();
+                }
 
-                    final List<NameValuePair> params = new ArrayList<NameValuePair>(1);
-                    if (AConfig.DEBUG) {
-                        params.add(new BasicNameValuePair("verbose", "1"));
+                for (int i = 0; i < running.size(); i++) {
+                    try {
+                        running.get(i).get();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        uploads.get(i + 1).setError(new InterruptedIOException("Interrupted waiting for upload"));
+                    } catch (final ExecutionException e) {
+                        throw new RuntimeException("Upload to " + uploads.get(i + 1).getUrl() + " failed", e.getCause());
                     }
+                }
+            }
 
-                    boolean deleteEvents = true;
-                    byte[] response;
-                    try {
-                        response = poster.performRequest(url, params, headers, contentType, rawMessage);
-                        deleteEvents = true; // Delete events on any successful post, regardless of 1 or 0 response
-                        if (null == response) {
-                            logAboutMessageToAlooma("Response was null, unexpected failure posting to " + url + ".");
-                        } else {
-                            String parsedResponse;
-                            try {
-                                parsedResponse = new String(response, "UTF-8");
-                            } catch (UnsupportedEncodingException e) {
-                                throw new RuntimeException("UTF not supported on this platform?", e);
-                            }
+            private ExecutorService getUploadExecutor() {
+                if (null == mUploadExecutor) {
+                    mUploadExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread thread = new Thread(r, "com.alooma.android.AnalyticsUploader");
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+                }
+                return mUploadExecutor;
+            }
 
-                            logAboutMessageToAlooma("Successfully posted to " + url + ": \n" + rawMessage);
-                            logAboutMessageToAlooma("Response was " + parsedResponse);
+            /**
+             * Deletes, counts a rejection against, or quarantines the batch of a finished upload.
+             *
+             * @return the batch if it is done with and more of its table can be sent, or null
+             *     if the batch will be retried later.
+             */
+            private ADbAdapter.DataBatch applyUpload(EventStore dbAdapter, Upload upload) {
+                final ADbAdapter.Table table = upload.getTable();
+                final ADbAdapter.DataBatch batch = upload.getBatch();
+                final String url = upload.getUrl();
+                final Throwable error = upload.getError();
+
+                if (null == error) {
+                    final byte[] response = upload.getResponse();
+                    if (null == response) {
+                        logAboutMessageToAlooma("Response was null, unexpected failure posting to " + url + ".");
+                    } else if (AConfig.DEBUG) {
+                        String parsedResponse;
+                        try {
+                            parsedResponse = new String(response, "UTF-8");
+                        } catch (UnsupportedEncodingException e) {
+                            throw new RuntimeException("UTF not supported on this platform?", e);
                         }
-                    } catch (final OutOfMemoryError e) {
-                        Log.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                    } catch (final MalformedURLException e) {
-                        Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                    } catch (final IOException e) {
-                        logAboutMessageToAlooma("Cannot post message to " + url + ".", e);
-                        deleteEvents = false;
-                    }
 
-                    if (deleteEvents) {
-                        logAboutMessageToAlooma("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table);
-                    } else {
-                        logAboutMessageToAlooma("Retrying this batch of events.");
-                        if (!hasMessages(FLUSH_QUEUE)) {
-                            sendEmptyMessageDelayed(FLUSH_QUEUE, mFlushInterval);
+                        logAboutMessageToAlooma("Successfully posted to " + url + ": \n" + batch);
+                        logAboutMessageToAlooma("Response was " + parsedResponse);
+                    }
+                } else if (error instanceof OutOfMemoryError) {
+                    Log.e(LOGTAG, "Out of memory when posting to " + url + ".", error);
+                } else if (error instanceof MalformedURLException) {
+                    Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", error);
+                } else {
+                    logAboutMessageToAlooma("Cannot post message to " + url + ".", error);
+                    if (error instanceof RemoteService.HttpErrorException &&
+                            ((RemoteService.HttpErrorException) error).isRequestRejected()) {
+                        final int rejections = batch.getRejections() + 1;
+                        // A record refused along with others, and then again on its own, is the one the server
+                        // won't take. Waiting out more rejections would only hold up the rest of its batch,
+                        // which is sent a record at a time until the bad one is found.
+                        final boolean isolated = 1 == batch.size() && batch.getRejections() > 0;
+                        if (isolated || mRetryPolicy.shouldQuarantine(rejections)) {
+                            Log.w(LOGTAG, "Alooma refused a batch of " + batch.size() + " records " +
+                                    rejections + " times, quarantining it.");
+                            dbAdapter.quarantineEvents(batch, table);
+                            return batch;
                         }
+                        dbAdapter.recordRejection(batch, table);
+                    }
+                    return null;
+                }
+
+                // Delete events on any successful post, regardless of 1 or 0 response,
+                // and on errors that will happen again if we retry.
+                logAboutMessageToAlooma("Not retrying this batch of " + table.getName() + ", deleting it from DB.");
+                dbAdapter.cleanupEvents(batch, table);
+                return batch;
+            }
+
+            // Holds back the table and destination of a failed upload until the end of its backoff.
+            private void backOff(ADbAdapter.Table table, Destination destination, long retryAfterMillis) {
+                final Backoff backoff = getBackoff(table, destination);
+                backoff.failures++;
+                final long delay = mRetryPolicy.getRetryDelay(backoff.failures, retryAfterMillis);
+                backoff.notBefore = SystemClock.elapsedRealtime() + delay;
+                logAboutMessageToAlooma("Retrying failed " + table.getName() + " batches for " +
+                        destination.getKey() + " in " + delay + " ms.");
+            }
+
+            // Keeps one retry flush pending, due when the earliest backoff ends. That flush reschedules
+            // for the backoffs still running after it. Scheduled flushes stay, they still send the
+            // other tables and destinations.
+            private void scheduleRetryFlush() {
+                final long now = SystemClock.elapsedRealtime();
+                long next = Long.MAX_VALUE;
+                for (final Backoff backoff : mBackoffs.values()) {
+                    if (backoff.failures > 0 && backoff.notBefore > now) {
+                        next = Math.min(next, backoff.notBefore);
                     }
                 }
+                if (next == Long.MAX_VALUE || (0 != mRetryFlushAt && mRetryFlushAt <= next)) {
+                    return;
+                }
+
+                removeMessages(FLUSH_QUEUE, mRetryFlush);
+                sendMessageDelayed(obtainMessage(FLUSH_QUEUE, mRetryFlush), next - now);
+                mRetryFlushAt = next;
+            }
+
+            private Backoff getBackoff(ADbAdapter.Table table, Destination destination) {
+                final String key = getBackoffKey(table, destination);
+                Backoff backoff = mBackoffs.get(key);
+                if (null == backoff) {
+                    backoff = new Backoff();
+                    mBackoffs.put(key, backoff);
+                }
+                return backoff;
+            }
+
+            private String getBackoffKey(ADbAdapter.Table table, Destination destination) {
+                return table.getName() + " " + destination.getKey();
+            }
+
+        }
+
+    }
+
+    /**
+     * Where records are sent: a host, and the headers and content type of the requests.
+     * Records are stored with the key of their destination, so keys must stay the same
+     * from one run of the app to the next.
+     */
+    /* package */ static class Destination {
+        public Destination(String host, boolean forceSSL, Map<String, String> headers, RemoteService.ContentType contentType) {
+            mHost = host;
+            mUrl = (forceSSL ? "https" : "http") + "://" + host;
+            // Copied, the key is made from the headers as they are now
+            mHeaders = (null == headers) ? null : Collections.unmodifiableMap(new HashMap<String, String>(headers));
+            mContentType = contentType;
+
+            final StringBuilder key = new StringBuilder(mUrl).append(' ').append(contentType);
+            if (null != mHeaders && !mHeaders.isEmpty()) {
+                // String and Map hash codes are specified, so they don't change between runs
+                key.append(' ').append(Integer.toHexString(mHeaders.hashCode()));
             }
+            mKey = key.toString();
+        }
+
+        public String getKey() {
+            return mKey;
+        }
 
+        /**
+         * @return true if people records can be sent here. They are only sent to the people
+         *     endpoint of AConfig, which belongs to the default host.
+         */
+        public boolean acceptsPeople() {
+            return DEFAULT_ALOOMA_HOST.equals(mHost);
+        }
+
+        public String getHost() {
+            return mHost;
+        }
+
+        /**
+         * @return the scheme and host, with no trailing slash
+         */
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public Map<String, String> getHeaders() {
+            return mHeaders;
+        }
+
+        public RemoteService.ContentType getContentType() {
+            return mContentType;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Destination && mKey.equals(((Destination) o).mKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return mKey.hashCode();
         }
 
+        private final String mKey;
+        private final String mHost;
+        private final String mUrl;
+        private final Map<String, String> mHeaders;
+        private final RemoteService.ContentType mContentType;
     }
 }
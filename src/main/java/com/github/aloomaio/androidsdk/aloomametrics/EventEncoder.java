@@ -0,0 +1,351 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.github.aloomaio.androidsdk.util.RemoteService;
+
+/**
+ * Writes events straight to the compact form of RecordCodec, without putting the event
+ * together as JSONObjects first.
+ *
+ * <p>An event record is made of layers of properties: the default properties, the event's own
+ * properties and the envelope around them. Where two layers have the same key, the later
+ * layer wins, just as if the layers had been put into one JSONObject in order. Each entry is
+ * written from the layer that wins it, so nothing is copied or overwritten along the way.
+ *
+ * <p>The default properties change rarely, so each set of them is encoded once and reused,
+ * until the worker hands over a different set.
+ *
+ * <p>Not thread-safe. Buffers are reused from one event to the next, so instances should only
+ * be used by a single thread.
+ */
+/* package */ class EventEncoder {
+    public EventEncoder() {
+        mRecord = new RecordCodec.Output();
+        mBody = new RecordCodec.Output();
+        mLayers = new Layer[6];
+        mToken = new TokenLayer();
+        mEnvelope = new EnvelopeLayer();
+        mEventProperties = new JSONObjectLayer();
+        mSnapshot = new SnapshotLayer();
+        mBuiltins = new BuiltinsLayer();
+        mCallerProperties = new JSONObjectLayer();
+    }
+
+    /**
+     * @return the event, as RecordCodec.encode would write the JSONObject the worker used to build for it
+     */
+    public byte[] encode(AnalyticsEvent event, JSONObject staticProperties, JSONObject volatileProperties,
+                         RemoteService.ContentType contentType) throws JSONException {
+        if (null == mStaticProperties || mStaticProperties.mSource != staticProperties) {
+            mStaticProperties = new FragmentLayer(staticProperties);
+        }
+        if (null == mVolatileProperties || mVolatileProperties.mSource != volatileProperties) {
+            mVolatileProperties = new FragmentLayer(volatileProperties);
+        }
+
+        final String eventName = event.getEventName();
+        mRecord.reset();
+        mBody.reset();
+        mLayerCount = 0;
+
+        if (contentType == RemoteService.ContentType.JSON) {
+            // {"event": ..., "properties": {token, the event's properties, default properties}}
+            addLayer(mToken.set(event.getToken()));
+            addEventLayers(event);
+            addLayer(mStaticProperties);
+            addLayer(mVolatileProperties);
+            final int entries = writeLayers(mBody, mLayerCount);
+
+            RecordCodec.writeObjectStart(mRecord, null == eventName ? 1 : 2);
+            if (null != eventName) {
+                RecordCodec.writeKey(mRecord, "event");
+                RecordCodec.writeValue(mRecord, eventName);
+            }
+            RecordCodec.writeKey(mRecord, "properties");
+            RecordCodec.writeObjectStart(mRecord, entries);
+            mRecord.write(mBody);
+        } else {
+            // {default properties, the event's properties, "event": ..., "properties": {token}}
+            addLayer(mStaticProperties);
+            addLayer(mVolatileProperties);
+            addEventLayers(event);
+            addLayer(mEnvelope.set(eventName, event.getToken()));
+            final int entries = writeLayers(mBody, mLayerCount);
+
+            RecordCodec.writeObjectStart(mRecord, entries);
+            mRecord.write(mBody);
+        }
+
+        return mRecord.toByteArray();
+    }
+
+    // The same layers AnalyticsEvent.buildProperties puts together, in the same order
+    private void addEventLayers(AnalyticsEvent event) {
+        if (event.isDeferred()) {
+            addLayer(mSnapshot.set(event.getEventPropertiesSnapshot()));
+            addLayer(mBuiltins.set(event.getTimeMillis(), event.getDistinctId(), event.getEventBegin()));
+            addLayer(mCallerProperties.set(event.getCallerProperties()));
+        } else {
+            addLayer(mEventProperties.set(event.getProperties()));
+        }
+    }
+
+    private void addLayer(Layer layer) {
+        mLayers[mLayerCount++] = layer;
+    }
+
+    // Writes the entries of the first count layers that aren't overridden by a later layer
+    private int writeLayers(RecordCodec.Output out, int count) throws JSONException {
+        int entries = 0;
+        for (int i = 0; i < count; i++) {
+            entries += mLayers[i].write(out, i);
+        }
+        return entries;
+    }
+
+    private boolean isOverridden(String key, int layer) {
+        for (int i = layer + 1; i < mLayerCount; i++) {
+            if (mLayers[i].has(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private abstract class Layer {
+        /**
+         * @return true if this layer would replace (or remove) an earlier layer's value for key
+         */
+        public abstract boolean has(String key);
+
+        /**
+         * Writes the entries of this layer that later layers don't override.
+         * @return the number of entries written
+         */
+        public abstract int write(RecordCodec.Output out, int layer) throws JSONException;
+    }
+
+    private class JSONObjectLayer extends Layer {
+        public JSONObjectLayer set(JSONObject object) {
+            mObject = object;
+            return this;
+        }
+
+        @Override
+        public boolean has(String key) {
+            return null != mObject && mObject.has(key);
+        }
+
+        @Override
+        public int write(RecordCodec.Output out, int layer) throws JSONException {
+            if (null == mObject) {
+                return 0;
+            }
+            int entries = 0;
+            for (final Iterator<?> keys = mObject.keys(); keys.hasNext();) {
+                final String key = (String) keys.next();
+                if (!isOverridden(key, layer)) {
+                    RecordCodec.writeKey(out, key);
+                    RecordCodec.writeValue(out, mObject.get(key));
+                    entries++;
+                }
+            }
+            return entries;
+        }
+
+        private JSONObject mObject;
+    }
+
+    // Referrer and super properties. JSONObject.put drops null values, so they don't count.
+    private class SnapshotLayer extends Layer {
+        public SnapshotLayer set(Map<String, Object> snapshot) {
+            mSnapshot = snapshot;
+            return this;
+        }
+
+        @Override
+        public boolean has(String key) {
+            return null != mSnapshot.get(key);
+        }
+
+        @Override
+        public int write(RecordCodec.Output out, int layer) throws JSONException {
+            int entries = 0;
+            for (final Map.Entry<String, Object> entry : mSnapshot.entrySet()) {
+                if (null != entry.getValue() && !isOverridden(entry.getKey(), layer)) {
+                    RecordCodec.writeKey(out, entry.getKey());
+                    RecordCodec.writeValue(out, entry.getValue());
+                    entries++;
+                }
+            }
+            return entries;
+        }
+
+        private Map<String, Object> mSnapshot;
+    }
+
+    // "time", "distinct_id" and "$duration", written without boxing
+    private class BuiltinsLayer extends Layer {
+        public BuiltinsLayer set(long timeMillis, String distinctId, Long eventBegin) {
+            mTimeMillis = timeMillis;
+            mDistinctId = distinctId;
+            mEventBegin = eventBegin;
+            return this;
+        }
+
+        @Override
+        public boolean has(String key) {
+            // A null distinct id still removes one from the snapshot
+            return "time".equals(key) || "distinct_id".equals(key) ||
+                   (null != mEventBegin && "$duration".equals(key));
+        }
+
+        @Override
+        public int write(RecordCodec.Output out, int layer) throws JSONException {
+            int entries = 0;
+            if (!isOverridden("time", layer)) {
+                RecordCodec.writeKey(out, "time");
+                RecordCodec.writeLong(out, AnalyticsEvent.getTimeSeconds(mTimeMillis));
+                entries++;
+            }
+            if (null != mDistinctId && !isOverridden("distinct_id", layer)) {
+                RecordCodec.writeKey(out, "distinct_id");
+                RecordCodec.writeValue(out, mDistinctId);
+                entries++;
+            }
+            if (null != mEventBegin && !isOverridden("$duration", layer)) {
+                RecordCodec.writeKey(out, "$duration");
+                RecordCodec.writeDouble(out, AnalyticsEvent.getDurationSeconds(mTimeMillis, mEventBegin));
+                entries++;
+            }
+            return entries;
+        }
+
+        private long mTimeMillis;
+        private String mDistinctId;
+        private Long mEventBegin;
+    }
+
+    private class TokenLayer extends Layer {
+        public TokenLayer set(String token) {
+            mTokenValue = token;
+            return this;
+        }
+
+        @Override
+        public boolean has(String key) {
+            return "token".equals(key);
+        }
+
+        @Override
+        public int write(RecordCodec.Output out, int layer) throws JSONException {
+            if (null == mTokenValue || isOverridden("token", layer)) {
+                return 0;
+            }
+            RecordCodec.writeKey(out, "token");
+            RecordCodec.writeValue(out, mTokenValue);
+            return 1;
+        }
+
+        private String mTokenValue;
+    }
+
+    // "event" and "properties": {"token": ...}, around the other properties of form encoded records
+    private class EnvelopeLayer extends Layer {
+        public EnvelopeLayer set(String eventName, String token) {
+            mEventName = eventName;
+            mTokenValue = token;
+            return this;
+        }
+
+        @Override
+        public boolean has(String key) {
+            // A null event name still removes one from the earlier layers
+            return "event".equals(key) || "properties".equals(key);
+        }
+
+        @Override
+        public int write(RecordCodec.Output out, int layer) throws JSONException {
+            int entries = 0;
+            if (null != mEventName && !isOverridden("event", layer)) {
+                RecordCodec.writeKey(out, "event");
+                RecordCodec.writeValue(out, mEventName);
+                entries++;
+            }
+            if (!isOverridden("properties", layer)) {
+                RecordCodec.writeKey(out, "properties");
+                RecordCodec.writeObjectStart(out, null == mTokenValue ? 0 : 1);
+                if (null != mTokenValue) {
+                    RecordCodec.writeKey(out, "token");
+                    RecordCodec.writeValue(out, mTokenValue);
+                }
+                entries++;
+            }
+            return entries;
+        }
+
+        private String mEventName;
+        private String mTokenValue;
+    }
+
+    // Default properties, encoded once
+    private class FragmentLayer extends Layer {
+        public FragmentLayer(JSONObject source) throws JSONException {
+            mSource = source;
+            mKeys = new String[source.length()];
+            mOffsets = new int[mKeys.length + 1];
+
+            final RecordCodec.Output entries = new RecordCodec.Output();
+            int i = 0;
+            for (final Iterator<?> keys = source.keys(); keys.hasNext(); i++) {
+                mKeys[i] = (String) keys.next();
+                mOffsets[i] = entries.size();
+                RecordCodec.writeKey(entries, mKeys[i]);
+                RecordCodec.writeValue(entries, source.get(mKeys[i]));
+            }
+            mOffsets[i] = entries.size();
+            mEntries = entries.toByteArray();
+        }
+
+        @Override
+        public boolean has(String key) {
+            return mSource.has(key);
+        }
+
+        @Override
+        public int write(RecordCodec.Output out, int layer) {
+            int entries = 0;
+            for (int i = 0; i < mKeys.length; i++) {
+                if (!isOverridden(mKeys[i], layer)) {
+                    out.write(mEntries, mOffsets[i], mOffsets[i + 1] - mOffsets[i]);
+                    entries++;
+                }
+            }
+            return entries;
+        }
+
+        private final JSONObject mSource;
+        private final String[] mKeys;
+        private final int[] mOffsets;
+        private final byte[] mEntries;
+    }
+
+    private final RecordCodec.Output mRecord;
+    private final RecordCodec.Output mBody;
+    private final Layer[] mLayers;
+    private int mLayerCount;
+
+    private final TokenLayer mToken;
+    private final EnvelopeLayer mEnvelope;
+    private final JSONObjectLayer mEventProperties;
+    private final SnapshotLayer mSnapshot;
+    private final BuiltinsLayer mBuiltins;
+    private final JSONObjectLayer mCallerProperties;
+    private FragmentLayer mStaticProperties;
+    private FragmentLayer mVolatileProperties;
+}
@@ -0,0 +1,82 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Where AnalyticsMessages keeps records until they have been sent.
+ *
+ * <p>Records are identified by an id that only grows as records are added. Each batch holds
+ * records of a single priority and destination, and is acknowledged by the id of its last
+ * record, its priority and its destination. Implementations are not thread-safe, and should
+ * only be used by a single thread.
+ *
+ * @see ADbAdapter
+ * @see JournalEventStore
+ */
+/* package */ interface EventStore {
+    /**
+     * @return the number of unsent records in the table, or -1 on failure
+     */
+    int addJSON(JSONObject j, ADbAdapter.Table table);
+
+    /**
+     * Adds the records, in order. If the table would go over its limits, the oldest
+     * records are evicted to make room.
+     * @return the number of unsent records in the table, or -1 on failure
+     */
+    int addJSON(List<JSONObject> records, ADbAdapter.Table table);
+
+    /**
+     * Adds the records, in order, with one of the AloomaAPI.PRIORITY_ values, to be sent to
+     * the destination with the given key. If the table would go over its limits, the lowest
+     * priority records are evicted first.
+     * @return the number of unsent records in the table, or -1 on failure
+     */
+    int addJSON(List<JSONObject> records, ADbAdapter.Table table, int priority, String destination);
+
+    /**
+     * Adds records as addJSON(records, table, priority, destination) does, for records
+     * already in the compact form of RecordCodec.
+     * @return the number of unsent records in the table, or -1 on failure
+     */
+    int addRecords(List<byte[]> records, ADbAdapter.Table table, int priority, String destination);
+
+    /**
+     * @param destinations the keys of the destinations that can be sent to, or null for all of them
+     * @return the next batch of records to send, highest priority first, or null if there are none.
+     *     The batch is empty if none of its records could be decoded, it should be cleaned up
+     *     without being sent.
+     */
+    ADbAdapter.DataBatch generateDataBatch(ADbAdapter.Table table, Collection<String> destinations,
+                                           int rowLimit, long byteLimit);
+
+    /**
+     * Acknowledges a batch that has been sent.
+     */
+    void cleanupEvents(ADbAdapter.DataBatch batch, ADbAdapter.Table table);
+
+    /**
+     * Removes records, quarantined or not, created at or before time.
+     */
+    void cleanupEvents(long time, ADbAdapter.Table table);
+
+    /**
+     * Counts one more refusal by the server against the records of a batch.
+     */
+    void recordRejection(ADbAdapter.DataBatch batch, ADbAdapter.Table table);
+
+    /**
+     * Stops sending the records of a batch. They're kept until they expire.
+     */
+    void quarantineEvents(ADbAdapter.DataBatch batch, ADbAdapter.Table table);
+
+    void deleteDB();
+
+    /**
+     * Releases the open files of the store. They're reopened by the next call.
+     */
+    void close();
+}
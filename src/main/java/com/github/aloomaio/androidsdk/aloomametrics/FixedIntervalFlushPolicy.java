@@ -0,0 +1,23 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+/**
+ * Flushes a full batch right away, and anything less after AConfig.getFlushInterval().
+ */
+/* package */ class FixedIntervalFlushPolicy implements FlushPolicy {
+    public FixedIntervalFlushPolicy(AConfig config) {
+        mFlushInterval = config.getFlushInterval();
+        mBulkUploadLimit = config.getBulkUploadLimit();
+    }
+
+    @Override
+    public long getFlushDelay(int queueDepth, long averageFlushInterval) {
+        if (queueDepth >= mBulkUploadLimit) {
+            return 0;
+        }
+
+        return mFlushInterval;
+    }
+
+    private final long mFlushInterval;
+    private final int mBulkUploadLimit;
+}
@@ -0,0 +1,19 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+/**
+ * Decides when the AnalyticsMessages worker sends queued records. Policies are only
+ * called on the worker thread.
+ */
+/* package */ interface FlushPolicy {
+    /**
+     * Called each time records are added to the queue.
+     *
+     * @param queueDepth the number of records waiting in the table that was just added to
+     * @param averageFlushInterval the average number of milliseconds between recent flushes,
+     *     or 0 if there haven't been two flushes yet
+     * @return the number of milliseconds to wait before flushing. 0 flushes right away, and
+     *     a negative number doesn't schedule a flush at all. If a flush is already scheduled,
+     *     positive delays are ignored.
+     */
+    public long getFlushDelay(int queueDepth, long averageFlushInterval);
+}
@@ -0,0 +1,849 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * An EventStore that appends records to memory-mapped journal files, instead of inserting
+ * them into SQLite.
+ *
+ * <p>Each table is a directory of segment files, each named for the position of its first
+ * record, followed by a "committed" file holding the position of the first record that
+ * hasn't been sent. Records are only ever appended. Sending a batch moves the committed
+ * position past it, and a segment is deleted once every record in it has been sent.
+ * A record's id is its position.
+ *
+ * <p>Each record is a header followed by the record in RecordCodec's compact form:
+ * <pre>
+ *   int   length of the record
+ *   int   CRC32 of the creation time and the record
+ *   long  creation time
+ *   byte  times the server has refused the record
+ *   byte  1 if the record is quarantined
+ * </pre>
+ * The length is written last, so a record cut short by a crash has no length or a bad CRC,
+ * and is dropped along with the rest of its segment when the journal is next opened.
+ *
+ * <p>Quarantined records are passed over by the committed position, but keep their segment
+ * from being deleted until they expire.
+ *
+ * <p>Records of normal priority for the default destination are kept in a directory named for
+ * their table. Records for any other destination or priority get a directory of their own,
+ * named for the table, the destination and the priority. Since nothing can be removed from the
+ * middle of a journal, each of them is a journal of its own, sent in the order it was added.
+ * A destination's journals are sent highest priority first, and are counted and limited
+ * together, evicting from the lowest priority first.
+ *
+ * <p>Not thread-safe. Instances of this class should only be used by a single thread.
+ */
+/* package */ class JournalEventStore implements EventStore {
+    private static final String LOGTAG = "AloomaAPI.Journal";
+
+    public JournalEventStore(Context context, String name, int maxRows, long maxBytes, int segmentBytes) {
+        mDirectory = new File(context.getFilesDir(), name);
+        mMaxRows = maxRows;
+        mMaxBytes = maxBytes;
+        mSegmentBytes = segmentBytes;
+        mJournals = new HashMap<String, Journal>();
+        mTurns = new int[ADbAdapter.Table.values().length];
+    }
+
+    @Override
+    public int addJSON(JSONObject j, ADbAdapter.Table table) {
+        return addJSON(Collections.singletonList(j), table);
+    }
+
+    @Override
+    public int addJSON(List<JSONObject> records, ADbAdapter.Table table) {
+        return addJSON(records, table, AloomaAPI.PRIORITY_NORMAL, ADbAdapter.DEFAULT_DESTINATION);
+    }
+
+    /**
+     * @return the number of unsent records for the destination in the table, or -1 on failure
+     */
+    @Override
+    public int addJSON(List<JSONObject> records, ADbAdapter.Table table, int priority, String destination) {
+        final List<byte[]> encoded = new ArrayList<byte[]>(records.size());
+        for (final JSONObject j : records) {
+            try {
+                encoded.add(RecordCodec.encode(j));
+            } catch (final JSONException e) {
+                Log.e(LOGTAG, "Could not encode a record for table " + table.getName() + ", dropping it.", e);
+            }
+        }
+        return addRecords(encoded, table, priority, destination);
+    }
+
+    @Override
+    public int addRecords(List<byte[]> records, ADbAdapter.Table table, int priority, String destination) {
+        final String tableName = table.getName();
+
+        final List<byte[]> rows = new ArrayList<byte[]>(records.size());
+        long bytes = 0;
+        for (final byte[] row : records) {
+            final long rowBytes = HEADER_BYTES + row.length;
+            if (rowBytes > mMaxBytes) {
+                Log.w(LOGTAG, "Dropping a " + rowBytes + " byte record, larger than the whole " + tableName + " table is allowed to be.");
+                continue;
+            }
+            rows.add(row);
+            bytes += rowBytes;
+        }
+
+        try {
+            final Journal journal = getJournal(table, destination, priority);
+            final List<Journal> journals = getJournals(table, destination);
+            makeRoom(journals, rows.size(), bytes);
+            final long now = System.currentTimeMillis();
+            for (final byte[] row : rows) {
+                journal.append(now, row);
+            }
+
+            int count = 0;
+            for (final Journal j : journals) {
+                count += j.mRows;
+            }
+            return count;
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "Could not add Mixpanel data to table " + tableName + ", dropping " + rows.size() + " records.", e);
+
+            // Most likely the disk is full. What was appended stays appended,
+            // but the journal has to be opened again to find out what that was.
+            closeJournal(getLaneName(table, destination, priority));
+            return -1;
+        }
+    }
+
+    // Evicts enough of a destination's records that the given records fit under the table's limits,
+    // plus some slack so that a full destination doesn't need evicting on every append.
+    // The journals are in order of priority, lowest first.
+    private void makeRoom(List<Journal> journals, int incomingRows, long incomingBytes) {
+        int rows = 0;
+        long bytes = 0;
+        for (final Journal journal : journals) {
+            rows += journal.mRows;
+            bytes += journal.mBytes;
+        }
+        final int excessRows = rows + incomingRows - mMaxRows;
+        final long excessBytes = bytes + incomingBytes - mMaxBytes;
+        if (excessRows <= 0 && excessBytes <= 0) {
+            return;
+        }
+
+        Log.w(LOGTAG, "Journal " + journals.get(0).mDirectory.getName() + " is full, evicting the oldest, lowest priority records.");
+        long minBytes = excessBytes > 0 ? excessBytes + mMaxBytes / EVICTION_SLACK_DIVISOR : 0;
+        int minRows = excessRows > 0 ? excessRows + mMaxRows / EVICTION_SLACK_DIVISOR : 0;
+
+        // Quarantined records go first
+        for (final Journal journal : journals) {
+            final long bytesBefore = journal.mBytes;
+            journal.deleteSegments(Long.MAX_VALUE);
+            minBytes -= bytesBefore - journal.mBytes;
+        }
+
+        for (final Journal journal : journals) {
+            if (minRows <= 0 && minBytes <= 0) {
+                break;
+            }
+            final long bytesBefore = journal.mBytes;
+            minRows -= journal.evict(minRows, minBytes);
+            minBytes -= bytesBefore - journal.mBytes;
+        }
+    }
+
+    public ADbAdapter.DataBatch generateDataBatch(ADbAdapter.Table table, int rowLimit, long byteLimit) {
+        return generateDataBatch(table, null, rowLimit, byteLimit);
+    }
+
+    // Higher priorities go first. Destinations of the same priority take turns, so that a busy one can't hold up the others.
+    @Override
+    public ADbAdapter.DataBatch generateDataBatch(ADbAdapter.Table table, Collection<String> destinations,
+                                                  int rowLimit, long byteLimit) {
+        final List<Lane> lanes = new ArrayList<Lane>();
+        for (final Lane lane : getLanes(table)) {
+            if (null == destinations || destinations.contains(lane.mDestination)) {
+                lanes.add(lane);
+            }
+        }
+        Collections.sort(lanes, Collections.reverseOrder(BY_PRIORITY));
+
+        // Wraps around to negative once in a while, which doesn't hurt taking turns
+        final int turn = mTurns[table.ordinal()]++ & Integer.MAX_VALUE;
+        int start = 0;
+        while (start < lanes.size()) {
+            int end = start + 1;
+            while (end < lanes.size() && lanes.get(end).mPriority == lanes.get(start).mPriority) {
+                end++;
+            }
+            for (int i = 0; i < end - start; i++) {
+                final Lane lane = lanes.get(start + (turn + i) % (end - start));
+                final ADbAdapter.DataBatch batch = generateDataBatch(table, lane, rowLimit, byteLimit, lanes.size() > 1);
+                if (null != batch) {
+                    return batch;
+                }
+            }
+            start = end;
+        }
+        return null;
+    }
+
+    private ADbAdapter.DataBatch generateDataBatch(ADbAdapter.Table table, Lane lane,
+                                                   int rowLimit, long byteLimit, boolean otherLanes) {
+        final Journal journal;
+        try {
+            journal = getJournal(table, lane.mDestination, lane.mPriority);
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "Could not open journal " + getLaneName(table, lane.mDestination, lane.mPriority) + ". Waiting to send.", e);
+            return null;
+        }
+
+        final List<String> rows = new ArrayList<String>();
+        long batchBytes = 2; // '[' and ']'
+        long lastId = -1;
+        int rejections = 0;
+        final Reader reader = journal.read(journal.mCommitted);
+        while (reader.hasRecord() && rows.size() < rowLimit) {
+            final Segment segment = reader.getSegment();
+            final int offset = reader.getOffset();
+            final int rowRejections = segment.getRejections(offset);
+
+            final String row;
+            try {
+                row = RecordCodec.decode(segment.getRecord(offset));
+            } catch (final IllegalArgumentException e) {
+                // The CRC matched, so the record was written this way. Deleted along with the rest of the batch.
+                Log.e(LOGTAG, "Could not decode a stored Mixpanel record, dropping it.", e);
+                lastId = reader.getPosition();
+                reader.advance();
+                continue;
+            }
+
+            final long rowBytes = ADbAdapter.DataBatch.utf8Length(row) + (rows.isEmpty() ? 0 : 1);
+            if (!rows.isEmpty() && (rowRejections > 0 || batchBytes + rowBytes > byteLimit)) {
+                break;
+            }
+
+            rows.add(row);
+            batchBytes += rowBytes;
+            lastId = reader.getPosition();
+            reader.advance();
+
+            if (rowRejections > 0) {
+                rejections = rowRejections;
+                break;
+            }
+        }
+
+        if (-1 == lastId) {
+            return null;
+        }
+
+        // Empty if none of the records could be decoded, so they're still cleaned up
+        return new ADbAdapter.DataBatch(String.valueOf(lastId), rows, batchBytes, otherLanes || reader.hasRecord(),
+                rejections, lane.mPriority, lane.mDestination);
+    }
+
+    @Override
+    public void cleanupEvents(ADbAdapter.DataBatch batch, ADbAdapter.Table table) {
+        cleanupEvents(batch.getLastId(), table, batch.getDestination(), batch.getPriority());
+    }
+
+    public void cleanupEvents(String lastId, ADbAdapter.Table table) {
+        cleanupEvents(lastId, table, ADbAdapter.DEFAULT_DESTINATION, AloomaAPI.PRIORITY_NORMAL);
+    }
+
+    private void cleanupEvents(String lastId, ADbAdapter.Table table, String destination, int priority) {
+        try {
+            final Journal journal = getJournal(table, destination, priority);
+            journal.commitThrough(Long.parseLong(lastId), false);
+            journal.deleteSegments(Long.MIN_VALUE);
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "Could not clean sent Mixpanel records from " + table.getName() + ".", e);
+        }
+    }
+
+    @Override
+    public void cleanupEvents(long time, ADbAdapter.Table table) {
+        for (final Lane lane : getLanes(table)) {
+            try {
+                final Journal journal = getJournal(table, lane.mDestination, lane.mPriority);
+                journal.commitCreatedThrough(time);
+                journal.deleteSegments(time);
+            } catch (final IOException e) {
+                Log.e(LOGTAG, "Could not clean timed-out Mixpanel records from " +
+                        getLaneName(table, lane.mDestination, lane.mPriority) + ".", e);
+            }
+        }
+    }
+
+    @Override
+    public void recordRejection(ADbAdapter.DataBatch batch, ADbAdapter.Table table) {
+        recordRejection(batch.getLastId(), table, batch.getDestination(), batch.getPriority());
+    }
+
+    public void recordRejection(String lastId, ADbAdapter.Table table) {
+        recordRejection(lastId, table, ADbAdapter.DEFAULT_DESTINATION, AloomaAPI.PRIORITY_NORMAL);
+    }
+
+    private void recordRejection(String lastId, ADbAdapter.Table table, String destination, int priority) {
+        try {
+            final Journal journal = getJournal(table, destination, priority);
+            final long last = Long.parseLong(lastId);
+            final Reader reader = journal.read(journal.mCommitted);
+            while (reader.hasRecord() && reader.getPosition() <= last) {
+                final Segment segment = reader.getSegment();
+                final int rejections = segment.getRejections(reader.getOffset());
+                segment.setRejections(reader.getOffset(), Math.min(Byte.MAX_VALUE, rejections + 1));
+                reader.advance();
+            }
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "Could not count refused Mixpanel records in " + table.getName() + ".", e);
+        }
+    }
+
+    @Override
+    public void quarantineEvents(ADbAdapter.DataBatch batch, ADbAdapter.Table table) {
+        quarantineEvents(batch.getLastId(), table, batch.getDestination(), batch.getPriority());
+    }
+
+    public void quarantineEvents(String lastId, ADbAdapter.Table table) {
+        quarantineEvents(lastId, table, ADbAdapter.DEFAULT_DESTINATION, AloomaAPI.PRIORITY_NORMAL);
+    }
+
+    private void quarantineEvents(String lastId, ADbAdapter.Table table, String destination, int priority) {
+        try {
+            getJournal(table, destination, priority).commitThrough(Long.parseLong(lastId), true);
+        } catch (final IOException e) {
+            Log.e(LOGTAG, "Could not quarantine Mixpanel records in " + table.getName() + ".", e);
+        }
+    }
+
+    @Override
+    public void deleteDB() {
+        mJournals.clear();
+        final File[] directories = mDirectory.listFiles();
+        if (null != directories) {
+            for (final File directory : directories) {
+                final File[] files = directory.listFiles();
+                if (null != files) {
+                    for (final File file : files) {
+                        file.delete();
+                    }
+                }
+                directory.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * Writes the journals out to disk and unmaps them. The journals will be reopened by the next call.
+     */
+    @Override
+    public void close() {
+        for (final Journal journal : mJournals.values()) {
+            journal.force();
+        }
+        mJournals.clear();
+    }
+
+    private Journal getJournal(ADbAdapter.Table table, String destination, int priority) throws IOException {
+        final String laneName = getLaneName(table, destination, priority);
+        Journal journal = mJournals.get(laneName);
+        if (null == journal) {
+            final File directory = new File(mDirectory, laneName);
+            try {
+                journal = new Journal(directory);
+            } catch (final IOException e) {
+                // As with the database, a journal we can't read is better thrown away than left junked up
+                Log.e(LOGTAG, "Could not open journal " + laneName + ". Re-initializing journal.", e);
+                final File[] files = directory.listFiles();
+                if (null != files) {
+                    for (final File file : files) {
+                        file.delete();
+                    }
+                }
+                journal = new Journal(directory);
+            }
+            mJournals.put(laneName, journal);
+        }
+        return journal;
+    }
+
+    // Every journal of the destination in the table, lowest priority first
+    private List<Journal> getJournals(ADbAdapter.Table table, String destination) throws IOException {
+        final List<Lane> lanes = new ArrayList<Lane>();
+        for (final Lane lane : getLanes(table)) {
+            if (lane.mDestination.equals(destination)) {
+                lanes.add(lane);
+            }
+        }
+        Collections.sort(lanes, BY_PRIORITY);
+
+        final List<Journal> journals = new ArrayList<Journal>(lanes.size());
+        for (final Lane lane : lanes) {
+            journals.add(getJournal(table, lane.mDestination, lane.mPriority));
+        }
+        return journals;
+    }
+
+    // Mapped files are unmapped when their buffers are garbage collected, there is no way to unmap them sooner.
+    private void closeJournal(String laneName) {
+        mJournals.remove(laneName);
+    }
+
+    private static String getLaneName(ADbAdapter.Table table, String destination, int priority) {
+        String name = table.getName();
+        if (!destination.isEmpty()) {
+            try {
+                name += LANE_SEPARATOR +
+                        Base64.encodeToString(destination.getBytes("UTF-8"), Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException("UTF not supported on this platform?", e);
+            }
+        }
+        if (AloomaAPI.PRIORITY_NORMAL != priority) {
+            name += PRIORITY_SEPARATOR + priority;
+        }
+        return name;
+    }
+
+    // Every destination and priority with a journal for the table, open or not
+    private List<Lane> getLanes(ADbAdapter.Table table) {
+        final List<Lane> lanes = new ArrayList<Lane>();
+        final String prefix = table.getName() + LANE_SEPARATOR;
+        final String[] names = mDirectory.list();
+        if (null != names) {
+            for (final String name : names) {
+                String destinationName = name;
+                int priority = AloomaAPI.PRIORITY_NORMAL;
+                final int separator = name.lastIndexOf(PRIORITY_SEPARATOR);
+                try {
+                    if (separator >= 0) {
+                        destinationName = name.substring(0, separator);
+                        priority = Integer.parseInt(name.substring(separator + PRIORITY_SEPARATOR.length()));
+                    }
+                    if (destinationName.equals(table.getName())) {
+                        lanes.add(new Lane(ADbAdapter.DEFAULT_DESTINATION, priority));
+                    } else if (destinationName.startsWith(prefix)) {
+                        final byte[] destination = Base64.decode(destinationName.substring(prefix.length()), Base64.URL_SAFE);
+                        lanes.add(new Lane(new String(destination, "UTF-8"), priority));
+                    }
+                } catch (final IllegalArgumentException e) {
+                    // Includes NumberFormatException
+                    Log.w(LOGTAG, "Ignoring journal directory " + name, e);
+                } catch (final UnsupportedEncodingException e) {
+                    throw new RuntimeException("UTF not supported on this platform?", e);
+                }
+            }
+        }
+        return lanes;
+    }
+
+    private static class Lane {
+        public Lane(String destination, int priority) {
+            mDestination = destination;
+            mPriority = priority;
+        }
+
+        private final String mDestination;
+        private final int mPriority;
+    }
+
+    private static final Comparator<Lane> BY_PRIORITY = new Comparator<Lane>() {
+        @Override
+        public int compare(Lane a, Lane b) {
+            return a.mPriority < b.mPriority ? -1 : (a.mPriority == b.mPriority ? 0 : 1);
+        }
+    };
+
+    private class Journal {
+        public Journal(File directory) throws IOException {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Can't create journal directory " + directory);
+            }
+            mDirectory = directory;
+            mSegments = new ArrayList<Segment>();
+
+            final List<Long> bases = new ArrayList<Long>();
+            final File[] files = directory.listFiles();
+            if (null != files) {
+                for (final File file : files) {
+                    final String name = file.getName();
+                    if (name.endsWith(SEGMENT_SUFFIX)) {
+                        try {
+                            bases.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                        } catch (final NumberFormatException e) {
+                            file.delete();
+                        }
+                    }
+                }
+            }
+            Collections.sort(bases);
+            for (final Long base : bases) {
+                final File file = getSegmentFile(base);
+                final Segment segment = Segment.open(file, base);
+                if (segment.mEnd > 0) {
+                    mSegments.add(segment);
+                } else {
+                    // Nothing was ever written, and a new segment may need the name
+                    file.delete();
+                }
+            }
+
+            mCommittedBuffer = map(new File(directory, COMMITTED_FILE_NAME), COMMITTED_BYTES);
+            final long committed = mCommittedBuffer.getLong(0);
+            if (mCommittedBuffer.getInt(8) == (int) crc(committed, null)) {
+                mCommitted = committed;
+            } else {
+                // Sending records twice is better than losing them
+                mCommitted = 0;
+            }
+            if (!mSegments.isEmpty()) {
+                mCommitted = Math.max(mCommitted, mSegments.get(0).mBase);
+                mCommitted = Math.min(mCommitted, getLast().getEndPosition());
+            }
+
+            // Counted once here, and kept up to date as records are added and removed
+            for (final Segment segment : mSegments) {
+                for (int offset = 0; offset < segment.mEnd; offset += segment.getRecordBytes(offset)) {
+                    final int bytes = segment.getRecordBytes(offset);
+                    if (segment.mBase + offset >= mCommitted) {
+                        // Includes records quarantined just before a crash, which will be sent again
+                        mRows++;
+                        mBytes += bytes;
+                    } else if (segment.isQuarantined(offset)) {
+                        segment.addQuarantined(offset);
+                        mBytes += bytes;
+                    }
+                }
+            }
+        }
+
+        public Reader read(long from) {
+            return new Reader(mSegments, from);
+        }
+
+        public void append(long createdAt, byte[] record) throws IOException {
+            final int bytes = HEADER_BYTES + record.length;
+            Segment last = getLast();
+            if (null == last || !last.hasRoom(bytes)) {
+                final long base = null == last ? mCommitted : last.getEndPosition();
+                last = Segment.create(getSegmentFile(base), base, Math.max(mSegmentBytes, bytes + TERMINATOR_BYTES));
+                mSegments.add(last);
+            }
+
+            last.append(createdAt, record);
+            mRows++;
+            mBytes += bytes;
+        }
+
+        // Evicts the oldest unsent records until at least minRows records and minBytes bytes are gone,
+        // or there are none left. Returns the number of records evicted.
+        public int evict(int minRows, long minBytes) {
+            final long bytesBefore = mBytes;
+            int evicted = 0;
+            final Reader reader = read(mCommitted);
+            while (reader.hasRecord() && (evicted < minRows || bytesBefore - mBytes < minBytes)) {
+                commitThrough(reader.getPosition(), false);
+                reader.advance();
+                evicted++;
+            }
+            deleteSegments(Long.MIN_VALUE);
+            return evicted;
+        }
+
+        // Moves the committed position past the record at last, quarantining the records passed over if asked.
+        public void commitThrough(long last, boolean quarantine) {
+            final Reader reader = read(mCommitted);
+            while (reader.hasRecord() && reader.getPosition() <= last) {
+                final Segment segment = reader.getSegment();
+                final int offset = reader.getOffset();
+                mRows--;
+                if (quarantine) {
+                    segment.setQuarantined(offset);
+                    segment.addQuarantined(offset);
+                } else {
+                    mBytes -= segment.getRecordBytes(offset);
+                }
+                reader.advance();
+            }
+            // Once every segment is deleted the reader has no end to report, and the position stays put
+            setCommitted(Math.max(mCommitted, reader.getPosition()));
+        }
+
+        public void commitCreatedThrough(long time) {
+            final Reader reader = read(mCommitted);
+            long last = -1;
+            while (reader.hasRecord() && reader.getSegment().getCreatedAt(reader.getOffset()) <= time) {
+                last = reader.getPosition();
+                reader.advance();
+            }
+            if (last >= 0) {
+                commitThrough(last, false);
+            }
+        }
+
+        // Deletes segments that have been sent, and whose quarantined records (if any) were all created at or before time.
+        // The last segment is only deleted to reclaim quarantined records, since it usually has room for more. The next
+        // segment's position then follows on from the committed position, which is where the deleted segment ended.
+        public void deleteSegments(long time) {
+            for (int i = mSegments.size() - 1; i >= 0; i--) {
+                final Segment segment = mSegments.get(i);
+                final boolean last = i == mSegments.size() - 1;
+                if (segment.getEndPosition() <= mCommitted && segment.mNewestQuarantined <= time &&
+                        (!last || segment.mQuarantinedBytes > 0)) {
+                    mBytes -= segment.mQuarantinedBytes;
+                    mSegments.remove(i);
+                    if (!getSegmentFile(segment.mBase).delete()) {
+                        Log.w(LOGTAG, "Could not delete journal segment " + segment.mBase + " of " + mDirectory.getName());
+                    }
+                }
+            }
+        }
+
+        public void force() {
+            for (final Segment segment : mSegments) {
+                segment.mBuffer.force();
+            }
+            mCommittedBuffer.force();
+        }
+
+        private Segment getLast() {
+            return mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+        }
+
+        private void setCommitted(long committed) {
+            mCommitted = committed;
+            mCommittedBuffer.putLong(0, committed);
+            mCommittedBuffer.putInt(8, (int) crc(committed, null));
+        }
+
+        private File getSegmentFile(long base) {
+            return new File(mDirectory, String.format(Locale.US, "%020d", base) + SEGMENT_SUFFIX);
+        }
+
+        private final File mDirectory;
+        private final List<Segment> mSegments;
+        private final MappedByteBuffer mCommittedBuffer;
+        private long mCommitted;
+        private int mRows;
+        private long mBytes;
+    }
+
+    private static class Segment {
+        public static Segment open(File file, long base) throws IOException {
+            final Segment segment = new Segment(base, map(file, file.length()));
+            final int capacity = segment.mBuffer.capacity();
+            int offset = 0;
+            while (offset + HEADER_BYTES <= capacity) {
+                final int length = segment.mBuffer.getInt(offset);
+                if (length <= 0 || length > capacity - offset - HEADER_BYTES) {
+                    break;
+                }
+                final long createdAt = segment.mBuffer.getLong(offset + 8);
+                if (segment.mBuffer.getInt(offset + 4) != (int) crc(createdAt, segment.getRecord(offset))) {
+                    Log.w(LOGTAG, "Dropping a damaged record and everything after it in " + file);
+                    break;
+                }
+                offset += HEADER_BYTES + length;
+            }
+            segment.mEnd = offset;
+            return segment;
+        }
+
+        public static Segment create(File file, long base, int capacity) throws IOException {
+            // Write the whole file out before mapping it, so that running out of disk fails
+            // here rather than crashing the process when a write to the mapping can't be stored.
+            final RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                final byte[] zeros = new byte[Math.min(capacity, 64 * 1024)];
+                for (int written = 0; written < capacity; written += zeros.length) {
+                    out.write(zeros, 0, Math.min(zeros.length, capacity - written));
+                }
+            } catch (final IOException e) {
+                out.close();
+                file.delete();
+                throw e;
+            }
+            out.close();
+            return new Segment(base, map(file, capacity));
+        }
+
+        private Segment(long base, MappedByteBuffer buffer) {
+            mBase = base;
+            mBuffer = buffer;
+        }
+
+        public long getEndPosition() {
+            return mBase + mEnd;
+        }
+
+        public boolean hasRoom(int bytes) {
+            return mEnd + bytes + TERMINATOR_BYTES <= mBuffer.capacity();
+        }
+
+        public void append(long createdAt, byte[] record) {
+            final ByteBuffer out = mBuffer.duplicate();
+            out.position(mEnd + 4);
+            out.putInt((int) crc(createdAt, record));
+            out.putLong(createdAt);
+            out.put((byte) 0);
+            out.put((byte) 0);
+            out.put(record);
+            out.putInt(0);
+
+            // The record only exists once it has a length
+            mBuffer.putInt(mEnd, record.length);
+            mEnd += HEADER_BYTES + record.length;
+        }
+
+        public int getRecordBytes(int offset) {
+            return HEADER_BYTES + mBuffer.getInt(offset);
+        }
+
+        public long getCreatedAt(int offset) {
+            return mBuffer.getLong(offset + 8);
+        }
+
+        public int getRejections(int offset) {
+            return mBuffer.get(offset + 16);
+        }
+
+        public void setRejections(int offset, int rejections) {
+            mBuffer.put(offset + 16, (byte) rejections);
+        }
+
+        public boolean isQuarantined(int offset) {
+            return mBuffer.get(offset + 17) != 0;
+        }
+
+        public void setQuarantined(int offset) {
+            mBuffer.put(offset + 17, (byte) 1);
+        }
+
+        public void addQuarantined(int offset) {
+            mQuarantinedBytes += getRecordBytes(offset);
+            mNewestQuarantined = Math.max(mNewestQuarantined, getCreatedAt(offset));
+        }
+
+        public byte[] getRecord(int offset) {
+            final byte[] record = new byte[mBuffer.getInt(offset)];
+            final ByteBuffer in = mBuffer.duplicate();
+            in.position(offset + HEADER_BYTES);
+            in.get(record);
+            return record;
+        }
+
+        private final long mBase;
+        private final MappedByteBuffer mBuffer;
+        private int mEnd;
+        private long mQuarantinedBytes = 0;
+        private long mNewestQuarantined = Long.MIN_VALUE;
+    }
+
+    // Walks the records of a journal in order, starting from a position.
+    private static class Reader {
+        public Reader(List<Segment> segments, long from) {
+            mSegments = segments;
+            while (mIndex < segments.size() && segments.get(mIndex).getEndPosition() <= from) {
+                mIndex++;
+            }
+            if (mIndex < segments.size()) {
+                mOffset = (int) Math.max(0, from - segments.get(mIndex).mBase);
+            }
+        }
+
+        public boolean hasRecord() {
+            while (mIndex < mSegments.size() && mOffset >= mSegments.get(mIndex).mEnd) {
+                mIndex++;
+                mOffset = 0;
+            }
+            return mIndex < mSegments.size();
+        }
+
+        public Segment getSegment() {
+            return mSegments.get(mIndex);
+        }
+
+        public int getOffset() {
+            return mOffset;
+        }
+
+        // The position of the current record, or the end of the journal once there are no more
+        public long getPosition() {
+            if (hasRecord()) {
+                return getSegment().mBase + mOffset;
+            }
+            return mSegments.isEmpty() ? 0 : mSegments.get(mSegments.size() - 1).getEndPosition();
+        }
+
+        public void advance() {
+            mOffset += getSegment().getRecordBytes(mOffset);
+        }
+
+        private final List<Segment> mSegments;
+        private int mIndex = 0;
+        private int mOffset = 0;
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    private static long crc(long createdAt, byte[] record) {
+        final CRC32 crc = new CRC32();
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc.update((int) (createdAt >>> shift));
+        }
+        if (null != record) {
+            crc.update(record);
+        }
+        return crc.getValue();
+    }
+
+    private final File mDirectory;
+    private final int mMaxRows;
+    private final long mMaxBytes;
+    private final int mSegmentBytes;
+    private final Map<String, Journal> mJournals;
+    private final int[] mTurns;
+
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 1 + 1;
+    private static final int TERMINATOR_BYTES = 4;
+    private static final int COMMITTED_BYTES = 8 + 4;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMMITTED_FILE_NAME = "committed";
+    private static final String LANE_SEPARATOR = "-";
+    private static final String PRIORITY_SEPARATOR = "~"; // Not in the URL-safe Base64 alphabet
+
+    // Eviction frees this fraction of the limits beyond what the append needs
+    private static final int EVICTION_SLACK_DIVISOR = 100;
+}
@@ -1,11 +1,13 @@
 package com.github.aloomaio.androidsdk.aloomametrics;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -80,8 +82,25 @@ import android.util.Log;
                     readReferrerProperties();
                     sReferrerPrefsDirty = false;
                 }
+                invalidateEventPropertiesSnapshot();
             }
         };
+        mSnapshotInvalidations = new AtomicInteger(0);
+        mEventPropertiesSnapshot = null;
+    }
+
+    /**
+     * Returns the referrer properties overlaid with the super properties, which is what
+     * gets attached to every tracked event. The returned map is never modified, and is
+     * replaced rather than updated when super or referrer properties change, so this can
+     * be called without taking any locks once the snapshot has been built.
+     */
+    public Map<String, Object> getEventPropertiesSnapshot() {
+        final Map<String, Object> snapshot = mEventPropertiesSnapshot;
+        if (null != snapshot && !sReferrerPrefsDirty) {
+            return snapshot;
+        }
+        return buildEventPropertiesSnapshot();
     }
 
     public synchronized JSONObject getSuperProperties() {
@@ -101,11 +120,18 @@ import android.util.Log;
         return mReferrerPropertiesCache;
     }
 
-    public synchronized String getEventsDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
+    // Called for every tracked event, so once identities are loaded this doesn't take the lock.
+    public String getEventsDistinctId() {
+        if (mIdentitiesLoaded) {
+            return mEventsDistinctId;
+        }
+
+        synchronized (this) {
+            if (! mIdentitiesLoaded) {
+                readIdentities();
+            }
+            return mEventsDistinctId;
         }
-        return mEventsDistinctId;
     }
 
     public synchronized void setEventsDistinctId(String eventsDistinctId) {
@@ -260,6 +286,32 @@ import android.util.Log;
 
     //////////////////////////////////////////////////
 
+    private synchronized Map<String, Object> buildEventPropertiesSnapshot() {
+        // Loading super properties for the first time invalidates, so load before we start counting
+        final JSONObject superProperties = getSuperProperties();
+        final int invalidations = mSnapshotInvalidations.get();
+        final Map<String, Object> snapshot = new HashMap<String, Object>();
+
+        snapshot.putAll(getReferrerProperties());
+        for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
+            final String key = (String) iter.next();
+            snapshot.put(key, superProperties.opt(key));
+        }
+
+        final Map<String, Object> ret = Collections.unmodifiableMap(snapshot);
+        // The referrer listener can invalidate without holding our lock. If it did while
+        // we were building, what we built may already be out of date, so don't publish it.
+        if (invalidations == mSnapshotInvalidations.get()) {
+            mEventPropertiesSnapshot = ret;
+        }
+        return ret;
+    }
+
+    private void invalidateEventPropertiesSnapshot() {
+        mSnapshotInvalidations.incrementAndGet();
+        mEventPropertiesSnapshot = null;
+    }
+
     // All access should be synchronized on this
     private void readSuperProperties() {
         try {
@@ -280,6 +332,7 @@ import android.util.Log;
             if (null == mSuperPropertiesCache) {
                 mSuperPropertiesCache = new JSONObject();
             }
+            invalidateEventPropertiesSnapshot();
         }
     }
 
@@ -312,6 +365,8 @@ import android.util.Log;
             return;
         }
 
+        invalidateEventPropertiesSnapshot();
+
         final String props = mSuperPropertiesCache.toString();
         if (AConfig.DEBUG) {
             Log.v(LOGTAG, "Storing Super Properties " + props);
@@ -344,7 +399,8 @@ import android.util.Log;
             return;
         }
 
-        mEventsDistinctId = prefs.getString("events_distinct_id", null);
+        // Lock-free readers may see mEventsDistinctId at any point, so never set it to null on the way
+        final String storedEventsDistinctId = prefs.getString("events_distinct_id", null);
         mPeopleDistinctId = prefs.getString("people_distinct_id", null);
         mWaitingPeopleRecords = null;
 
@@ -357,9 +413,11 @@ import android.util.Log;
             }
         }
 
-        if (null == mEventsDistinctId) {
+        if (null == storedEventsDistinctId) {
             mEventsDistinctId = UUID.randomUUID().toString();
             writeIdentities();
+        } else {
+            mEventsDistinctId = storedEventsDistinctId;
         }
 
         mIdentitiesLoaded = true;
@@ -401,12 +459,14 @@ import android.util.Log;
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
     private JSONObject mSuperPropertiesCache;
     private Map<String, String> mReferrerPropertiesCache;
-    private boolean mIdentitiesLoaded;
-    private String mEventsDistinctId;
+    private volatile boolean mIdentitiesLoaded;
+    private volatile String mEventsDistinctId;
     private String mPeopleDistinctId;
     private JSONArray mWaitingPeopleRecords;
+    private final AtomicInteger mSnapshotInvalidations;
+    private volatile Map<String, Object> mEventPropertiesSnapshot;
 
-    private static boolean sReferrerPrefsDirty = true;
+    private static volatile boolean sReferrerPrefsDirty = true;
     private static final Object sReferrerPrefsLock = new Object();
     private static final String LOGTAG = "AloomaAPI.PersistentIdentity";
 }
@@ -0,0 +1,373 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compact binary form of the records stored by ADbAdapter.
+ *
+ * <p>Every value starts with a one byte tag. Integers are zig-zag varints, strings are a varint
+ * length followed by UTF-8, and objects and arrays are a varint count followed by their entries.
+ * Object keys are written as a varint: zero is followed by the key as a string, anything else
+ * is one more than the key's index in a fixed dictionary of the keys that appear in nearly
+ * every record, so the default properties cost a byte each instead of repeating their names.
+ *
+ * <p>Records are decoded straight to the JSON text that is sent to Alooma, without building a
+ * JSONObject. Decoding produces the same text as JSONObject.toString() on the original record.
+ */
+/* package */ class RecordCodec {
+    // Stored with each row, so that rows written as plain JSON text by
+    // older versions can still be read after an upgrade.
+    public static final int FORMAT_JSON = 0;
+    public static final int FORMAT_COMPACT = 1;
+
+    private RecordCodec() {
+        // No instances
+    }
+
+    public static byte[] encode(JSONObject record) throws JSONException {
+        final Output out = new Output();
+        writeValue(out, record);
+        return out.toByteArray();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the bytes aren't a record written by encode
+     */
+    public static String decode(byte[] bytes) {
+        final StringBuilder json = new StringBuilder(bytes.length * 2);
+        final Input in = new Input(bytes);
+        try {
+            readValue(in, json);
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Record is truncated", e);
+        }
+        if (in.mPosition != bytes.length) {
+            throw new IllegalArgumentException("Record has " + (bytes.length - in.mPosition) + " trailing bytes");
+        }
+        return json.toString();
+    }
+
+    /* package */ static void writeValue(Output out, Object value) throws JSONException {
+        if (null == value || JSONObject.NULL.equals(value)) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long ||
+                   value instanceof Short || value instanceof Byte) {
+            writeLong(out, ((Number) value).longValue());
+        } else if (value instanceof Double) {
+            writeDouble(out, (Double) value);
+        } else if (value instanceof Number) {
+            // Floats and big numbers are kept exactly as JSONObject would write them
+            out.write(TAG_NUMBER);
+            out.writeString(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject) {
+            final JSONObject object = (JSONObject) value;
+            writeObjectStart(out, object.length());
+            final Iterator<?> keys = object.keys();
+            while (keys.hasNext()) {
+                final String key = (String) keys.next();
+                writeKey(out, key);
+                writeValue(out, object.opt(key));
+            }
+        } else if (value instanceof JSONArray) {
+            final JSONArray array = (JSONArray) value;
+            out.write(TAG_ARRAY);
+            out.writeVarint(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                writeValue(out, array.opt(i));
+            }
+        } else {
+            out.write(TAG_STRING);
+            out.writeString(value.toString());
+        }
+    }
+
+    /* package */ static void writeKey(Output out, String key) {
+        final Integer index = KEY_INDEXES.get(key);
+        if (null == index) {
+            out.writeVarint(0);
+            out.writeString(key);
+        } else {
+            out.writeVarint(index + 1);
+        }
+    }
+
+    // Written as JSONObject would hold them, so they're read back the same way
+    /* package */ static void writeLong(Output out, long n) {
+        out.write(TAG_INTEGER);
+        out.writeVarint((n << 1) ^ (n >> 63));
+    }
+
+    /* package */ static void writeDouble(Output out, double d) {
+        out.write(TAG_DOUBLE);
+        out.writeLong(Double.doubleToLongBits(d));
+    }
+
+    /* package */ static void writeObjectStart(Output out, int entries) {
+        out.write(TAG_OBJECT);
+        out.writeVarint(entries);
+    }
+
+    private static void readValue(Input in, StringBuilder json) {
+        final int tag = in.read();
+        switch (tag) {
+            case TAG_NULL:
+                json.append("null");
+                break;
+            case TAG_FALSE:
+                json.append("false");
+                break;
+            case TAG_TRUE:
+                json.append("true");
+                break;
+            case TAG_INTEGER:
+                final long zigzag = in.readVarint();
+                json.append((zigzag >>> 1) ^ -(zigzag & 1));
+                break;
+            case TAG_DOUBLE:
+                json.append(numberToString(Double.longBitsToDouble(in.readLong())));
+                break;
+            case TAG_NUMBER:
+                json.append(in.readString());
+                break;
+            case TAG_STRING:
+                json.append(JSONObject.quote(in.readString()));
+                break;
+            case TAG_OBJECT:
+                final long entries = in.readVarint();
+                json.append('{');
+                for (long i = 0; i < entries; i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    final long key = in.readVarint();
+                    if (key == 0) {
+                        json.append(JSONObject.quote(in.readString()));
+                    } else if (key <= KEYS.size()) {
+                        json.append(JSONObject.quote(KEYS.get((int) key - 1)));
+                    } else {
+                        throw new IllegalArgumentException("Unknown key " + key);
+                    }
+                    json.append(':');
+                    readValue(in, json);
+                }
+                json.append('}');
+                break;
+            case TAG_ARRAY:
+                final long length = in.readVarint();
+                json.append('[');
+                for (long i = 0; i < length; i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    readValue(in, json);
+                }
+                json.append(']');
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tag " + tag);
+        }
+    }
+
+    private static String numberToString(double d) {
+        try {
+            return JSONObject.numberToString(d);
+        } catch (final JSONException e) {
+            // Records are built by JSONObject, which never holds NaN or infinities
+            throw new IllegalArgumentException("Record holds " + d, e);
+        }
+    }
+
+    /**
+     * A growable buffer that can be reset and reused.
+     */
+    /* package */ static class Output {
+        public void write(int b) {
+            ensureCapacity(1);
+            mBuffer[mLength++] = (byte) b;
+        }
+
+        public void writeVarint(long n) {
+            ensureCapacity(10);
+            while ((n & ~0x7FL) != 0) {
+                mBuffer[mLength++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            mBuffer[mLength++] = (byte) n;
+        }
+
+        public void writeLong(long n) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                mBuffer[mLength++] = (byte) (n >>> shift);
+            }
+        }
+
+        public void writeString(String s) {
+            final byte[] utf8;
+            try {
+                utf8 = s.getBytes("UTF-8");
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException("UTF not supported on this platform?", e);
+            }
+            writeVarint(utf8.length);
+            ensureCapacity(utf8.length);
+            System.arraycopy(utf8, 0, mBuffer, mLength, utf8.length);
+            mLength += utf8.length;
+        }
+
+        public void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, mBuffer, mLength, length);
+            mLength += length;
+        }
+
+        public void write(Output other) {
+            write(other.mBuffer, 0, other.mLength);
+        }
+
+        public int size() {
+            return mLength;
+        }
+
+        public void reset() {
+            mLength = 0;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer, mLength);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (mLength + extra > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mLength + extra));
+            }
+        }
+
+        private byte[] mBuffer = new byte[256];
+        private int mLength = 0;
+    }
+
+    private static class Input {
+        public Input(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        public int read() {
+            return mBytes[mPosition++] & 0xFF;
+        }
+
+        public long readVarint() {
+            long n = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = read();
+                n |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return n;
+                }
+            }
+            throw new IllegalArgumentException("Varint is too long");
+        }
+
+        public long readLong() {
+            long n = 0;
+            for (int i = 0; i < 8; i++) {
+                n = (n << 8) | read();
+            }
+            return n;
+        }
+
+        public String readString() {
+            final long length = readVarint();
+            if (length < 0 || length > mBytes.length - mPosition) {
+                throw new IllegalArgumentException("String runs past the end of the record");
+            }
+            try {
+                final String s = new String(mBytes, mPosition, (int) length, "UTF-8");
+                mPosition += length;
+                return s;
+            } catch (final UnsupportedEncodingException e) {
+                throw new RuntimeException("UTF not supported on this platform?", e);
+            }
+        }
+
+        private final byte[] mBytes;
+        private int mPosition = 0;
+    }
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_FALSE = 1;
+    private static final int TAG_TRUE = 2;
+    private static final int TAG_INTEGER = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_NUMBER = 5;
+    private static final int TAG_STRING = 6;
+    private static final int TAG_OBJECT = 7;
+    private static final int TAG_ARRAY = 8;
+
+    // Stored rows refer to these by position, so keys may be added to the end of
+    // this list but never removed or reordered.
+    private static final List<String> KEYS = Arrays.asList(
+        "event",
+        "properties",
+        "token",
+        "time",
+        "distinct_id",
+        "alooma_sdk",
+        "$lib_version",
+        "$os",
+        "$os_version",
+        "$manufacturer",
+        "$brand",
+        "$model",
+        "$google_play_services",
+        "$screen_dpi",
+        "$screen_height",
+        "$screen_width",
+        "$app_version",
+        "$has_nfc",
+        "$has_telephone",
+        "$bluetooth_version",
+        "$carrier",
+        "$wifi",
+        "$bluetooth_enabled",
+        "$duration",
+        "$token",
+        "$time",
+        "$distinct_id",
+        "$set",
+        "$set_once",
+        "$add",
+        "$append",
+        "$union",
+        "$unset",
+        "$delete",
+        "$transactions",
+        "$amount",
+        "$android_lib_version",
+        "$android_os",
+        "$android_os_version",
+        "$android_manufacturer",
+        "$android_brand",
+        "$android_model",
+        "$android_app_version",
+        "$android_app_version_code"
+    );
+
+    private static final Map<String, Integer> KEY_INDEXES = new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < KEYS.size(); i++) {
+            KEY_INDEXES.put(KEYS.get(i), i);
+        }
+    }
+}
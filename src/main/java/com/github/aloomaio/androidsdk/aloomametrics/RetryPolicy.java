@@ -0,0 +1,54 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import java.util.Random;
+
+/**
+ * Decides how long the worker waits after a failed flush, and when a batch the server keeps
+ * refusing should be set aside.
+ *
+ * <p>Delays grow exponentially with the number of failures in a row, and are drawn at random
+ * from the upper half of that ceiling ("equal jitter"), so that devices which all saw the same
+ * outage don't all come back at the same moment, and no retry comes due right away.
+ */
+/* package */ class RetryPolicy {
+    public RetryPolicy(long baseDelayMillis, long maxDelayMillis, int maxRejections) {
+        this(baseDelayMillis, maxDelayMillis, maxRejections, new Random());
+    }
+
+    /* package */ RetryPolicy(long baseDelayMillis, long maxDelayMillis, int maxRejections, Random random) {
+        mBaseDelayMillis = Math.max(1, baseDelayMillis);
+        mMaxDelayMillis = Math.max(mBaseDelayMillis, maxDelayMillis);
+        mMaxRejections = maxRejections;
+        mRandom = random;
+    }
+
+    /**
+     * @param failures the number of flushes in a row that have failed, including the latest one
+     * @param retryAfterMillis how long the server asked us to wait, or -1 if it didn't say
+     * @return the number of milliseconds to wait before the next flush
+     */
+    public long getRetryDelay(int failures, long retryAfterMillis) {
+        final int doublings = Math.min(Math.max(failures - 1, 0), MAX_DOUBLINGS);
+        final long ceiling = Math.min(mMaxDelayMillis, mBaseDelayMillis << doublings);
+        final long delay = ceiling / 2 + (long) (mRandom.nextDouble() * (ceiling - ceiling / 2));
+
+        // Never come back sooner than the server asked, but don't let it put us off forever
+        return Math.max(delay, Math.min(retryAfterMillis, mMaxDelayMillis));
+    }
+
+    /**
+     * @param rejections the number of times the server has refused a batch, including the latest one
+     * @return true if the batch should be quarantined rather than sent again
+     */
+    public boolean shouldQuarantine(int rejections) {
+        return rejections >= mMaxRejections;
+    }
+
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final int mMaxRejections;
+    private final Random mRandom;
+
+    // Enough to reach any sensible max delay from a 1ms base without overflowing
+    private static final int MAX_DOUBLINGS = 30;
+}
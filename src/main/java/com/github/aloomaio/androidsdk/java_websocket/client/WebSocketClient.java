@@ -351,6 +351,8 @@ public abstract class WebSocketClient extends WebSocketAdapter implements Runnab
 					ByteBuffer buffer = engine.outQueue.take();
 					ostream.write( buffer.array(), 0, buffer.limit() );
 					ostream.flush();
+					// The draft only takes back the frames it made, not the handshake
+					engine.getDraft().releaseBuffer( buffer );
 				}
 			} catch ( IOException e ) {
 				engine.eot();
@@ -124,6 +124,13 @@ public abstract class Draft {
 
 	public abstract ByteBuffer createBinaryFrame( Framedata framedata ); // TODO Allow to send data on the base of an Iterator or InputStream
 
+	/**
+	 * Gives back a buffer that has been written to the socket, so that it can be reused for later frames.<br>
+	 * The buffer must not be used by the caller anymore. Buffers that didn't come from createBinaryFrame, such as handshakes, are ignored.
+	 **/
+	public void releaseBuffer( ByteBuffer buffer ) {
+	}
+
 	public abstract List<Framedata> createFrames( ByteBuffer binary, boolean mask );
 
 	public abstract List<Framedata> createFrames( String text, boolean mask );
@@ -197,6 +204,10 @@ public abstract class Draft {
 
 	public abstract HandshakeBuilder postProcessHandshakeResponseAsServer( ClientHandshake request, ServerHandshakeBuilder response ) throws InvalidHandshakeException;
 
+	/**
+	 * The returned frames, and their payloads, may share memory with buffer and with the draft.<br>
+	 * They are only valid until the next call.
+	 **/
 	public abstract List<Framedata> translateFrame( ByteBuffer buffer ) throws InvalidDataException;
 
 	public abstract CloseHandshakeType getCloseHandshakeType();
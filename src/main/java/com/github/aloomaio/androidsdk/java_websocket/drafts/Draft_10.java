@@ -3,8 +3,8 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
@@ -26,6 +26,7 @@ import com.github.aloomaio.androidsdk.java_websocket.handshake.Handshakedata;
 import com.github.aloomaio.androidsdk.java_websocket.handshake.ServerHandshake;
 import com.github.aloomaio.androidsdk.java_websocket.handshake.ServerHandshakeBuilder;
 import com.github.aloomaio.androidsdk.java_websocket.util.Base64;
+import com.github.aloomaio.androidsdk.java_websocket.util.ByteBufferPool;
 import com.github.aloomaio.androidsdk.java_websocket.util.Charsetfunctions;
 
 public class Draft_10 extends Draft {
@@ -65,6 +66,22 @@ public class Draft_10 extends Draft {
 
 	private final Random reuseableRandom = new Random();
 
+	/** Buffers of frames that have been written, reused for the next ones. Sized for the fragments of big messages. */
+	private final ByteBufferPool bufferpool = new ByteBufferPool( 4, 128 * 1024 );
+
+	/** Buffers for frames split between reads. One is kept for the next split frame, once nothing points into it. */
+	private final ByteBufferPool incompletepool = new ByteBufferPool( 1, 128 * 1024 );
+	/** The buffer of the last incomplete frame, whose payload was returned by the last call to translateFrame */
+	private ByteBuffer completedframe;
+
+	/** Returned by translateFrame, and cleared on the next call */
+	private final List<Framedata> translatedframes = new ArrayList<Framedata>();
+
+	/** permessage-deflate, if the server accepted it */
+	private volatile PerMessageDeflate deflate = null;
+	/** Whether the message being received is compressed */
+	private boolean inflatingmessage = false;
+
 	@Override
 	public HandshakeState acceptHandshakeAsClient( ClientHandshake request, ServerHandshake response ) throws InvalidHandshakeException {
 		if( !request.hasFieldValue( "Sec-WebSocket-Key" ) || !response.hasFieldValue( "Sec-WebSocket-Accept" ) )
@@ -74,9 +91,19 @@ public class Draft_10 extends Draft {
 		String seckey_challenge = request.getFieldValue( "Sec-WebSocket-Key" );
 		seckey_challenge = generateFinalKey( seckey_challenge );
 
-		if( seckey_challenge.equals( seckey_answere ) )
-			return HandshakeState.MATCHED;
-		return HandshakeState.NOT_MATCHED;
+		if( !seckey_challenge.equals( seckey_answere ) )
+			return HandshakeState.NOT_MATCHED;
+
+		String extensions = response.getFieldValue( "Sec-WebSocket-Extensions" ).trim();
+		if( extensions.length() > 0 ) {
+			// Only what was offered can be accepted
+			if( !request.hasFieldValue( "Sec-WebSocket-Extensions" ) )
+				return HandshakeState.NOT_MATCHED;
+			deflate = PerMessageDeflate.fromResponse( extensions );
+			if( deflate == null )
+				return HandshakeState.NOT_MATCHED;
+		}
+		return HandshakeState.MATCHED;
 	}
 
 	@Override
@@ -88,46 +115,85 @@ public class Draft_10 extends Draft {
 		return HandshakeState.NOT_MATCHED;
 	}
 
+	/**
+	 * The returned buffer comes from a pool, and should be given back with releaseBuffer once it has been written.
+	 **/
 	@Override
 	public ByteBuffer createBinaryFrame( Framedata framedata ) {
-		ByteBuffer mes = framedata.getPayloadData();
+		PerMessageDeflate deflate = this.deflate;
+		Opcode opcode = framedata.getOpcode();
+		if( deflate != null && ( opcode == Opcode.TEXT || opcode == Opcode.BINARY || opcode == Opcode.CONTINUOUS ) ) {
+			synchronized ( deflate ) {
+				if( !deflate.isEnded() ) {
+					// Only the first frame of a message has RSV1 set
+					return createBinaryFrame( framedata, deflate.compress( framedata.getPayloadData(), framedata.isFin() ), opcode != Opcode.CONTINUOUS );
+				}
+			}
+		}
+		return createBinaryFrame( framedata, framedata.getPayloadData(), false );
+	}
+
+	private ByteBuffer createBinaryFrame( Framedata framedata, ByteBuffer mes, boolean compressed ) {
 		boolean mask = role == Role.CLIENT; // framedata.getTransfereMasked();
-		int sizebytes = mes.remaining() <= 125 ? 1 : mes.remaining() <= 65535 ? 2 : 8;
-		ByteBuffer buf = ByteBuffer.allocate( 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 ) + mes.remaining() );
+		int payloadlength = mes.remaining();
+		int sizebytes = payloadlength <= 125 ? 1 : payloadlength <= 65535 ? 2 : 8;
+		ByteBuffer buf = bufferpool.take( 1 + ( sizebytes > 1 ? sizebytes + 1 : sizebytes ) + ( mask ? 4 : 0 ) + payloadlength );
 		byte optcode = fromOpcode( framedata.getOpcode() );
 		byte one = (byte) ( framedata.isFin() ? -128 : 0 );
 		one |= optcode;
+		if( compressed )
+			one |= 64;
 		buf.put( one );
-		byte[] payloadlengthbytes = toByteArray( mes.remaining(), sizebytes );
-		assert ( payloadlengthbytes.length == sizebytes );
+		byte maskbit = mask ? (byte) -128 : 0;
 
 		if( sizebytes == 1 ) {
-			buf.put( (byte) ( (byte) payloadlengthbytes[ 0 ] | ( mask ? (byte) -128 : 0 ) ) );
+			buf.put( (byte) ( payloadlength | maskbit ) );
 		} else if( sizebytes == 2 ) {
-			buf.put( (byte) ( (byte) 126 | ( mask ? (byte) -128 : 0 ) ) );
-			buf.put( payloadlengthbytes );
-		} else if( sizebytes == 8 ) {
-			buf.put( (byte) ( (byte) 127 | ( mask ? (byte) -128 : 0 ) ) );
-			buf.put( payloadlengthbytes );
-		} else
-			throw new RuntimeException( "Size representation not supported/specified" );
+			buf.put( (byte) ( 126 | maskbit ) );
+			buf.putShort( (short) payloadlength );
+		} else {
+			buf.put( (byte) ( 127 | maskbit ) );
+			buf.putLong( payloadlength );
+		}
 
 		if( mask ) {
-			ByteBuffer maskkey = ByteBuffer.allocate( 4 );
-			maskkey.putInt( reuseableRandom.nextInt() );
-			buf.put( maskkey.array() );
-			for( int i = 0 ; mes.hasRemaining() ; i++ ) {
-				buf.put( (byte) ( mes.get() ^ maskkey.get( i % 4 ) ) );
-			}
+			int maskkey = reuseableRandom.nextInt();
+			buf.putInt( maskkey );
+			mask( mes, buf, payloadlength, maskkey );
 		} else
 			buf.put( mes );
-		// translateFrame ( buf.array () , buf.array ().length );
 		assert ( buf.remaining() == 0 ) : buf.remaining();
 		buf.flip();
 
 		return buf;
 	}
 
+	@Override
+	public void releaseBuffer( ByteBuffer buffer ) {
+		bufferpool.release( buffer );
+	}
+
+	/**
+	 * Copies length bytes from source to target, xor-ed with the big endian bytes of maskkey. source and target may be the same buffer, at the same position.
+	 **/
+	static void mask( ByteBuffer source, ByteBuffer target, int length, int maskkey ) {
+		if( source.hasArray() && target.hasArray() ) {
+			byte[] in = source.array();
+			int inoffset = source.arrayOffset() + source.position();
+			byte[] out = target.array();
+			int outoffset = target.arrayOffset() + target.position();
+			for( int i = 0 ; i < length ; i++ ) {
+				out[ outoffset + i ] = (byte) ( in[ inoffset + i ] ^ ( maskkey >>> ( 24 - 8 * ( i & 3 ) ) ) );
+			}
+			source.position( source.position() + length );
+			target.position( target.position() + length );
+		} else {
+			for( int i = 0 ; i < length ; i++ ) {
+				target.put( (byte) ( source.get() ^ ( maskkey >>> ( 24 - 8 * ( i & 3 ) ) ) ) );
+			}
+		}
+	}
+
 	@Override
 	public List<Framedata> createFrames( ByteBuffer binary, boolean mask ) {
 		FrameBuilder curframe = new FramedataImpl1();
@@ -194,6 +260,9 @@ public class Draft_10 extends Draft {
 		reuseableRandom.nextBytes( random );
 		request.put( "Sec-WebSocket-Key", Base64.encodeBytes( random ) );
 
+		if( PerMessageDeflate.isSupported() )
+			request.put( "Sec-WebSocket-Extensions", PerMessageDeflate.EXTENSION );
+
 		return request;
 	}
 
@@ -209,15 +278,6 @@ public class Draft_10 extends Draft {
 		return response;
 	}
 
-	private byte[] toByteArray( long val, int bytecount ) {
-		byte[] buffer = new byte[ bytecount ];
-		int highest = 8 * bytecount - 8;
-		for( int i = 0 ; i < bytecount ; i++ ) {
-			buffer[ i ] = (byte) ( val >>> ( highest - 8 * i ) );
-		}
-		return buffer;
-	}
-
 	private Opcode toOpcode( byte opcode ) throws InvalidFrameException {
 		switch ( opcode ) {
 			case 0:
@@ -239,11 +299,21 @@ public class Draft_10 extends Draft {
 		}
 	}
 
+	/**
+	 * Payloads of the frames are slices of buffer, or of the frame that was left incomplete by the previous call. They're only valid until the next call.
+	 **/
 	@Override
 	public List<Framedata> translateFrame( ByteBuffer buffer ) throws LimitExedeedException , InvalidDataException {
-		List<Framedata> frames = new LinkedList<Framedata>();
+		List<Framedata> frames = translatedframes;
+		frames.clear();
 		Framedata cur;
 
+		if( completedframe != null ) {
+			// the frames of the last call are no longer valid, so their buffer can be reused
+			incompletepool.release( completedframe );
+			completedframe = null;
+		}
+
 		if( incompleteframe != null ) {
 			// complete an incomplete frame
 			while ( true ) {
@@ -256,24 +326,25 @@ public class Draft_10 extends Draft {
 						// did not receive enough bytes to complete the frame
 						incompleteframe.put( buffer.array(), buffer.position(), available_next_byte_count );
 						buffer.position( buffer.position() + available_next_byte_count );
-						return Collections.emptyList();
+						return frames;
 					}
 					incompleteframe.put( buffer.array(), buffer.position(), expected_next_byte_count );
 					buffer.position( buffer.position() + expected_next_byte_count );
 
 					cur = translateSingleFrame( (ByteBuffer) incompleteframe.duplicate().position( 0 ) );
 					frames.add( cur );
+					completedframe = incompleteframe;
 					incompleteframe = null;
 					break; // go on with the normal frame receival
 				} catch ( IncompleteException e ) {
 					// extending as much as suggested
-					int oldsize = incompleteframe.limit();
-					ByteBuffer extendedframe = ByteBuffer.allocate( checkAlloc( e.getPreferedSize() ) );
+					ByteBuffer extendedframe = incompletepool.take( checkAlloc( e.getPreferedSize() ) );
 					assert ( extendedframe.limit() > incompleteframe.limit() );
 					incompleteframe.rewind();
 					extendedframe.put( incompleteframe );
+					incompletepool.release( incompleteframe );
 					incompleteframe = extendedframe;
-					
+
 					return translateFrame( buffer );
 				}
 			}
@@ -288,7 +359,7 @@ public class Draft_10 extends Draft {
 				// remember the incomplete data
 				buffer.reset();
 				int pref = e.getPreferedSize();
-				incompleteframe = ByteBuffer.allocate( checkAlloc( pref ) );
+				incompleteframe = incompletepool.take( checkAlloc( pref ) );
 				incompleteframe.put( buffer );
 				break;
 			}
@@ -304,13 +375,16 @@ public class Draft_10 extends Draft {
 		byte b1 = buffer.get( /*0*/);
 		boolean FIN = b1 >> 8 != 0;
 		byte rsv = (byte) ( ( b1 & ~(byte) 128 ) >> 4 );
-		if( rsv != 0 )
-			throw new InvalidFrameException( "bad rsv " + rsv );
 		byte b2 = buffer.get( /*1*/);
 		boolean MASK = ( b2 & -128 ) != 0;
 		int payloadlength = (byte) ( b2 & ~(byte) 128 );
 		Opcode optcode = toOpcode( (byte) ( b1 & 15 ) );
 
+		// RSV1 marks the first frame of a compressed message, once permessage-deflate has been negotiated
+		boolean compressed = rsv == 4 && deflate != null && ( optcode == Opcode.TEXT || optcode == Opcode.BINARY );
+		if( rsv != 0 && !compressed )
+			throw new InvalidFrameException( "bad rsv " + rsv );
+
 		if( !FIN ) {
 			if( optcode == Opcode.PING || optcode == Opcode.PONG || optcode == Opcode.CLOSING ) {
 				throw new InvalidFrameException( "control frames may no be fragmented" );
@@ -355,16 +429,29 @@ public class Draft_10 extends Draft {
 		if( maxpacketsize < realpacketsize )
 			throw new IncompleteException( realpacketsize );
 
-		ByteBuffer payload = ByteBuffer.allocate( checkAlloc( payloadlength ) );
+		checkAlloc( payloadlength );
 		if( MASK ) {
-			byte[] maskskey = new byte[ 4 ];
-			buffer.get( maskskey );
-			for( int i = 0 ; i < payloadlength ; i++ ) {
-				payload.put( (byte) ( (byte) buffer.get( /*payloadstart + i*/) ^ (byte) maskskey[ i % 4 ] ) );
+			// unmask in place, the frame has been read as soon as it is returned
+			int maskkey = buffer.getInt();
+			mask( buffer.duplicate(), buffer.duplicate(), payloadlength, maskkey );
+		}
+		ByteBuffer payload = buffer.slice();
+		payload.limit( payloadlength );
+		buffer.position( buffer.position() + payloadlength );
+
+		if( optcode == Opcode.TEXT || optcode == Opcode.BINARY )
+			inflatingmessage = compressed;
+		if( inflatingmessage && ( optcode == Opcode.TEXT || optcode == Opcode.BINARY || optcode == Opcode.CONTINUOUS ) ) {
+			PerMessageDeflate deflate = this.deflate;
+			if( deflate == null )
+				throw new InvalidFrameException( "compressed frame after the connection was reset" );
+			synchronized ( deflate ) {
+				if( deflate.isEnded() )
+					throw new InvalidFrameException( "compressed frame after the connection was reset" );
+				payload = deflate.decompress( payload, FIN );
 			}
-		} else {
-			payload.put( buffer.array(), buffer.position(), payload.limit() );
-			buffer.position( buffer.position() + payload.limit() );
+			if( FIN )
+				inflatingmessage = false;
 		}
 
 		FrameBuilder frame;
@@ -375,7 +462,6 @@ public class Draft_10 extends Draft {
 			frame.setFin( FIN );
 			frame.setOptcode( optcode );
 		}
-		payload.flip();
 		frame.setPayload( payload );
 		return frame;
 	}
@@ -383,6 +469,15 @@ public class Draft_10 extends Draft {
 	@Override
 	public void reset() {
 		incompleteframe = null;
+		completedframe = null;
+		inflatingmessage = false;
+		PerMessageDeflate deflate = this.deflate;
+		if( deflate != null ) {
+			synchronized ( deflate ) {
+				deflate.end();
+			}
+			this.deflate = null;
+		}
 	}
 
 	@Override
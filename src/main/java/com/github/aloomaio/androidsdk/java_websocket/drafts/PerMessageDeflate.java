@@ -0,0 +1,223 @@
+package com.github.aloomaio.androidsdk.java_websocket.drafts;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.github.aloomaio.androidsdk.java_websocket.exceptions.InvalidDataException;
+import com.github.aloomaio.androidsdk.java_websocket.exceptions.LimitExedeedException;
+import com.github.aloomaio.androidsdk.java_websocket.framing.CloseFrame;
+
+/**
+ * The permessage-deflate extension of RFC 7692, as negotiated by a client.<br>
+ * Messages are compressed with context takeover unless the server asks otherwise. The deflater and inflater hold native memory until end is called.<br>
+ * Not thread safe. Callers should hold the lock of the instance.
+ **/
+public class PerMessageDeflate {
+
+	/** The value of Sec-WebSocket-Extensions offered by the client */
+	public static final String EXTENSION = "permessage-deflate";
+
+	/** The most bytes a received message may inflate to, unless fromResponse is given a limit */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	/** Appended to every message by a sync flush, and left out on the wire */
+	private static final byte[] TAIL = { 0, 0, -1, -1 };
+
+	/**
+	 * Compressing a message without ending the deflate stream needs Deflater.SYNC_FLUSH, which Java 7 and Android API 19 introduced.<br>
+	 * Without it the extension is never offered.
+	 **/
+	private static final boolean SUPPORTED = canSyncFlush();
+
+	private final Deflater deflater = new Deflater( Deflater.DEFAULT_COMPRESSION, true );
+	private final Inflater inflater = new Inflater( true );
+	private final boolean clientnocontexttakeover;
+	private final boolean servernocontexttakeover;
+	private final int maxmessagesize;
+	private byte[] deflated = new byte[ 1024 ];
+	private byte[] inflated = new byte[ 1024 ];
+	/** Bytes inflated from the earlier frames of the message being received */
+	private int inflatedmessage = 0;
+	private boolean ended = false;
+
+	private PerMessageDeflate( boolean clientnocontexttakeover , boolean servernocontexttakeover , int maxmessagesize ) {
+		this.clientnocontexttakeover = clientnocontexttakeover;
+		this.servernocontexttakeover = servernocontexttakeover;
+		this.maxmessagesize = maxmessagesize;
+	}
+
+	public static boolean isSupported() {
+		return SUPPORTED;
+	}
+
+	/**
+	 * @return the extension accepted by the server in a Sec-WebSocket-Extensions response, or null if the response can't be accepted
+	 **/
+	public static PerMessageDeflate fromResponse( String extensions ) {
+		return fromResponse( extensions, DEFAULT_MAX_MESSAGE_SIZE );
+	}
+
+	/**
+	 * @param maxmessagesize
+	 *            the most bytes a received message may inflate to. decompress throws a LimitExedeedException past it.
+	 * @return the extension accepted by the server in a Sec-WebSocket-Extensions response, or null if the response can't be accepted
+	 **/
+	public static PerMessageDeflate fromResponse( String extensions , int maxmessagesize ) {
+		if( !SUPPORTED || extensions.indexOf( ',' ) != -1 )
+			return null;
+		String[] params = extensions.split( ";" );
+		if( !EXTENSION.equalsIgnoreCase( params[ 0 ].trim() ) )
+			return null;
+
+		boolean clientnocontexttakeover = false;
+		boolean servernocontexttakeover = false;
+		boolean servermaxwindowbits = false;
+		for( int i = 1 ; i < params.length ; i++ ) {
+			String param = params[ i ].trim();
+			String value = null;
+			int equals = param.indexOf( '=' );
+			if( equals != -1 ) {
+				value = param.substring( equals + 1 ).trim().replace( "\"", "" );
+				param = param.substring( 0, equals ).trim();
+			}
+
+			if( "client_no_context_takeover".equalsIgnoreCase( param ) && value == null && !clientnocontexttakeover ) {
+				clientnocontexttakeover = true;
+			} else if( "server_no_context_takeover".equalsIgnoreCase( param ) && value == null && !servernocontexttakeover ) {
+				servernocontexttakeover = true;
+			} else if( "server_max_window_bits".equalsIgnoreCase( param ) && value != null && !servermaxwindowbits ) {
+				// Inflater reads any window up to 15 bits
+				int bits;
+				try {
+					bits = Integer.parseInt( value );
+				} catch ( NumberFormatException e ) {
+					return null;
+				}
+				if( bits < 8 || bits > 15 )
+					return null;
+				servermaxwindowbits = true;
+			} else {
+				// client_max_window_bits wasn't offered, Deflater only writes 15 bit windows
+				return null;
+			}
+		}
+		return new PerMessageDeflate( clientnocontexttakeover, servernocontexttakeover, maxmessagesize );
+	}
+
+	public boolean isEnded() {
+		return ended;
+	}
+
+	/**
+	 * Compresses the payload of one frame of a message.
+	 * @return the compressed payload, only valid until the next call
+	 **/
+	public ByteBuffer compress( ByteBuffer payload, boolean fin ) {
+		setInput( deflater, payload );
+		int flush = fin ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH;
+		int length = 0;
+		while ( true ) {
+			if( length == deflated.length ) {
+				byte[] bigger = new byte[ deflated.length * 2 ];
+				System.arraycopy( deflated, 0, bigger, 0, length );
+				deflated = bigger;
+			}
+			length += deflater.deflate( deflated, length, deflated.length - length, flush );
+			if( length < deflated.length && deflater.needsInput() )
+				break;
+		}
+
+		if( fin ) {
+			length -= TAIL.length;
+			if( clientnocontexttakeover )
+				deflater.reset();
+		}
+		return ByteBuffer.wrap( deflated, 0, length );
+	}
+
+	/**
+	 * Decompresses the payload of one frame of a message.
+	 * @return the decompressed payload, in a buffer of its own
+	 * @throws LimitExedeedException
+	 *             if the message inflates to more than the most bytes allowed
+	 **/
+	public ByteBuffer decompress( ByteBuffer payload, boolean fin ) throws InvalidDataException {
+		int length;
+		try {
+			setInput( inflater, payload );
+			length = inflate( 0 );
+			if( fin ) {
+				inflater.setInput( TAIL );
+				length = inflate( length );
+				if( servernocontexttakeover || inflater.finished() )
+					inflater.reset();
+			}
+		} catch ( DataFormatException e ) {
+			throw new InvalidDataException( CloseFrame.PROTOCOL_ERROR, "Bad compressed message: " + e.getMessage() );
+		}
+		inflatedmessage = fin ? 0 : inflatedmessage + length;
+		byte[] message = new byte[ length ];
+		System.arraycopy( inflated, 0, message, 0, length );
+		return ByteBuffer.wrap( message );
+	}
+
+	// Inflates all of the input into inflated, after the first length bytes, and returns the new length.
+	// The buffer never grows past one byte more than the message may take, so a small frame can't inflate into a huge allocation.
+	private int inflate( int length ) throws DataFormatException , LimitExedeedException {
+		while ( true ) {
+			if( length == inflated.length ) {
+				int room = maxmessagesize - inflatedmessage + 1;
+				byte[] bigger = new byte[ (int) Math.min( inflated.length * 2L, room ) ];
+				System.arraycopy( inflated, 0, bigger, 0, length );
+				inflated = bigger;
+			}
+			int count = inflater.inflate( inflated, length, inflated.length - length );
+			length += count;
+			if( inflatedmessage + length > maxmessagesize )
+				throw new LimitExedeedException( "Compressed message inflates to more than " + maxmessagesize + " bytes" );
+			// Output can still be pending once all of the input is in, so stop only when nothing more comes out
+			if( count == 0 && ( inflater.needsInput() || inflater.finished() || inflater.needsDictionary() ) )
+				return length;
+		}
+	}
+
+	private static void setInput( Deflater deflater, ByteBuffer payload ) {
+		if( payload.hasArray() ) {
+			deflater.setInput( payload.array(), payload.arrayOffset() + payload.position(), payload.remaining() );
+		} else {
+			byte[] copy = new byte[ payload.remaining() ];
+			payload.duplicate().get( copy );
+			deflater.setInput( copy );
+		}
+	}
+
+	private static void setInput( Inflater inflater, ByteBuffer payload ) {
+		if( payload.hasArray() ) {
+			inflater.setInput( payload.array(), payload.arrayOffset() + payload.position(), payload.remaining() );
+		} else {
+			byte[] copy = new byte[ payload.remaining() ];
+			payload.duplicate().get( copy );
+			inflater.setInput( copy );
+		}
+	}
+
+	private static boolean canSyncFlush() {
+		try {
+			Deflater.class.getMethod( "deflate", byte[].class, int.class, int.class, int.class );
+			return true;
+		} catch ( NoSuchMethodException e ) {
+			return false;
+		}
+	}
+
+	/**
+	 * Releases the native memory of the deflater and inflater. Nothing can be compressed or decompressed after.
+	 **/
+	public void end() {
+		ended = true;
+		deflater.end();
+		inflater.end();
+	}
+}
@@ -0,0 +1,73 @@
+package com.github.aloomaio.androidsdk.java_websocket.util;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * A small pool of heap buffers for outgoing frames.<br>
+ * Buffers are taken by the threads that send frames, and given back by the thread that writes them to the socket, once written.
+ * Only buffers handed out by take are kept, so anything else written to the socket can be given back too.
+ **/
+public class ByteBufferPool {
+
+	private final ByteBuffer[] buffers;
+	/** Buffers handed out and not given back yet. By identity, since ByteBuffer.equals compares contents **/
+	private final Set<ByteBuffer> lent = Collections.newSetFromMap( new IdentityHashMap<ByteBuffer, Boolean>() );
+	private final int maxbuffersize;
+	private int count = 0;
+
+	/**
+	 * @param maxbuffers
+	 *            how many buffers are kept for reuse
+	 * @param maxbuffersize
+	 *            the capacity of the largest buffer worth keeping. Bigger buffers are left to the garbage collector.
+	 */
+	public ByteBufferPool( int maxbuffers , int maxbuffersize ) {
+		this.buffers = new ByteBuffer[ maxbuffers ];
+		this.maxbuffersize = maxbuffersize;
+	}
+
+	/**
+	 * Returns a buffer with position 0 and a limit of size, from the pool if one big enough is available.
+	 **/
+	public synchronized ByteBuffer take( int size ) {
+		for( int i = 0 ; i < count ; i++ ) {
+			ByteBuffer buf = buffers[ i ];
+			if( buf.capacity() >= size ) {
+				buffers[ i ] = buffers[ --count ];
+				buffers[ count ] = null;
+				buf.clear();
+				buf.limit( size );
+				lent.add( buf );
+				return buf;
+			}
+		}
+		ByteBuffer buf = ByteBuffer.allocate( size );
+		lent.add( buf );
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer back to the pool. It must not be used by the caller anymore.<br>
+	 * Buffers that weren't taken from this pool, or were already given back, are ignored.
+	 **/
+	public synchronized void release( ByteBuffer buf ) {
+		if( !lent.remove( buf ) || buf.capacity() > maxbuffersize ) {
+			return;
+		}
+		if( count < buffers.length ) {
+			buffers[ count++ ] = buf;
+			return;
+		}
+		// Keep the biggest buffers, they can stand in for the smaller ones
+		int smallest = 0;
+		for( int i = 1 ; i < count ; i++ ) {
+			if( buffers[ i ].capacity() < buffers[ smallest ].capacity() )
+				smallest = i;
+		}
+		if( buffers[ smallest ].capacity() < buf.capacity() )
+			buffers[ smallest ] = buf;
+	}
+}
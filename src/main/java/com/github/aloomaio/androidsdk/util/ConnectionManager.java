@@ -0,0 +1,125 @@
+package com.github.aloomaio.androidsdk.util;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.github.aloomaio.androidsdk.aloomametrics.AConfig;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opens and releases the connections used by HttpService, so that flushes, decide checks
+ * and image downloads to the same host share kept-alive sockets (and the TLS sessions
+ * established on them) instead of paying for a new handshake on every request.
+ *
+ * <p>HttpURLConnection keeps idle sockets in a process-wide pool, but only gets a socket
+ * back when the response has been read to the end and closed, and never gets it back
+ * after disconnect(). This class makes sure successful responses are always released that
+ * way, and only disconnects connections that failed.
+ *
+ * <p>The platform pool doesn't let us evict idle sockets ourselves. Instead, we remember
+ * when each route was last used. A route idle for longer than the server is likely to keep
+ * a socket open is treated as stale, and a failure on the first write to it is retried on
+ * a new connection.
+ */
+public class ConnectionManager {
+
+    public static ConnectionManager getInstance() {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                sInstance = new ConnectionManager(DEFAULT_IDLE_TIMEOUT_MILLIS);
+            }
+        }
+
+        return sInstance;
+    }
+
+    /* package */ ConnectionManager(long idleTimeoutMillis) {
+        mIdleTimeoutMillis = idleTimeoutMillis;
+        mLastReleased = new HashMap<String, Long>();
+    }
+
+    public HttpURLConnection openConnection(URL url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        connection.setRequestProperty("Connection", "keep-alive");
+        return connection;
+    }
+
+    /**
+     * @return true if the pooled socket for this url, if there is one, has probably
+     *     been closed by the other end while it sat idle.
+     */
+    public boolean isProbablyStale(URL url) {
+        final String route = routeOf(url);
+        synchronized (mLastReleased) {
+            final Long lastReleased = mLastReleased.get(route);
+            return null != lastReleased && SystemClock.elapsedRealtime() - lastReleased > mIdleTimeoutMillis;
+        }
+    }
+
+    /**
+     * Finishes with a connection that got a complete response, returning its socket to the pool.
+     *
+     * @param connection the connection to release
+     * @param responseStream the response (or error) stream of the connection. May be null.
+     *     Whatever is left in the stream is read and discarded, then the stream is closed.
+     */
+    public void release(HttpURLConnection connection, InputStream responseStream) {
+        if (null != responseStream) {
+            try {
+                final byte[] skip = new byte[1024];
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES && (read = responseStream.read(skip)) != -1) {
+                    drained += read;
+                }
+            } catch (final IOException e) {
+                discard(connection);
+                return;
+            } finally {
+                try { responseStream.close(); } catch (final IOException e) { ; }
+            }
+        }
+
+        synchronized (mLastReleased) {
+            mLastReleased.put(routeOf(connection.getURL()), SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Finishes with a connection that failed. Its socket is closed rather than pooled.
+     */
+    public void discard(HttpURLConnection connection) {
+        if (AConfig.DEBUG) {
+            Log.v(LOGTAG, "Discarding connection to " + connection.getURL().getHost());
+        }
+        connection.disconnect();
+    }
+
+    private static String routeOf(URL url) {
+        final int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    private final long mIdleTimeoutMillis;
+    private final Map<String, Long> mLastReleased;
+
+    // Shorter than the idle timeouts of most load balancers and carrier NATs
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 10000;
+
+    // Draining a long unread response costs more than a new connection would
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static ConnectionManager sInstance;
+    private static final Object sInstanceLock = new Object();
+    private static final String LOGTAG = "AloomaAPI.ConnectionManager";
+}
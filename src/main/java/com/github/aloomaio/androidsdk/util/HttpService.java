@@ -3,28 +3,47 @@ package com.github.aloomaio.androidsdk.util;
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
+import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
 import com.github.aloomaio.androidsdk.aloomametrics.AConfig;
 
 import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketException;
 import java.net.URL;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 public class HttpService implements RemoteService {
 
+    public HttpService() {
+        this(false);
+    }
+
+    /**
+     * @param gzipRequests if true, request bodies are compressed with Content-Encoding: gzip
+     *     unless the host has previously rejected compressed bodies.
+     */
+    public HttpService(boolean gzipRequests) {
+        mGzipRequests = gzipRequests;
+        mConnections = ConnectionManager.getInstance();
+    }
+
     public boolean isOnline(Context context) {
         boolean isOnline;
         try {
@@ -52,7 +71,7 @@ public class HttpService implements RemoteService {
         byte[] response = null;
         for (String url : urls) {
             try {
-                response = performRequest(url, null, null, ContentType.URL_FORM_ENCODED, null);
+                response = performRequest(url, null, null, ContentType.URL_FORM_ENCODED, (RequestBody) null);
                 break;
             } catch (final MalformedURLException e) {
                 Log.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
@@ -75,12 +94,35 @@ public class HttpService implements RemoteService {
             Map<String, String> headers,
             RemoteService.ContentType contentType,
             String data
+    ) throws IOException {
+        final RequestBody body = (data == null) ? null : new BytesBody(data.getBytes("UTF-8"));
+        return performRequest(endpointUrl, params, headers, contentType, body);
+    }
+
+    public byte[] performRequest(
+            String endpointUrl,
+            List<NameValuePair> params,
+            Map<String, String> headers,
+            RemoteService.ContentType contentType,
+            RequestBody body
     ) throws IOException {
         if (AConfig.DEBUG) {
             Log.v(LOGTAG, "Attempting request to " + endpointUrl);
         }
         byte[] response = null;
 
+        final URL url = new URL(endpointUrl);
+        if (contentType != ContentType.URL_FORM_ENCODED && contentType != ContentType.JSON) {
+            body = null;
+        }
+        final byte[] formPrefix = (contentType == ContentType.URL_FORM_ENCODED && body != null) ?
+                encodeFormPrefix(params) : null;
+        boolean gzip = mGzipRequests && body != null && !hostRejectsGzip(url.getHost());
+
+        // Requests on a route that has sat idle may be handed a pooled socket the server has
+        // already closed. One failure writing to such a socket is expected, and gets a free retry.
+        boolean staleRetryAvailable = mConnections.isProbablyStale(url);
+
         // the while(retries) loop is a workaround for a bug in some Android HttpURLConnection
         // libraries- The underlying library will attempt to reuse stale connections,
         // meaning the second (or every other) attempt to connect fails with an EOFException.
@@ -94,10 +136,7 @@ public class HttpService implements RemoteService {
             HttpURLConnection connection = null;
 
             try {
-                final URL url = new URL(endpointUrl);
-                connection = (HttpURLConnection) url.openConnection();
-                connection.setConnectTimeout(2000);
-                connection.setReadTimeout(10000);
+                connection = mConnections.openConnection(url);
                 connection.setRequestMethod("POST");
                 connection.setDoOutput(true);
 
@@ -107,46 +146,76 @@ public class HttpService implements RemoteService {
                     }
                 }
 
-                if (contentType == ContentType.URL_FORM_ENCODED && data != null){
-                    final String encodedData = Base64Coder.encodeString(data);
-                    params.add(new BasicNameValuePair("data", encodedData));
-
-                    final UrlEncodedFormEntity form = new UrlEncodedFormEntity(params, "UTF-8");
-                    connection.setFixedLengthStreamingMode((int)form.getContentLength());
-                    out = connection.getOutputStream();
-                    bout = new BufferedOutputStream(out);
-                    form.writeTo(bout);
-
-                    bout.close();
-                    bout = null;
-                    out.close();
-                    out = null;
-                } else if (contentType == ContentType.JSON && data != null){
+                if (contentType == ContentType.JSON && body != null) {
                     connection.setRequestProperty("Content-Type", "application/json; utf-8");
                     connection.setRequestProperty("Accept", "application/json");
+                }
 
-                    byte[] input = data.getBytes("UTF-8");
-                    connection.setFixedLengthStreamingMode(input.length);
+                if (body != null) {
+                    if (gzip) {
+                        // The compressed size isn't known until the body has been written
+                        connection.setRequestProperty("Content-Encoding", "gzip");
+                        connection.setChunkedStreamingMode(0);
+                    } else {
+                        connection.setFixedLengthStreamingMode((int) encodedLength(body, formPrefix));
+                    }
 
                     out = connection.getOutputStream();
                     bout = new BufferedOutputStream(out);
-                    bout.write(input);
+                    if (gzip) {
+                        final GZIPOutputStream gzipOut = new GZIPOutputStream(bout);
+                        writeEncodedBody(gzipOut, body, formPrefix);
+                        gzipOut.finish();
+                    } else {
+                        writeEncodedBody(bout, body, formPrefix);
+                    }
 
                     bout.close();
                     bout = null;
                     out.close();
                     out = null;
                 }
+
+                final int status = connection.getResponseCode();
+                if (status >= HTTP_BAD_REQUEST) {
+                    final String retryAfter = connection.getHeaderField("Retry-After");
+
+                    // The connection itself is fine, so read the error out and keep the socket
+                    mConnections.release(connection, connection.getErrorStream());
+                    connection = null;
+
+                    if (gzip && status == HTTP_UNSUPPORTED_MEDIA_TYPE) {
+                        if (AConfig.DEBUG) {
+                            Log.v(LOGTAG, url.getHost() + " does not accept gzip request bodies, sending uncompressed.");
+                        }
+                        rememberGzipRejected(url.getHost());
+                        gzip = false;
+                        continue;
+                    }
+
+                    throw new HttpErrorException("Request to " + endpointUrl + " failed with status " + status,
+                            status, retryAfter);
+                }
+
                 in = connection.getInputStream();
                 response = slurp(in);
-                in.close();
+                mConnections.release(connection, in);
                 in = null;
+                connection = null;
                 succeeded = true;
             } catch (final EOFException e) {
                 if (AConfig.DEBUG) {
                     Log.d(LOGTAG, "Failure to connect, likely caused by a known issue with Android lib. Retrying.");
                 }
                 retries = retries + 1;
+            } catch (final SocketException e) {
+                if (!staleRetryAvailable) {
+                    throw e;
+                }
+                if (AConfig.DEBUG) {
+                    Log.d(LOGTAG, "Idle connection to " + url.getHost() + " was closed, retrying on a new connection.");
+                }
+                staleRetryAvailable = false;
             } finally {
                 if (null != bout)
                     try { bout.close(); } catch (final IOException e) { ; }
@@ -155,7 +224,7 @@ public class HttpService implements RemoteService {
                 if (null != in)
                     try { in.close(); } catch (final IOException e) { ; }
                 if (null != connection)
-                    connection.disconnect();
+                    mConnections.discard(connection);
             }
         }
         if (AConfig.DEBUG) {
@@ -166,6 +235,130 @@ public class HttpService implements RemoteService {
         return response;
     }
 
+    // Form encoded bodies look like "verbose=1&data=<url encoded base64 of the body>". Everything
+    // before the data value is encoded up front, the value itself is encoded as it is written.
+    private static byte[] encodeFormPrefix(List<NameValuePair> params) throws IOException {
+        final StringBuilder prefix = new StringBuilder();
+        if (params != null && !params.isEmpty()) {
+            prefix.append(URLEncodedUtils.format(params, "UTF-8")).append('&');
+        }
+        prefix.append("data=");
+        return prefix.toString().getBytes("UTF-8");
+    }
+
+    private static void writeEncodedBody(OutputStream out, RequestBody body, byte[] formPrefix)
+        throws IOException {
+        if (null == formPrefix) {
+            body.writeTo(out);
+        } else {
+            out.write(formPrefix);
+            final Base64OutputStream base64Out =
+                    new Base64OutputStream(new FormValueOutputStream(out), Base64.NO_WRAP);
+            body.writeTo(base64Out);
+            base64Out.close(); // Writes the final quantum, does not close out
+        }
+    }
+
+    private static long encodedLength(RequestBody body, byte[] formPrefix) throws IOException {
+        if (null == formPrefix && body.getContentLength() >= 0) {
+            return body.getContentLength();
+        }
+
+        // Encoding twice is cheaper than holding an encoded copy of the whole batch in memory
+        final CountingOutputStream counter = new CountingOutputStream();
+        writeEncodedBody(counter, body, formPrefix);
+        return counter.getCount();
+    }
+
+    private static boolean hostRejectsGzip(String host) {
+        synchronized (sGzipRejectingHosts) {
+            return sGzipRejectingHosts.contains(host);
+        }
+    }
+
+    private static void rememberGzipRejected(String host) {
+        synchronized (sGzipRejectingHosts) {
+            sGzipRejectingHosts.add(host);
+        }
+    }
+
+    private static class BytesBody implements RequestBody {
+        public BytesBody(byte[] bytes) {
+            mBytes = bytes;
+        }
+
+        @Override
+        public long getContentLength() {
+            return mBytes.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(mBytes);
+        }
+
+        private final byte[] mBytes;
+    }
+
+    // application/x-www-form-urlencoded escaping for Base64 output, which only needs '+', '/' and '=' escaped.
+    // Closing this stream doesn't close the underlying stream.
+    private static class FormValueOutputStream extends FilterOutputStream {
+        public FormValueOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            switch (b) {
+                case '+':
+                    out.write(ESCAPED_PLUS);
+                    break;
+                case '/':
+                    out.write(ESCAPED_SLASH);
+                    break;
+                case '=':
+                    out.write(ESCAPED_EQUALS);
+                    break;
+                default:
+                    out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        private static final byte[] ESCAPED_PLUS = { '%', '2', 'B' };
+        private static final byte[] ESCAPED_SLASH = { '%', '2', 'F' };
+        private static final byte[] ESCAPED_EQUALS = { '%', '3', 'D' };
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        private long mCount = 0;
+    }
+
     // Does not close input stream
     private byte[] slurp(final InputStream inputStream)
         throws IOException {
@@ -182,5 +375,13 @@ public class HttpService implements RemoteService {
         return buffer.toByteArray();
     }
 
+    private final boolean mGzipRequests;
+    private final ConnectionManager mConnections;
+
+    // Hosts that answered a gzip body with 415 Unsupported Media Type, for the life of the process
+    private static final Set<String> sGzipRejectingHosts = new HashSet<String>();
+
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_UNSUPPORTED_MEDIA_TYPE = 415;
     private static final String LOGTAG = "AloomaAPI.ServerMessage";
 }
@@ -6,8 +6,13 @@ import android.content.Context;
 import org.apache.http.NameValuePair;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TimeZone;
 
 
 public interface RemoteService {
@@ -16,6 +21,79 @@ public interface RemoteService {
     byte[] performRequest(String endpointUrl, List<NameValuePair> params,Map<String,
             String> headers, ContentType contentType, String data) throws IOException;
 
+    byte[] performRequest(String endpointUrl, List<NameValuePair> params, Map<String,
+            String> headers, ContentType contentType, RequestBody body) throws IOException;
+
+    /**
+     * Raw (unencoded) request data that is written directly to the connection.
+     * Implementations must be able to write the same bytes more than once, since
+     * requests may be retried.
+     */
+    interface RequestBody {
+        /**
+         * @return the number of bytes writeTo will produce, or -1 if it isn't known ahead of time
+         */
+        long getContentLength();
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Thrown by performRequest when the server answers with an error status. Unlike other
+     * IOExceptions, this means the request reached the server.
+     */
+    class HttpErrorException extends IOException {
+        public HttpErrorException(String message, int status, String retryAfter) {
+            super(message);
+            mStatus = status;
+            mRetryAfterMillis = parseRetryAfter(retryAfter);
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return how long the server asked us to wait before trying again, from its
+         *     Retry-After header, or -1 if it didn't say.
+         */
+        public long getRetryAfterMillis() {
+            return mRetryAfterMillis;
+        }
+
+        /**
+         * @return true if the server refused this particular request body, so that sending
+         *     the same body again will fail the same way.
+         */
+        public boolean isRequestRejected() {
+            return mStatus == 400 || mStatus == 413 || mStatus == 422;
+        }
+
+        // Retry-After is either a number of seconds or an HTTP date
+        private static long parseRetryAfter(String retryAfter) {
+            if (null == retryAfter) {
+                return -1;
+            }
+
+            try {
+                return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (final NumberFormatException e) {
+                ; // Try it as a date
+            }
+
+            try {
+                final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                format.setTimeZone(TimeZone.getTimeZone("GMT"));
+                return Math.max(0, format.parse(retryAfter.trim()).getTime() - System.currentTimeMillis());
+            } catch (final ParseException e) {
+                return -1;
+            }
+        }
+
+        private final int mStatus;
+        private final long mRetryAfterMillis;
+    }
+
     enum ContentType {
         JSON,
         URL_FORM_ENCODED
@@ -1,5 +1,6 @@
 package com.github.aloomaio.androidsdk.viewcrawler;
 
+import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Base64;
 import android.util.Log;
@@ -141,7 +142,18 @@ import java.util.List;
                 }
             }
 
-            return new ViewSnapshot(properties, mResourceIds);
+            final Bitmap.CompressFormat format = readCompressFormat(config.optString("screenshot_format", "png"));
+            final int quality = config.optInt("screenshot_quality", 100);
+            if (quality < 0 || quality > 100) {
+                throw new BadInstructionsException("Screenshot quality must be between 0 and 100, not " + quality);
+            }
+            final int tileSize = config.optInt("screenshot_tile_size", 0);
+            if (tileSize < 0 || tileSize > ViewSnapshot.MAX_TILE_SIZE) {
+                throw new BadInstructionsException("Screenshot tile size must be between 0 and " +
+                        ViewSnapshot.MAX_TILE_SIZE + ", not " + tileSize);
+            }
+
+            return new ViewSnapshot(properties, mResourceIds, format, quality, tileSize);
         } catch (JSONException e) {
             throw new BadInstructionsException("Can't read snapshot configuration", e);
         } catch (final ClassNotFoundException e) {
@@ -250,6 +262,18 @@ import java.util.List;
         }
     }
 
+    private Bitmap.CompressFormat readCompressFormat(String name) throws BadInstructionsException {
+        if ("png".equals(name)) {
+            return Bitmap.CompressFormat.PNG;
+        } else if ("jpeg".equals(name)) {
+            return Bitmap.CompressFormat.JPEG;
+        } else if ("webp".equals(name)) {
+            return Bitmap.CompressFormat.WEBP;
+        } else {
+            throw new BadInstructionsException("Don't know how to write screenshots as " + name);
+        }
+    }
+
     private Object convertArgument(Object jsonArgument, String type) throws BadInstructionsException {
         // Object is a Boolean, JSONArray, JSONObject, Number, String, or JSONObject.NULL
         try {
@@ -58,8 +58,27 @@ import java.nio.ByteBuffer;
         return !mClient.isClosed() && !mClient.isClosing() && !mClient.isFlushAndClose();
     }
 
+    /**
+     * Returns a stream that writes a single text message. The message is sent in fragments of
+     * FRAGMENT_SIZE bytes as it is written, and is finished when the stream is closed.
+     */
     public BufferedOutputStream getBufferedOutputStream() {
-        return new BufferedOutputStream(new WebSocketOutputStream());
+        return new MessageOutputStream(new WebSocketOutputStream());
+    }
+
+    /**
+     * Sends a binary message, in a single frame. Must not be called while the stream of
+     * a text message is open.
+     */
+    public void sendBinary(byte[] message)
+        throws EditorConnectionException {
+        try {
+            mClient.send(message);
+        } catch (final WebsocketNotConnectedException e) {
+            throw new EditorConnectionException(e);
+        } catch (final NotSendableException e) {
+            throw new EditorConnectionException(e);
+        }
     }
 
     private class EditorClient extends WebSocketClient {
@@ -115,6 +134,30 @@ import java.nio.ByteBuffer;
         }
     }
 
+    /* Only sends a fragment when the buffer is full, or on close. Flushing every time a writer
+     * is flushed would send a storm of tiny fragments.
+     */
+    private static class MessageOutputStream extends BufferedOutputStream {
+        public MessageOutputStream(OutputStream out) {
+            super(out, FRAGMENT_SIZE);
+        }
+
+        @Override
+        public void flush() {
+            // Nothing to do until the message is finished
+        }
+
+        @Override
+        public void close()
+            throws IOException {
+            try {
+                super.flush();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
     /* WILL SEND GARBAGE if multiple responses end up interleaved.
      * Only one response should be in progress at a time.
      */
@@ -165,6 +208,7 @@ import java.nio.ByteBuffer;
     private final URI mURI;
 
     private static final int CONNECT_TIMEOUT = 5000;
+    private static final int FRAGMENT_SIZE = 64 * 1024;
     private static final ByteBuffer EMPTY_BYTE_BUFFER = ByteBuffer.allocate(0);
 
     private static final String LOGTAG = "AloomaAPI.EditorConnection";
@@ -428,11 +428,17 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug {
          */
         private void sendSnapshot(JSONObject message) {
             final long startSnapshot = System.currentTimeMillis();
+            final boolean delta;
+            final boolean binary;
             try {
                 final JSONObject payload = message.getJSONObject("payload");
                 if (payload.has("config")) {
                     mSnapshot = mProtocol.readSnapshotConfig(payload);
                 }
+                // Editors that can merge snapshots only ask for what has changed since the last one
+                delta = payload.optBoolean("delta", false);
+                // ... and can take images as binary messages, rather than as base64 strings in the JSON
+                binary = payload.optBoolean("binary_images", false);
             } catch (final JSONException e) {
                 Log.e(LOGTAG, "Payload with snapshot config required with snapshot request", e);
                 sendError("Payload with snapshot config required with snapshot request");
@@ -452,6 +458,8 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug {
 
             final OutputStream out = mEditorConnection.getBufferedOutputStream();
             final OutputStreamWriter writer = new OutputStreamWriter(out);
+            final List<byte[]> images = binary ? new ArrayList<byte[]>() : null;
+            boolean written = false;
 
             try {
                 writer.write("{");
@@ -460,7 +468,13 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug {
                 {
                     writer.write("\"activities\":");
                     writer.flush();
-                    mSnapshot.snapshots(mEditState, out);
+                    mSnapshot.snapshots(mEditState, out, delta, images);
+                }
+
+                if (null != images) {
+                    // The number of binary messages that follow this one
+                    writer.write(",\"images\": ");
+                    writer.write(Integer.toString(images.size()));
                 }
 
                 final long snapshotTime = System.currentTimeMillis() - startSnapshot;
@@ -469,6 +483,7 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug {
 
                 writer.write("}"); // } payload
                 writer.write("}"); // } whole message
+                written = true;
             } catch (final IOException e) {
                 Log.e(LOGTAG, "Can't write snapshot request to server", e);
             } finally {
@@ -476,8 +491,25 @@ public class ViewCrawler implements UpdatesFromMixpanel, TrackingDebug {
                     writer.close();
                 } catch (final IOException e) {
                     Log.e(LOGTAG, "Can't close writer.", e);
+                    written = false;
+                }
+            }
+
+            if (written && null != images) {
+                try {
+                    for (final byte[] image : images) {
+                        mEditorConnection.sendBinary(image);
+                    }
+                } catch (final IOException e) {
+                    Log.e(LOGTAG, "Can't send snapshot images to server", e);
+                    written = false;
                 }
             }
+
+            if (!written) {
+                // The snapshot was recorded as sent, so the next delta would leave out what the editor never got
+                mSnapshot.resetDeltaState();
+            }
         }
 
         /**
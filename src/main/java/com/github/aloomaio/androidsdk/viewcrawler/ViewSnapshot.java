@@ -11,27 +11,33 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Base64;
-import android.util.Base64OutputStream;
 import android.util.DisplayMetrics;
 import android.util.JsonWriter;
 import android.util.Log;
 import android.util.LruCache;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 
 import com.github.aloomaio.androidsdk.aloomametrics.AConfig;
 import com.github.aloomaio.androidsdk.aloomametrics.ResourceIds;
 
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
@@ -42,11 +48,25 @@ import java.util.concurrent.TimeoutException;
 /* package */ class ViewSnapshot {
 
     public ViewSnapshot(List<PropertyDescription> properties, ResourceIds resourceIds) {
+        this(properties, resourceIds, Bitmap.CompressFormat.PNG, 100, 0);
+    }
+
+    /**
+     * @param tileSize if greater than zero, delta snapshots send screenshots as square tiles of this
+     *     size, leaving out the tiles that haven't changed since the last one. At most MAX_TILE_SIZE.
+     */
+    public ViewSnapshot(List<PropertyDescription> properties, ResourceIds resourceIds,
+                        Bitmap.CompressFormat screenshotFormat, int screenshotQuality, int tileSize) {
         mProperties = properties;
         mResourceIds = resourceIds;
+        mScreenshotFormat = screenshotFormat;
+        mScreenshotQuality = screenshotQuality;
+        mTileSize = tileSize;
         mMainThreadHandler = new Handler(Looper.getMainLooper());
         mRootViewFinder = new RootViewFinder();
         mClassnameCache = new ClassNameCache(MAX_CLASS_NAME_CACHE_SIZE);
+        mRootStates = new WeakHashMap<View, RootState>();
+        mNodeBuffer = new StringWriter();
     }
 
     /**
@@ -55,7 +75,31 @@ import java.util.concurrent.TimeoutException;
      * snapshotted. Given stream out will be written on the calling thread.
      */
     public void snapshots(UIThreadSet<Activity> liveActivities, OutputStream out) throws IOException {
-        mRootViewFinder.findInActivities(liveActivities);
+        snapshots(liveActivities, out, false, null);
+    }
+
+    /**
+     * Take a snapshot of each activity in liveActivities, as snapshots(liveActivities, out) does.
+     *
+     * If delta is true, the snapshot of each root view is relative to the last delta snapshot of
+     * the same root: "objects" only holds the views that were added or have changed since,
+     * "removed" holds the hashCodes of the views that are gone, and the "screenshot" is left out
+     * if the root view hasn't been drawn since. The "delta" entry of each activity is false when
+     * there was nothing to compare to, in which case every view is in "objects".
+     *
+     * If the snapshot was configured with a tile size, the screenshots of delta snapshots are sent
+     * as "screenshot_tiles", holding only the tiles that have changed since the last screenshot.
+     *
+     * If images isn't null, screenshots and tiles aren't written to out as base64 strings. Their
+     * compressed bytes are added to images instead, and the JSON holds their index in images.
+     */
+    public void snapshots(UIThreadSet<Activity> liveActivities, OutputStream out, boolean delta,
+                          List<byte[]> images) throws IOException {
+        if (!delta) {
+            // Whatever was sent before, the editor is starting over
+            mRootStates.clear();
+        }
+        mRootViewFinder.findInActivities(liveActivities, delta ? mRootStates : null);
         final FutureTask<List<RootViewInfo>> infoFuture = new FutureTask<List<RootViewInfo>>(mRootViewFinder);
         mMainThreadHandler.post(infoFuture);
 
@@ -77,8 +121,13 @@ import java.util.concurrent.TimeoutException;
                 writer.write("\"scale\":");
                 writer.write(String.format("%s", info.scale));
                 writer.write(",");
+                if (null != info.state) {
+                    writer.write("\"delta\":");
+                    writer.write(info.state.sent ? "true" : "false");
+                    writer.write(",");
+                }
                 writer.write("\"serialized_objects\":");
-                {
+                if (null == info.state) {
                     final JsonWriter j = new JsonWriter(writer);
                     j.beginObject();
                     j.name("rootObject").value(info.rootView.hashCode());
@@ -86,15 +135,33 @@ import java.util.concurrent.TimeoutException;
                     snapshotViewHierarchy(j, info.rootView);
                     j.endObject();
                     j.flush();
+                } else {
+                    writer.write("{\"rootObject\":");
+                    writer.write(Integer.toString(info.rootView.hashCode()));
+                    writer.write(",");
+                    snapshotChangedViews(writer, info.rootView, info.state.nodes);
+                    writer.write("}");
+                    info.state.sent = true;
+                }
+                if (null != info.screenshot && null != info.state && mTileSize > 0) {
+                    writer.write(",");
+                    writer.write("\"screenshot_tiles\":");
+                    writer.flush();
+                    info.screenshot.writeTilesJSON(mScreenshotFormat, mScreenshotQuality, mTileSize, info.state, images, out);
+                } else if (null != info.screenshot) {
+                    writer.write(",");
+                    writer.write("\"screenshot\":");
+                    writer.flush();
+                    info.screenshot.writeBitmapJSON(mScreenshotFormat, mScreenshotQuality, images, out);
                 }
-                writer.write(",");
-                writer.write("\"screenshot\":");
-                writer.flush();
-                info.screenshot.writeBitmapJSON(Bitmap.CompressFormat.PNG, 100, out);
                 writer.write("}");
             }
             writer.write("]");
             writer.flush();
+        } catch (final IOException e) {
+            // We can't tell how much of the snapshot made it to the editor
+            resetDeltaState();
+            throw e;
         } catch (final InterruptedException e) {
             if (AConfig.DEBUG) {
                 Log.d(LOGTAG, "Screenshot interrupted, no screenshot will be sent.", e);
@@ -110,6 +177,14 @@ import java.util.concurrent.TimeoutException;
         }
     }
 
+    /**
+     * Forgets what has been sent to the editor, so the next delta snapshot sends every view and
+     * screenshot again. Called when a snapshot may not have reached the editor in full.
+     */
+    public void resetDeltaState() {
+        mRootStates.clear();
+    }
+
     // For testing only
     /* package */ List<PropertyDescription> getProperties() {
         return mProperties;
@@ -122,8 +197,87 @@ import java.util.concurrent.TimeoutException;
         j.endArray();
     }
 
+    /**
+     * Writes the "objects" and "removed" entries of a delta snapshot of the hierarchy under rootView,
+     * relative to nodes, and then replaces nodes with the serialized views of this snapshot.
+     *
+     * @param nodes the serialized views of the last snapshot, by hashCode
+     */
+    /* package */ void snapshotChangedViews(Writer out, View rootView, Map<Integer, String> nodes)
+        throws IOException {
+        final Map<Integer, String> current = new HashMap<Integer, String>();
+        out.write("\"objects\":[");
+        snapshotChangedView(out, rootView, nodes, current, true);
+        out.write("],\"removed\":[");
+        boolean first = true;
+        for (final Integer hashCode : nodes.keySet()) {
+            if (!current.containsKey(hashCode)) {
+                if (!first) {
+                    out.write(",");
+                }
+                out.write(hashCode.toString());
+                first = false;
+            }
+        }
+        out.write("]");
+
+        nodes.clear();
+        nodes.putAll(current);
+    }
+
+    // Returns false once anything has been written to out
+    private boolean snapshotChangedView(Writer out, View view, Map<Integer, String> previous,
+                                        Map<Integer, String> current, boolean first)
+        throws IOException {
+        mNodeBuffer.getBuffer().setLength(0);
+        final JsonWriter j = new JsonWriter(mNodeBuffer);
+        snapshotViewNode(j, view);
+        j.flush();
+
+        final Integer hashCode = view.hashCode();
+        final String node = mNodeBuffer.toString();
+        if (!node.equals(previous.get(hashCode))) {
+            if (!first) {
+                out.write(",");
+            }
+            out.write(node);
+            first = false;
+        }
+        current.put(hashCode, node);
+
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            final int childCount = group.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                final View child = group.getChildAt(i);
+                // child can be null when views are getting disposed.
+                if (null != child) {
+                    first = snapshotChangedView(out, child, previous, current, first);
+                }
+            }
+        }
+        return first;
+    }
+
     private void snapshotView(JsonWriter j, View view)
             throws IOException {
+        snapshotViewNode(j, view);
+
+        if (view instanceof ViewGroup) {
+            final ViewGroup group = (ViewGroup) view;
+            final int childCount = group.getChildCount();
+            for (int i = 0; i < childCount; i++) {
+                final View child = group.getChildAt(i);
+                // child can be null when views are getting disposed.
+                if (null != child) {
+                    snapshotView(j, child);
+                }
+            }
+        }
+    }
+
+    private void snapshotViewNode(JsonWriter j, View view)
+            throws IOException {
         final int viewId = view.getId();
         final String viewIdName;
         if (-1 == viewId) {
@@ -195,18 +349,6 @@ import java.util.concurrent.TimeoutException;
         }
         j.endArray();
         j.endObject();
-
-        if (view instanceof ViewGroup) {
-            final ViewGroup group = (ViewGroup) view;
-            final int childCount = group.getChildCount();
-            for (int i = 0; i < childCount; i++) {
-                final View child = group.getChildAt(i);
-                // child can be null when views are getting disposed.
-                if (null != child) {
-                    snapshotView(j, child);
-                }
-            }
-        }
     }
 
     private void addProperties(JsonWriter j, View v)
@@ -246,8 +388,12 @@ import java.util.concurrent.TimeoutException;
             mCachedBitmap = new CachedBitmap();
         }
 
-        public void findInActivities(UIThreadSet<Activity> liveActivities) {
+        /**
+         * @param rootStates the state of delta snapshots by root view, or null if the snapshot isn't a delta
+         */
+        public void findInActivities(UIThreadSet<Activity> liveActivities, Map<View, RootState> rootStates) {
             mLiveActivities = liveActivities;
+            mRootStates = rootStates;
         }
 
         @Override
@@ -261,6 +407,13 @@ import java.util.concurrent.TimeoutException;
                 final View rootView = a.getWindow().getDecorView().getRootView();
                 a.getWindowManager().getDefaultDisplay().getMetrics(mDisplayMetrics);
                 final RootViewInfo info = new RootViewInfo(activityName, rootView);
+                if (null != mRootStates) {
+                    info.state = mRootStates.get(rootView);
+                    if (null == info.state) {
+                        info.state = new RootState();
+                        mRootStates.put(rootView, info.state);
+                    }
+                }
                 mRootViews.add(info);
             }
 
@@ -275,6 +428,14 @@ import java.util.concurrent.TimeoutException;
 
         private void takeScreenshot(final RootViewInfo info) {
             final View rootView = info.rootView;
+            final int drawCount = drawCount(rootView);
+            if (null != info.state && info.state.sent && info.state.drawCount == drawCount) {
+                // The editor already has this screenshot
+                info.scale = info.state.scale;
+                info.screenshot = null;
+                return;
+            }
+
             Bitmap rawBitmap = null;
 
             try {
@@ -332,9 +493,36 @@ import java.util.concurrent.TimeoutException;
             }
             info.scale = scale;
             info.screenshot = mCachedBitmap;
+            if (null != info.state) {
+                info.state.scale = scale;
+                info.state.drawCount = drawCount;
+            }
+        }
+
+        /**
+         * @return a number that changes whenever rootView is drawn
+         */
+        private int drawCount(View rootView) {
+            DrawCounter counter = sDrawCounters.get(rootView);
+            if (null == counter) {
+                counter = new DrawCounter();
+                sDrawCounters.put(rootView, counter);
+            }
+
+            final ViewTreeObserver observer = rootView.getViewTreeObserver();
+            if (counter.observer != observer) {
+                // Either a new root, or one that has moved to another window
+                counter.count++;
+                if (observer.isAlive()) {
+                    observer.addOnDrawListener(counter);
+                    counter.observer = observer;
+                }
+            }
+            return counter.count;
         }
 
         private UIThreadSet<Activity> mLiveActivities;
+        private Map<View, RootState> mRootStates;
         private final List<RootViewInfo> mRootViews;
         private final DisplayMetrics mDisplayMetrics;
         private final CachedBitmap mCachedBitmap;
@@ -342,7 +530,37 @@ import java.util.concurrent.TimeoutException;
         private final int mClientDensity = DisplayMetrics.DENSITY_DEFAULT;
     }
 
-    private static class CachedBitmap {
+    private static class DrawCounter implements ViewTreeObserver.OnDrawListener {
+        @Override
+        public void onDraw() {
+            count++;
+        }
+
+        public int count = 0;
+        public ViewTreeObserver observer = null;
+    }
+
+    // What the editor was sent in the last delta snapshot of a root view
+    /* package */ static class RootState {
+        public RootState() {
+            nodes = new HashMap<Integer, String>();
+            sent = false;
+            drawCount = 0;
+            scale = 1.0f;
+            tileHashes = null;
+        }
+
+        public final Map<Integer, String> nodes;
+        public boolean sent;
+        public int drawCount;
+        public float scale;
+        public long[] tileHashes;
+        public int tileSize;
+        public int tilesWidth;
+        public int tilesHeight;
+    }
+
+    /* package */ static class CachedBitmap {
         public CachedBitmap() {
             mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
             mCached = null;
@@ -367,22 +585,107 @@ import java.util.concurrent.TimeoutException;
             }
         }
 
-        // Writes a QUOTED base64 string (or the string null) to the output stream
-        public synchronized void writeBitmapJSON(Bitmap.CompressFormat format, int quality, OutputStream out)
+        // Writes a QUOTED base64 string, an index into images (or the string null) to the output stream
+        public synchronized void writeBitmapJSON(Bitmap.CompressFormat format, int quality, List<byte[]> images,
+                                                 OutputStream out)
             throws IOException {
             if (null == mCached || mCached.getWidth() == 0 || mCached.getHeight() == 0) {
                 out.write("null".getBytes());
             } else {
+                writeImageJSON(mCached, format, quality, images, out);
+            }
+        }
+
+        /**
+         * Writes a JSON object with the tiles of the bitmap that differ from the ones in state (or the
+         * string null), and records the new tiles in state. Each tile is an image of its own, written
+         * as writeBitmapJSON would, and placed by the x and y of its top left corner.
+         */
+        public synchronized void writeTilesJSON(Bitmap.CompressFormat format, int quality, int tileSize,
+                                                RootState state, List<byte[]> images, OutputStream out)
+            throws IOException {
+            if (null == mCached || mCached.getWidth() == 0 || mCached.getHeight() == 0) {
+                out.write("null".getBytes());
+                return;
+            }
+
+            final int width = mCached.getWidth();
+            final int height = mCached.getHeight();
+            final int columns = (width + tileSize - 1) / tileSize;
+            final int rows = (height + tileSize - 1) / tileSize;
+            final boolean sendAll = null == state.tileHashes ||
+                    state.tileSize != tileSize || state.tilesWidth != width || state.tilesHeight != height;
+            if (sendAll) {
+                state.tileHashes = new long[columns * rows];
+                state.tileSize = tileSize;
+                state.tilesWidth = width;
+                state.tilesHeight = height;
+            }
+            if (null == mTilePixels || mTilePixels.length < tileSize * tileSize) {
+                mTilePixels = new int[tileSize * tileSize];
+            }
+
+            out.write(("{\"width\":" + width + ",\"height\":" + height + ",\"tile_size\":" + tileSize +
+                       ",\"tiles\":[").getBytes());
+            boolean first = true;
+            for (int row = 0; row < rows; row++) {
+                for (int column = 0; column < columns; column++) {
+                    final int x = column * tileSize;
+                    final int y = row * tileSize;
+                    final int tileWidth = Math.min(tileSize, width - x);
+                    final int tileHeight = Math.min(tileSize, height - y);
+                    mCached.getPixels(mTilePixels, 0, tileWidth, x, y, tileWidth, tileHeight);
+
+                    final long hash = hashPixels(mTilePixels, tileWidth * tileHeight);
+                    final int tileIx = (row * columns) + column;
+                    if (!sendAll && hash == state.tileHashes[tileIx]) {
+                        continue;
+                    }
+                    state.tileHashes[tileIx] = hash;
+
+                    if (!first) {
+                        out.write(',');
+                    }
+                    first = false;
+                    out.write(("{\"x\":" + x + ",\"y\":" + y + ",\"image\":").getBytes());
+                    final Bitmap tile = Bitmap.createBitmap(mTilePixels, 0, tileWidth, tileWidth, tileHeight, Bitmap.Config.RGB_565);
+                    writeImageJSON(tile, format, quality, images, out);
+                    tile.recycle();
+                    out.write('}');
+                }
+            }
+            out.write("]}".getBytes());
+        }
+
+        private void writeImageJSON(Bitmap image, Bitmap.CompressFormat format, int quality, List<byte[]> images,
+                                    OutputStream out)
+            throws IOException {
+            mImageBytes.reset();
+            image.compress(format, quality, mImageBytes);
+            if (null == images) {
                 out.write('"');
-                final Base64OutputStream imageOut = new Base64OutputStream(out, Base64.NO_WRAP);
-                mCached.compress(Bitmap.CompressFormat.PNG, 100, imageOut);
-                imageOut.flush();
+                out.write(Base64.encode(mImageBytes.toByteArray(), Base64.NO_WRAP));
                 out.write('"');
+            } else {
+                out.write(Integer.toString(images.size()).getBytes());
+                images.add(mImageBytes.toByteArray());
             }
         }
 
+        // FNV-1a's xor and multiply, 64 bits wide, but taking a whole pixel per step rather than a byte.
+        // Hashes are only compared with earlier hashes of the same tile, so it needn't match real FNV-1a.
+        private static long hashPixels(int[] pixels, int count) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < count; i++) {
+                hash = (hash ^ pixels[i]) * 0x100000001b3L;
+            }
+            return hash;
+        }
+
         private Bitmap mCached;
         private final Paint mPaint;
+        private final ByteArrayOutputStream mImageBytes = new ByteArrayOutputStream();
+        private int[] mTilePixels;
     }
 
     private static class RootViewInfo {
@@ -391,12 +694,14 @@ import java.util.concurrent.TimeoutException;
             this.rootView = rootView;
             this.screenshot = null;
             this.scale = 1.0f;
+            this.state = null;
         }
 
         public final String activityName;
         public final View rootView;
         public CachedBitmap screenshot;
         public float scale;
+        public RootState state;
     }
 
     private final RootViewFinder mRootViewFinder;
@@ -404,9 +709,20 @@ import java.util.concurrent.TimeoutException;
     private final ClassNameCache mClassnameCache;
     private final Handler mMainThreadHandler;
     private final ResourceIds mResourceIds;
+    private final Map<View, RootState> mRootStates;
+    private final StringWriter mNodeBuffer;
+    private final Bitmap.CompressFormat mScreenshotFormat;
+    private final int mScreenshotQuality;
+    private final int mTileSize;
+
+    // Keeps the pixel buffer of a tile to 256KB
+    /* package */ static final int MAX_TILE_SIZE = 256;
 
     private static final int MAX_CLASS_NAME_CACHE_SIZE = 255;
 
+    // Only used on the main UI thread. Shared by all snapshots, so each root view gets one listener at most.
+    private static final Map<View, DrawCounter> sDrawCounters = new WeakHashMap<View, DrawCounter>();
+
     @SuppressWarnings("unused")
     private static final String LOGTAG = "AloomaAPI.ViewSnapshot";
 }
@@ -0,0 +1,105 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+/**
+ * A small JMH-style harness for the benchmarks in this directory: warm up, then time a fixed
+ * number of operations and report throughput and allocation.
+ *
+ * <p>Benchmarks only run when the alooma.benchmark system property is true, which the build
+ * sets for ./gradlew testDebugUnitTest -Pbenchmark. Numbers from a JVM with Robolectric are
+ * only good for comparing two builds on the same machine, not for predicting on-device speed.
+ */
+public class Benchmark {
+    public static final boolean ENABLED = Boolean.getBoolean("alooma.benchmark");
+
+    public interface Operation {
+        void run() throws Exception;
+    }
+
+    public static class Result {
+        public Result(String name, long operations, long elapsedNanos, long allocatedBytes) {
+            this.name = name;
+            this.operations = operations;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public double getOpsPerSecond() {
+            return operations * 1e9 / elapsedNanos;
+        }
+
+        public double getNanosPerOp() {
+            return (double) elapsedNanos / operations;
+        }
+
+        // Negative if this JVM can't measure allocation
+        public double getBytesPerOp() {
+            return allocatedBytes < 0 ? -1 : (double) allocatedBytes / operations;
+        }
+
+        public double getAllocationMegabytesPerSecond() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-40s %12.1f ops/s %12.1f ns/op %10.1f B/op %8.1f MB/s alloc",
+                    name, getOpsPerSecond(), getNanosPerOp(), getBytesPerOp(), getAllocationMegabytesPerSecond());
+        }
+
+        public final String name;
+        public final long operations;
+        public final long elapsedNanos;
+        public final long allocatedBytes;
+    }
+
+    /**
+     * Runs warmupIterations batches of operationsPerIteration operations, then measureIterations
+     * more, and prints and returns the result of the measured batches. Allocation counts every
+     * live thread, so work the operation hands to the AnalyticsMessages worker is included.
+     */
+    public static Result run(String name, int warmupIterations, int measureIterations,
+                             int operationsPerIteration, Operation operation) throws Exception {
+        for (int i = 0; i < warmupIterations * operationsPerIteration; i++) {
+            operation.run();
+        }
+
+        System.gc();
+
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < measureIterations * operationsPerIteration; i++) {
+            operation.run();
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocatedAfter = allocatedBytes();
+
+        final long allocated = (allocatedBefore < 0 || allocatedAfter < 0) ? -1 : allocatedAfter - allocatedBefore;
+        final Result result = new Result(name, (long) measureIterations * operationsPerIteration, elapsed, allocated);
+        System.out.println(result);
+        return result;
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        final com.sun.management.ThreadMXBean hotspotThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!hotspotThreads.isThreadAllocatedMemorySupported() || !hotspotThreads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+
+        long total = 0;
+        for (final long allocated : hotspotThreads.getThreadAllocatedBytes(hotspotThreads.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,326 @@
+package com.github.aloomaio.androidsdk.aloomametrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.github.aloomaio.androidsdk.util.HttpService;
+import com.github.aloomaio.androidsdk.util.RemoteService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.http.NameValuePair;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput and allocation of each step an event takes from track() to the server.
+ *
+ * <p>Run with ./gradlew testDebugUnitTest -Pbenchmark --tests '*IngestionBenchmark' and
+ * compare the printed numbers against a run on the previous release.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 21)
+public class IngestionBenchmark {
+
+    @Before
+    public void setUp() throws JSONException {
+        assumeTrue(Benchmark.ENABLED);
+        mContext = RuntimeEnvironment.application;
+        mProperties = new JSONObject();
+        mProperties.put("screen", "Checkout");
+        mProperties.put("item_count", 3);
+        mProperties.put("total", 59.97);
+        mProperties.put("currency", "USD");
+        mProperties.put("first_purchase", false);
+        mProperties.put("coupon", "SPRING10");
+    }
+
+    @After
+    public void tearDown() {
+        if (null != mServer) {
+            mServer.stop(0);
+        }
+    }
+
+    @Test
+    public void track() throws Exception {
+        final AnalyticsMessages messages = new AnalyticsMessages(mContext) {
+            @Override
+            public void publishMessage(AnalyticsEvent event) {
+                // Measure only the work done on the calling thread
+            }
+
+            @Override
+            public void installDecideCheck(DecideMessages check) {
+            }
+        };
+
+        final Future<SharedPreferences> referrerPreferences =
+                new SharedPreferencesLoader().loadPreferences(mContext, "BENCHMARK REFERRER", null);
+        final AloomaAPI api = new AloomaAPI(mContext, referrerPreferences, "BENCHMARK TOKEN",
+                null, false, null, RemoteService.ContentType.URL_FORM_ENCODED) {
+            @Override
+            AnalyticsMessages getAnalyticsMessages(String aloomaHost, boolean forceSSL,
+                                                   Map<String, String> headers, RemoteService.ContentType contentType) {
+                return messages;
+            }
+
+            @Override
+            boolean sendAppOpen() {
+                return false;
+            }
+        };
+        api.registerSuperProperties(new JSONObject("{\"plan\":\"premium\",\"ab_group\":\"B\"}"));
+
+        Benchmark.run("AloomaAPI.track", WARMUP_ITERATIONS, MEASURE_ITERATIONS, OPERATIONS_PER_ITERATION,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run() {
+                        api.track("Purchase", mProperties);
+                    }
+                });
+    }
+
+    @Test
+    public void encodeEvent() throws Exception {
+        final Object lock = new Object();
+        final int[] written = new int[1];
+
+        final ADbAdapter countingAdapter = new ADbAdapter(mContext, "benchmark.db") {
+            @Override
+            public int addRecords(List<byte[]> records, Table table, int priority, String destination) {
+                synchronized (lock) {
+                    written[0] += records.size();
+                    lock.notifyAll();
+                }
+                return 0;
+            }
+        };
+
+        final AnalyticsMessages messages = new AnalyticsMessages(mContext) {
+            @Override
+            protected ADbAdapter makeDbAdapter(Context context) {
+                return countingAdapter;
+            }
+        };
+
+        // Each operation hands a burst of events to the worker and waits for it to encode
+        // all of them, so the thread switch is spread over the burst the way it is in an app.
+        Benchmark.run("AnalyticsMessages.encodeEvent x" + EVENTS_PER_BURST,
+                WARMUP_ITERATIONS, MEASURE_ITERATIONS, OPERATIONS_PER_ITERATION / EVENTS_PER_BURST,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        final int expected;
+                        synchronized (lock) {
+                            expected = written[0] + EVENTS_PER_BURST;
+                        }
+
+                        for (int i = 0; i < EVENTS_PER_BURST; i++) {
+                            messages.publishMessage(new AnalyticsEvent("Purchase", mProperties, "BENCHMARK TOKEN"));
+                        }
+
+                        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(WAIT_SECONDS);
+                        synchronized (lock) {
+                            while (written[0] < expected) {
+                                final long remaining = deadline - System.nanoTime();
+                                if (remaining <= 0) {
+                                    throw new AssertionError("Worker didn't encode the events within " + WAIT_SECONDS + "s");
+                                }
+                                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                            }
+                        }
+                    }
+                });
+
+        messages.hardKill();
+    }
+
+    @Test
+    public void addJSON() throws Exception {
+        final ADbAdapter adapter = new ADbAdapter(mContext, "benchmark.db");
+        adapter.deleteDB();
+        final JSONObject event = makeEvent();
+
+        Benchmark.run("ADbAdapter.addJSON", WARMUP_ITERATIONS, MEASURE_ITERATIONS, OPERATIONS_PER_ITERATION,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run() {
+                        adapter.addJSON(event, ADbAdapter.Table.EVENTS);
+                    }
+                });
+
+        adapter.deleteDB();
+        adapter.close();
+    }
+
+    @Test
+    public void generateDataString() throws Exception {
+        final ADbAdapter adapter = new ADbAdapter(mContext, "benchmark.db");
+        adapter.deleteDB();
+        final JSONObject event = makeEvent();
+        for (int i = 0; i < ROWS_PER_BATCH; i++) {
+            adapter.addJSON(event, ADbAdapter.Table.EVENTS);
+        }
+
+        Benchmark.run("ADbAdapter.generateDataString x" + ROWS_PER_BATCH,
+                WARMUP_ITERATIONS, MEASURE_ITERATIONS, OPERATIONS_PER_ITERATION / ROWS_PER_BATCH,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run() {
+                        final String[] data = adapter.generateDataString(ADbAdapter.Table.EVENTS, ROWS_PER_BATCH, Long.MAX_VALUE);
+                        assertNotNull(data);
+                    }
+                });
+
+        adapter.deleteDB();
+        adapter.close();
+    }
+
+    @Test
+    public void journalAddJSON() throws Exception {
+        final JournalEventStore journal = makeJournal();
+        final JSONObject event = makeEvent();
+
+        Benchmark.run("JournalEventStore.addJSON", WARMUP_ITERATIONS, MEASURE_ITERATIONS, OPERATIONS_PER_ITERATION,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run() {
+                        journal.addJSON(event, ADbAdapter.Table.EVENTS);
+                    }
+                });
+
+        journal.deleteDB();
+    }
+
+    @Test
+    public void journalGenerateDataBatch() throws Exception {
+        final JournalEventStore journal = makeJournal();
+        final JSONObject event = makeEvent();
+        for (int i = 0; i < ROWS_PER_BATCH; i++) {
+            journal.addJSON(event, ADbAdapter.Table.EVENTS);
+        }
+
+        Benchmark.run("JournalEventStore.generateDataBatch x" + ROWS_PER_BATCH,
+                WARMUP_ITERATIONS, MEASURE_ITERATIONS, OPERATIONS_PER_ITERATION / ROWS_PER_BATCH,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run() {
+                        assertNotNull(journal.generateDataBatch(ADbAdapter.Table.EVENTS, ROWS_PER_BATCH, Long.MAX_VALUE));
+                    }
+                });
+
+        journal.deleteDB();
+    }
+
+    @Test
+    public void performRequest() throws Exception {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/track", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                final InputStream in = exchange.getRequestBody();
+                final byte[] skip = new byte[4096];
+                while (in.read(skip) != -1) {
+                    ;
+                }
+                in.close();
+
+                final byte[] response = "1\n".getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                final OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        mServer.start();
+
+        final StringBuilder batch = new StringBuilder("[");
+        final String event = makeEvent().toString();
+        for (int i = 0; i < ROWS_PER_BATCH; i++) {
+            if (i > 0) {
+                batch.append(',');
+            }
+            batch.append(event);
+        }
+        final String data = batch.append(']').toString();
+
+        final String url = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/track?ip=1";
+        final List<NameValuePair> params = new ArrayList<NameValuePair>();
+        final HttpService poster = new HttpService();
+
+        Benchmark.run("HttpService.performRequest x" + ROWS_PER_BATCH,
+                WARMUP_ITERATIONS, MEASURE_ITERATIONS, OPERATIONS_PER_ITERATION / ROWS_PER_BATCH,
+                new Benchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        final byte[] response = poster.performRequest(url, params, null,
+                                RemoteService.ContentType.URL_FORM_ENCODED, data);
+                        assertEquals("1\n", new String(response, "UTF-8"));
+                    }
+                });
+    }
+
+    // Limits high enough that the benchmark never evicts
+    private JournalEventStore makeJournal() {
+        final JournalEventStore journal = new JournalEventStore(mContext, "benchmark.journal",
+                Integer.MAX_VALUE, Long.MAX_VALUE, 1024 * 1024);
+        journal.deleteDB();
+        return journal;
+    }
+
+    // What the worker stores for a tracked event, default properties included
+    private JSONObject makeEvent() throws JSONException {
+        final JSONObject properties = new JSONObject(mProperties.toString());
+        properties.put("token", "BENCHMARK TOKEN");
+        properties.put("time", System.currentTimeMillis() / 1000);
+        properties.put("distinct_id", "4f8e9c1a-5b7d-4e2f-a1c3-d6b8e0f2a4c6");
+        properties.put("mp_lib", "android");
+        properties.put("$lib_version", AConfig.VERSION);
+        properties.put("$os", "Android");
+        properties.put("$os_version", "5.0");
+        properties.put("$manufacturer", "unknown");
+        properties.put("$model", "robolectric");
+        properties.put("$screen_width", 1080);
+        properties.put("$screen_height", 1920);
+        properties.put("$wifi", true);
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "Purchase");
+        event.put("properties", properties);
+        return event;
+    }
+
+    private Context mContext;
+    private JSONObject mProperties;
+    private HttpServer mServer;
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURE_ITERATIONS = 10;
+    private static final int OPERATIONS_PER_ITERATION = 1000;
+    private static final int EVENTS_PER_BURST = 100;
+    private static final int ROWS_PER_BATCH = 50;
+    private static final int WAIT_SECONDS = 10;
+}